@@ -29,6 +29,9 @@ char isClientConnected = 0; //Whether or not a client is read to receive data fr
 char clientReadyMsg = 'R'; //The character that tells us whether or not the client is ready to recieve
 char endMsg = 'Q'; //The message the client sends when it wants to disconnect
 char discoverMsg = 'D'; //Message the client uses to automatically find out which port the Arduino is on
+char versionMsg = 'V'; //Message the client uses to ask which version of the protocol we can send
+char protocolVersion = 2; //The highest version of the protocol we can send, answered after versionMsg
+char isFramed = 0; //Whether the client asked for the version, so understands frames (version 2)
 int thrustPin = A0; //A0 is the input pin for load cell (thrust measurement)
 int thrustValue = 0; //The value 0-1023 from the load cell's analog pin
 int tempValue = 0; //The object temperature (in sans-decimal point Celsius format) of the I2C temperature sensor
@@ -36,6 +39,70 @@ unsigned long timeValue = 0; //The timestamp in milliseconds since the program s
 int ledPin = 13; //The LED pin is used in serial comms
 Mach30_I2C i2cInterface; //Represents the Mach 30 library for reading from the MLX90614 via I2C
 
+//Version 2 sends samples in frames: the sync bytes 0xa5 0x5a, a 2 byte sequence number, the number
+//of samples, the number of channels, then each sample's 4 byte time stamp and 2 byte readings, then a
+//2 byte CRC-16/CCITT-FALSE of everything from the sequence number on. Every value is big-endian.
+#define FRAME_SAMPLES 4 //The samples sent in each frame
+#define FRAME_CHANNELS 2 //The readings in each sample, thrust then temperature
+#define SAMPLE_BYTES (4 + 2 * FRAME_CHANNELS)
+unsigned char frame[4 + FRAME_SAMPLES * SAMPLE_BYTES]; //The frame being filled, from the sequence number on
+unsigned char frameSamples = 0; //The samples in the frame so far
+unsigned int frameSequence = 0; //The sequence number of the frame being filled
+
+/*Updates a CRC-16/CCITT-FALSE with a byte, a bit at a time to save memory*/
+unsigned int crc16(unsigned int crc, unsigned char data) {
+  crc ^= (unsigned int)data << 8;
+  for (char bit = 0; bit < 8; bit++) {
+    crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+  }
+  return crc;
+}
+
+/*Sends the samples in the frame so far, if there are any*/
+void sendFrame() {
+  if (frameSamples == 0) {
+    return;
+  }
+  
+  frame[0] = (frameSequence >> 8) & 0xff;
+  frame[1] = frameSequence & 0xff;
+  frame[2] = frameSamples;
+  frame[3] = FRAME_CHANNELS;
+  
+  unsigned int length = 4 + frameSamples * SAMPLE_BYTES;
+  unsigned int crc = 0xffff;
+  for (unsigned int i = 0; i < length; i++) {
+    crc = crc16(crc, frame[i]);
+  }
+  
+  Serial.write(0xa5); //Sync bytes so the client can find the start of the frame
+  Serial.write(0x5a);
+  Serial.write(frame, length);
+  Serial.write((crc >> 8) & 0xff);
+  Serial.write(crc & 0xff);
+  
+  frameSequence++;
+  frameSamples = 0;
+}
+
+/*Adds a sample to the frame, sending the frame once it is full*/
+void addToFrame() {
+  unsigned char *sample = frame + 4 + frameSamples * SAMPLE_BYTES;
+  sample[0] = (timeValue >> 24) & 0xff;
+  sample[1] = (timeValue >> 16) & 0xff;
+  sample[2] = (timeValue >> 8) & 0xff;
+  sample[3] = timeValue & 0xff;
+  sample[4] = (thrustValue >> 8) & 0xff;
+  sample[5] = thrustValue & 0xff;
+  sample[6] = (tempValue >> 8) & 0xff;
+  sample[7] = tempValue & 0xff;
+  
+  frameSamples++;
+  if (frameSamples == FRAME_SAMPLES) {
+    sendFrame();
+  }
+}
+
 /*Sets the sketch up for use*/
 void setup() {
   //Initialize the MLX90614 sensor
@@ -62,6 +129,12 @@ void loop() {
     //Read the current time value in milliseconds
     timeValue = millis(); //TODO: Make sure we never get an overrun here
   
+    //A client that asked for the version gets frames instead
+    if (isFramed) {
+      addToFrame();
+      return;
+    }
+  
     //Send the thrust value to the Processing app
     Serial.write(0xff); //ID/control byte so Processing can distinguish sensors
     Serial.write((thrustValue >> 8) & 0xff); //The first byte
@@ -89,6 +162,10 @@ void loop() {
        
       //The client wants to disconnect
       if ((char)incomingByte == endMsg) {
+        //Send whatever is left of the last frame
+        sendFrame();
+        Serial.flush();
+        
         //Let the rest of the code know that the client has disconnected
         isClientConnected = 0;
         
@@ -111,6 +188,17 @@ void loop() {
         //Echoing it back will tell the client they've found an Arduino
         Serial.write(discoverMsg);
         //Serial.flush();
+        
+        //Clients that don't ask for the version only understand version 1
+        isFramed = 0;
+      }
+      //The client wants to know which version of the protocol we can send
+      else if ((char)incomingByte == versionMsg) {
+        Serial.write(versionMsg);
+        Serial.write(protocolVersion);
+        isFramed = 1;
+        frameSamples = 0;
+        frameSequence = 0;
       }
       //The client is ready to receive
       else if ((char)incomingByte == clientReadyMsg) {
@@ -0,0 +1,117 @@
+package org.mach30.shepard_ts.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.mach30.shepard_ts.storage.RunFile;
+import org.mach30.shepard_ts.storage.SampleFormatter;
+
+/**
+ * Runs every benchmark with its default fixtures, the hot paths from the
+ * serial port to the sinks: decoding, calibration, row formatting, block
+ * compression, TCP encoding and recording.  The results can be written as a
+ * JMH JSON results file, so that runs before and after a change can be
+ * compared.  Everything runs offline, the TCP benchmark only uses loopback.
+ *
+ * Usage: BenchmarkSuite [-json file] [-warmup iterations]
+ *     [-iterations iterations] [-suites decoder,calibration,format,codec,tcp,recording]
+ */
+public class BenchmarkSuite
+{
+
+  private static final String JSON       = "-json";
+  private static final String WARMUP     = "-warmup";
+  private static final String ITERATIONS = "-iterations";
+  private static final String SUITES     = "-suites";
+
+  private static final String ALL_SUITES = "decoder,calibration,format,codec,tcp,recording";
+
+  public static void main(String[] args) throws Exception
+  {
+    File json = null;
+    int warmup = 5;
+    int iterations = 10;
+    List<String> suites = Arrays.asList(ALL_SUITES.split(","));
+
+    Iterator<String> iter = Arrays.asList(args).iterator();
+    while (iter.hasNext())
+    {
+      String arg = iter.next();
+      if (!iter.hasNext())
+      {
+        break;
+      }
+      String param = iter.next();
+
+      if (JSON.equals(arg))
+      {
+        json = new File(param);
+      }
+      else if (WARMUP.equals(arg))
+      {
+        warmup = Integer.parseInt(param);
+      }
+      else if (ITERATIONS.equals(arg))
+      {
+        iterations = Math.max(1, Integer.parseInt(param));
+      }
+      else if (SUITES.equals(arg))
+      {
+        suites = Arrays.asList(param.split(","));
+      }
+    }
+
+    System.out.println(System.getProperty("java.vm.name") + " " + System.getProperty("java.version") +
+        ", " + Runtime.getRuntime().availableProcessors() + " processors, " + warmup +
+        " warmup and " + iterations + " measured iterations");
+    Harness harness = new Harness(warmup, iterations);
+
+    if (suites.contains("decoder"))
+    {
+      header("decoder");
+      DecoderBenchmark.run(harness, 200000, Fixtures.DEFAULT_CHUNK_SIZE);
+    }
+    if (suites.contains("calibration"))
+    {
+      header("calibration");
+      CalibrationBenchmark.run(harness, 65536, 256);
+    }
+    if (suites.contains("format"))
+    {
+      header("format");
+      CsvFormatBenchmark.run(harness, 200000, SampleFormatter.DEFAULT_THRUST_DECIMALS,
+          SampleFormatter.DEFAULT_TEMP_DECIMALS);
+    }
+    if (suites.contains("codec"))
+    {
+      header("codec");
+      CodecBenchmark.run(harness, 1000000, RunFile.BLOCK_SAMPLES);
+    }
+    if (suites.contains("tcp"))
+    {
+      header("tcp");
+      TcpEncodingBenchmark.run(harness, 200000, 256);
+    }
+    if (suites.contains("recording"))
+    {
+      header("recording");
+      RecordingBenchmark.run(harness, 1000000, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    if (json != null)
+    {
+      harness.writeJson(json);
+      System.out.println();
+      System.out.println("Wrote " + harness.getResults().size() + " results to " + json);
+    }
+  }
+
+  private static void header(String suite)
+  {
+    System.out.println();
+    System.out.println("== " + suite);
+  }
+
+}
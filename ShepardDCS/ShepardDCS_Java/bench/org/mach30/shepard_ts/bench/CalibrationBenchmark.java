@@ -0,0 +1,106 @@
+package org.mach30.shepard_ts.bench;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.calibration.Calibration;
+import org.mach30.shepard_ts.calibration.LinearCalibration;
+import org.mach30.shepard_ts.calibration.PolynomialCalibration;
+
+/**
+ * Measures how fast blocks of raw readings are calibrated, by the linear
+ * calibration's vector loop, a cubic calibration's thrust table and, for
+ * comparison, the general per-sample conversion every calibration inherits.
+ * An operation is one sample.
+ *
+ * Usage: CalibrationBenchmark [samples] [block size]
+ */
+public class CalibrationBenchmark
+{
+
+  private static final int WARMUP_ITERATIONS = 20;
+  private static final int MEASURED_ITERATIONS = 50;
+
+  public static void main(String[] args) throws Exception
+  {
+    // few enough to stay in the cache, as the blocks of a live pipeline do
+    int samples = args.length > 0 ? Integer.parseInt(args[0]) : 65536;
+    int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+    run(new Harness(WARMUP_ITERATIONS, MEASURED_ITERATIONS), samples, blockSize);
+  }
+
+  public static void run(Harness harness, int samples, int blockSize) throws Exception
+  {
+    SampleBlock[] blocks = Fixtures.sampleBlocks(samples, blockSize);
+    double[] cubic = {-0.29, 0.0425, 2e-7, -1e-10};
+    Calibration polynomial = new PolynomialCalibration(cubic, LinearCalibration.DEFAULT.getTempCoefficients());
+
+    System.out.println(samples + " samples, " + blockSize + " samples/block");
+    harness.clearParams();
+    harness.setParam("samples", samples);
+    harness.setParam("blockSize", blockSize);
+    harness.printHeader();
+    measure(harness, "CalibrationBenchmark.linear", LinearCalibration.DEFAULT, blocks, samples);
+    measure(harness, "CalibrationBenchmark.cubicTable", polynomial, blocks, samples);
+    measure(harness, "CalibrationBenchmark.perSample", new PerSampleCalibration(LinearCalibration.DEFAULT),
+        blocks, samples);
+  }
+
+  private static void measure(Harness harness, String name, final Calibration calibration,
+      final SampleBlock[] blocks, int samples) throws Exception
+  {
+    harness.measure(name, samples, new Harness.Iteration() {
+      @Override
+      public void run()
+      {
+        applyAll(calibration, blocks);
+      }
+    }).print();
+  }
+
+  private static void applyAll(Calibration calibration, SampleBlock[] blocks)
+  {
+    for (SampleBlock block : blocks)
+    {
+      calibration.apply(block);
+    }
+  }
+
+  /**
+   * Converts with another calibration, but through the general block
+   * conversion, one virtual call per reading.
+   */
+  private static class PerSampleCalibration extends Calibration
+  {
+    private Calibration calibration = null;
+
+    PerSampleCalibration(Calibration calibration)
+    {
+      this.calibration = calibration;
+    }
+
+    @Override
+    public float toNewtons(int rawThrust)
+    {
+      return calibration.toNewtons(rawThrust);
+    }
+
+    @Override
+    public float toDegrees(int rawTemp)
+    {
+      return calibration.toDegrees(rawTemp);
+    }
+
+    @Override
+    public double[] getThrustCoefficients()
+    {
+      return calibration.getThrustCoefficients();
+    }
+
+    @Override
+    public double[] getTempCoefficients()
+    {
+      return calibration.getTempCoefficients();
+    }
+  }
+
+}
@@ -0,0 +1,142 @@
+package org.mach30.shepard_ts.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.SampleBlockCodec;
+import org.mach30.shepard_ts.storage.RunFile;
+
+/**
+ * Measures the size and speed of SampleBlockCodec against the fixed size run
+ * file records.  Before measuring, it checks that every block decodes back to
+ * exactly the samples encoded, and that corrupting a block is caught.  An
+ * operation is one sample.
+ *
+ * Usage: CodecBenchmark [samples] [block size]
+ */
+public class CodecBenchmark
+{
+
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASURED_ITERATIONS = 10;
+
+  public static void main(String[] args) throws Exception
+  {
+    int samples = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : RunFile.BLOCK_SAMPLES;
+
+    run(new Harness(WARMUP_ITERATIONS, MEASURED_ITERATIONS), samples, blockSize);
+  }
+
+  public static void run(Harness harness, int samples, int blockSize) throws Exception
+  {
+    final SampleBlock[] blocks = Fixtures.sampleBlocks(samples, blockSize);
+    final SampleBlockCodec codec = new SampleBlockCodec();
+    final ByteBuffer encoded = ByteBuffer.allocate(blocks.length * SampleBlockCodec.maxEncodedSize(blockSize));
+    final SampleBlock decoded = new SampleBlock(blockSize);
+
+    encodeAll(codec, blocks, encoded);
+    int bytes = encoded.position();
+    System.out.println(samples + " samples, " + blockSize + " samples/block");
+    System.out.println(String.format("%.2f bytes/sample, %.1fx smaller than fixed records",
+        (double)bytes / samples, (double)samples * RunFile.RECORD_SIZE / bytes));
+
+    verify(codec, blocks, encoded, decoded);
+
+    harness.clearParams();
+    harness.setParam("samples", samples);
+    harness.setParam("blockSize", blockSize);
+    harness.printHeader();
+
+    Harness.Result encode = harness.measure("CodecBenchmark.encode", samples, new Harness.Iteration() {
+      @Override
+      public void run()
+      {
+        encodeAll(codec, blocks, encoded);
+      }
+    });
+    encode.addMetric("encoded", "B/op", (double)bytes / samples);
+    encode.print();
+
+    Harness.Result decode = harness.measure("CodecBenchmark.decode", samples, new Harness.Iteration() {
+      @Override
+      public void run() throws IOException
+      {
+        decodeAll(codec, encoded, decoded);
+      }
+    });
+    decode.addMetric("encoded", "B/op", (double)bytes / samples);
+    decode.print();
+  }
+
+  private static void encodeAll(SampleBlockCodec codec, SampleBlock[] blocks, ByteBuffer encoded)
+  {
+    encoded.clear();
+    for (SampleBlock block : blocks)
+    {
+      codec.encode(block, encoded);
+    }
+  }
+
+  private static void decodeAll(SampleBlockCodec codec, ByteBuffer encoded, SampleBlock decoded)
+      throws IOException
+  {
+    ByteBuffer in = encoded.duplicate();
+    in.flip();
+    while (in.hasRemaining())
+    {
+      decoded.clear();
+      codec.decode(in, decoded);
+    }
+  }
+
+  private static void verify(SampleBlockCodec codec, SampleBlock[] blocks, ByteBuffer encoded,
+      SampleBlock decoded) throws IOException
+  {
+    ByteBuffer in = encoded.duplicate();
+    in.flip();
+    int mismatches = 0;
+    for (SampleBlock block : blocks)
+    {
+      decoded.clear();
+      codec.decode(in, decoded);
+      for (int i = 0; i < block.count; i++)
+      {
+        if (decoded.count != block.count || decoded.time[i] != block.time[i] ||
+            decoded.rawThrust[i] != block.rawThrust[i] || decoded.rawTemp[i] != block.rawTemp[i])
+        {
+          ++mismatches;
+        }
+      }
+    }
+    System.out.println(mismatches == 0 ? "Every sample decoded exactly" :
+        mismatches + " samples decoded differently");
+
+    // flip a bit somewhere in the first block
+    ByteBuffer corrupt = ByteBuffer.allocate(SampleBlockCodec.maxEncodedSize(blocks[0].count));
+    int size = codec.encode(blocks[0], corrupt);
+    int detected = 0;
+    Random random = new Random(15);
+    for (int i = 0; i < 1000; i++)
+    {
+      int bit = random.nextInt(size * 8);
+      corrupt.put(bit / 8, (byte)(corrupt.get(bit / 8) ^ (1 << (bit % 8))));
+      ByteBuffer block = corrupt.duplicate();
+      block.flip();
+      try
+      {
+        decoded.clear();
+        codec.decode(block, decoded);
+      }
+      catch (IOException ioex)
+      {
+        ++detected;
+      }
+      corrupt.put(bit / 8, (byte)(corrupt.get(bit / 8) ^ (1 << (bit % 8))));
+    }
+    System.out.println(detected + " of 1000 corrupted blocks detected");
+  }
+
+}
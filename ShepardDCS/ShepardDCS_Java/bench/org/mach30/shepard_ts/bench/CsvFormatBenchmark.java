@@ -0,0 +1,181 @@
+package org.mach30.shepard_ts.bench;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.ShepardData;
+import org.mach30.shepard_ts.storage.SampleFormatter;
+
+/**
+ * Compares formatting CSV rows with ShepardData.toString against
+ * SampleFormatter.  Before measuring, it checks that SampleFormatter matches
+ * Float.toString rounded half up, for the fixture samples and for random
+ * values of every magnitude, at every supported precision.
+ *
+ * Usage: CsvFormatBenchmark [samples] [thrust decimals] [temp decimals]
+ */
+public class CsvFormatBenchmark
+{
+
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASURED_ITERATIONS = 10;
+  private static final int RANDOM_VALUES = 200000;
+
+  private static long sink = 0;
+
+  public static void main(String[] args) throws Exception
+  {
+    int samples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int thrustDecimals = args.length > 1 ? Integer.parseInt(args[1]) : SampleFormatter.DEFAULT_THRUST_DECIMALS;
+    int tempDecimals = args.length > 2 ? Integer.parseInt(args[2]) : SampleFormatter.DEFAULT_TEMP_DECIMALS;
+
+    run(new Harness(WARMUP_ITERATIONS, MEASURED_ITERATIONS), samples, thrustDecimals, tempDecimals);
+  }
+
+  public static void run(Harness harness, int samples, int thrustDecimals, int tempDecimals)
+      throws Exception
+  {
+    final SampleBlock[] blocks = Fixtures.sampleBlocks(samples, 256);
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    int mismatches = verify(blocks);
+    System.out.println(mismatches == 0 ? "Formatter matches Float.toString rounded half up" :
+        mismatches + " values formatted differently to Float.toString rounded half up");
+
+    System.out.println(samples + " samples, " + thrustDecimals + " thrust decimals, " +
+        tempDecimals + " temperature decimals");
+    harness.clearParams();
+    harness.setParam("samples", samples);
+    harness.setParam("thrustDecimals", thrustDecimals);
+    harness.setParam("tempDecimals", tempDecimals);
+    harness.printHeader();
+
+    measure(harness, "CsvFormatBenchmark.shepardDataToString", samples, new Harness.Iteration() {
+      private ShepardData datapoint = new ShepardData();
+
+      @Override
+      public void run()
+      {
+        for (SampleBlock block : blocks)
+        {
+          for (int i = 0; i < block.count; i++)
+          {
+            if (buffer.remaining() < SampleFormatter.MAX_ROW)
+            {
+              drain(buffer);
+            }
+            block.get(i, datapoint);
+            buffer.put(datapoint.toString().getBytes());
+            buffer.put((byte)'\n');
+          }
+        }
+        drain(buffer);
+      }
+    });
+
+    final SampleFormatter formatter = new SampleFormatter(thrustDecimals, tempDecimals);
+    measure(harness, "CsvFormatBenchmark.sampleFormatter", samples, new Harness.Iteration() {
+      @Override
+      public void run()
+      {
+        for (SampleBlock block : blocks)
+        {
+          for (int i = 0; i < block.count; i++)
+          {
+            if (buffer.remaining() < SampleFormatter.MAX_ROW)
+            {
+              drain(buffer);
+            }
+            formatter.putRow(buffer, block, i);
+          }
+        }
+        drain(buffer);
+      }
+    });
+
+    // keep the results observable so the JIT can't drop the work
+    if (sink == 42)
+    {
+      System.out.println();
+    }
+  }
+
+  private static void drain(ByteBuffer buffer)
+  {
+    buffer.flip();
+    sink += buffer.remaining();
+    buffer.clear();
+  }
+
+  /**
+   * @return The number of values the formatter got wrong
+   */
+  private static int verify(SampleBlock[] blocks)
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(SampleFormatter.MAX_ROW);
+    Random random = new Random(1);
+    int mismatches = 0;
+
+    for (int decimals = 0; decimals <= SampleFormatter.MAX_DECIMALS; decimals++)
+    {
+      for (SampleBlock block : blocks)
+      {
+        for (int i = 0; i < block.count; i++)
+        {
+          mismatches += check(buffer, block.thrust[i], decimals);
+          mismatches += check(buffer, block.temp[i], decimals);
+        }
+      }
+
+      for (int i = 0; i < RANDOM_VALUES; i++)
+      {
+        // values with few digits are the ones that land on ties
+        float value = random.nextBoolean() ? Float.intBitsToFloat(random.nextInt()) :
+            (float)(random.nextInt(2000000) - 1000000) / (1 << random.nextInt(12));
+        mismatches += check(buffer, value, decimals);
+      }
+    }
+    return mismatches;
+  }
+
+  private static int check(ByteBuffer buffer, float value, int decimals)
+  {
+    buffer.clear();
+    SampleFormatter.putFixed(buffer, value, decimals);
+    String actual = new String(buffer.array(), 0, buffer.position());
+
+    String expected = Float.toString(value);
+    if (!Float.isNaN(value) && !Float.isInfinite(value))
+    {
+      expected = new BigDecimal(expected).setScale(decimals, RoundingMode.HALF_UP).toPlainString();
+    }
+
+    if (!expected.equals(actual))
+    {
+      System.out.println("  " + Float.toString(value) + " to " + decimals + " decimals: expected " +
+          expected + ", got " + actual);
+      return 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Measure formatting the rows, along with the bytes written for each.  An
+   * operation is one row.
+   */
+  private static void measure(Harness harness, String name, int samples, Harness.Iteration iteration)
+      throws Exception
+  {
+    long bytes = sink;
+    iteration.run();
+    bytes = sink - bytes;
+
+    Harness.Result result = harness.measure(name, samples, iteration);
+    result.addMetric("written", "B/op", (double)bytes / samples);
+    result.print();
+  }
+
+}
@@ -0,0 +1,209 @@
+package org.mach30.shepard_ts.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import jssc.SerialPortEvent;
+
+import org.mach30.shepard_ts.server.FramedProtocolDecoder;
+import org.mach30.shepard_ts.server.ShepardFrameDecoder;
+import org.mach30.shepard_ts.server.ShepardSerialEventListener;
+import org.mach30.shepard_ts.transport.ByteListener;
+import org.mach30.shepard_ts.transport.MemoryByteSource;
+
+/**
+ * Compares the throughput and allocation rate of the serial decoding path
+ * before and after ShepardFrameDecoder, and of the listener pulling from a
+ * byte source into one buffer instead of being handed a new array for each
+ * RX event, as jssc does.  The version 2 decoder is measured on the same
+ * samples sent in frames.  An operation is one RX event.
+ *
+ * Usage: DecoderBenchmark [samples] [chunk size]
+ */
+public class DecoderBenchmark
+{
+  
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int MEASURED_ITERATIONS = 10;
+  
+  // as many samples as the simulator puts in a frame
+  private static final int FRAME_SAMPLES = 32;
+  
+  private static long sink = 0;
+  
+  public static void main(String[] args) throws Exception
+  {
+    int samples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : Fixtures.DEFAULT_CHUNK_SIZE;
+    
+    run(new Harness(WARMUP_ITERATIONS, MEASURED_ITERATIONS), samples, chunkSize);
+  }
+  
+  public static void run(Harness harness, int samples, final int chunkSize) throws Exception
+  {
+    final byte[] data = Fixtures.protocolStream(samples);
+    final ReplaySerialPort port = new ReplaySerialPort(data, chunkSize);
+    final MemoryByteSource source = new MemoryByteSource(data, chunkSize);
+    long events = (data.length + chunkSize - 1) / chunkSize;
+    
+    System.out.println(samples + " samples, " + data.length + " bytes, " + chunkSize + " bytes/event");
+    harness.clearParams();
+    harness.setParam("samples", samples);
+    harness.setParam("chunkSize", chunkSize);
+    harness.printHeader();
+    
+    // the legacy listener logs to the console on every event, which would
+    // swamp the measurement, so throw the output away while running
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream nowhere = new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b)
+      {
+      }
+    });
+    
+    Harness.Result legacy;
+    try
+    {
+      System.setOut(nowhere);
+      System.setErr(nowhere);
+      
+      legacy = harness.measure("DecoderBenchmark.legacyListener", events, new Harness.Iteration() {
+        private LegacySerialEventListener listener = new LegacySerialEventListener(port) {
+          @Override
+          protected void handleData()
+          {
+            sink += datapoint.time;
+          }
+        };
+        
+        @Override
+        public void run()
+        {
+          replay(port, listener);
+        }
+      });
+    }
+    finally
+    {
+      System.setOut(out);
+      System.setErr(err);
+    }
+    print(legacy, data.length);
+    
+    print(harness.measure("DecoderBenchmark.listener", events, new Harness.Iteration() {
+      private ShepardSerialEventListener listener = new ShepardSerialEventListener() {
+        @Override
+        protected void handleData()
+        {
+          sink += datapoint.time;
+        }
+      };
+      
+      @Override
+      public void run()
+      {
+        replay(port, listener);
+      }
+    }), data.length);
+    
+    print(harness.measure("DecoderBenchmark.listenerPulled", events, new Harness.Iteration() {
+      private ShepardSerialEventListener listener = new ShepardSerialEventListener() {
+        @Override
+        protected void handleData()
+        {
+          sink += datapoint.time;
+        }
+      };
+      private byte[] buffer = new byte[chunkSize];
+      
+      @Override
+      public void run() throws Exception
+      {
+        source.rewind();
+        source.pump(listener, buffer);
+      }
+    }), data.length);
+    
+    print(harness.measure("DecoderBenchmark.decoderOnly", events, new Harness.Iteration() {
+      private ShepardFrameDecoder decoder = new ShepardFrameDecoder(
+          new ShepardFrameDecoder.SampleListener() {
+            @Override
+            public void sampleDecoded(long time, int rawThrust, int rawTemp)
+            {
+              sink += time;
+            }
+          });
+      
+      @Override
+      public void run()
+      {
+        for (int offset = 0; offset < data.length; offset += chunkSize)
+        {
+          decoder.decode(data, offset, Math.min(chunkSize, data.length - offset));
+        }
+      }
+    }), data.length);
+    
+    final byte[] framed = Fixtures.framedStream(samples, FRAME_SAMPLES);
+    long framedEvents = (framed.length + chunkSize - 1) / chunkSize;
+    print(harness.measure("DecoderBenchmark.framedDecoderOnly", framedEvents, new Harness.Iteration() {
+      private FramedProtocolDecoder decoder = new FramedProtocolDecoder(
+          new ShepardFrameDecoder.SampleListener() {
+            @Override
+            public void sampleDecoded(long time, int rawThrust, int rawTemp)
+            {
+              sink += time;
+            }
+          });
+      
+      @Override
+      public void run()
+      {
+        for (int offset = 0; offset < framed.length; offset += chunkSize)
+        {
+          decoder.decode(framed, offset, Math.min(chunkSize, framed.length - offset));
+        }
+      }
+    }), framed.length);
+    
+    // keep the results observable so the JIT can't drop the work
+    if (sink == 42)
+    {
+      System.out.println();
+    }
+  }
+  
+  private static void print(Harness.Result result, int bytes)
+  {
+    result.addMetric("throughput", "MB/s", result.getScore() * bytes / result.getOperations() / (1024 * 1024));
+    result.print();
+  }
+  
+  private static void replay(ReplaySerialPort port, jssc.SerialPortEventListener listener)
+  {
+    port.rewind();
+    SerialPortEvent event = null;
+    while ((event = port.nextEvent()) != null)
+    {
+      listener.serialEvent(event);
+    }
+  }
+  
+  /**
+   * Hand the listener each RX event's bytes, the way the serial byte source
+   * does.
+   */
+  private static void replay(ReplaySerialPort port, ByteListener listener)
+  {
+    port.rewind();
+    SerialPortEvent event = null;
+    while ((event = port.nextEvent()) != null)
+    {
+      byte[] buffer = port.readBytes(event.getEventValue());
+      listener.bytesReceived(buffer, 0, buffer.length);
+    }
+  }
+  
+}
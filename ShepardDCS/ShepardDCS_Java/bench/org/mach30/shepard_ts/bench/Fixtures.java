@@ -0,0 +1,104 @@
+package org.mach30.shepard_ts.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.mach30.shepard_ts.FramedProtocol;
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.calibration.LinearCalibration;
+import org.mach30.shepard_ts.simulator.SyntheticFiring;
+
+/**
+ * Generates benchmark input shaped like a real test firing, from the
+ * simulator's firing curve.
+ */
+public class Fixtures
+{
+  
+  // roughly the size of the reads jssc hands to the listener at 115200 baud
+  public static final int DEFAULT_CHUNK_SIZE = 64;
+  
+  /**
+   * Encode the given number of samples, one per millisecond, in the v1 control
+   * code protocol, in the order the Arduino sends them.
+   */
+  public static byte[] protocolStream(int samples)
+  {
+    Random noise = new Random(30);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(samples * 11);
+    
+    for (int i = 0; i < samples; i++)
+    {
+      long millis = i;
+      int thrust = SyntheticFiring.thrustCounts(millis % SyntheticFiring.PERIOD, noise);
+      int temp = SyntheticFiring.tempCounts(millis % SyntheticFiring.PERIOD);
+      
+      out.write(0xff);
+      out.write((thrust >> 8) & 0xff);
+      out.write(thrust & 0xff);
+      
+      out.write(0xfe);
+      out.write((temp >> 8) & 0xff);
+      out.write(temp & 0xff);
+      
+      out.write(0xfd);
+      out.write((int)(millis >> 24) & 0xff);
+      out.write((int)(millis >> 16) & 0xff);
+      out.write((int)(millis >> 8) & 0xff);
+      out.write((int)millis & 0xff);
+    }
+    
+    return out.toByteArray();
+  }
+  
+  /**
+   * The same samples as protocolStream, sent in version 2 frames of the
+   * given number of samples.
+   */
+  public static byte[] framedStream(int samples, int frameSamples)
+  {
+    SampleBlock[] blocks = sampleBlocks(samples, frameSamples);
+    byte[] out = new byte[blocks.length * FramedProtocol.frameSize(frameSamples, FramedProtocol.CHANNELS)];
+    int length = 0;
+    int sequence = 0;
+    for (SampleBlock block : blocks)
+    {
+      length += FramedProtocol.encode(out, length, sequence++, block, 0, block.count);
+    }
+    
+    byte[] stream = new byte[length];
+    System.arraycopy(out, 0, stream, 0, length);
+    return stream;
+  }
+  
+  /**
+   * Fill blocks with samples, one per millisecond, using the same curve as
+   * the protocol stream, calibrated with the default calibration.
+   */
+  public static SampleBlock[] sampleBlocks(int samples, int blockSize)
+  {
+    Random noise = new Random(30);
+    SampleBlock[] blocks = new SampleBlock[(samples + blockSize - 1) / blockSize];
+    
+    for (int i = 0; i < samples; i++)
+    {
+      SampleBlock block = blocks[i / blockSize];
+      if (block == null)
+      {
+        block = new SampleBlock(blockSize);
+        blocks[i / blockSize] = block;
+      }
+      
+      int thrust = SyntheticFiring.thrustCounts(i % SyntheticFiring.PERIOD, noise);
+      int temp = SyntheticFiring.tempCounts(i % SyntheticFiring.PERIOD);
+      block.add(i, thrust, temp);
+    }
+    for (SampleBlock block : blocks)
+    {
+      LinearCalibration.DEFAULT.apply(block);
+    }
+    
+    return blocks;
+  }
+  
+}
@@ -0,0 +1,321 @@
+package org.mach30.shepard_ts.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks the way JMH's throughput mode does, a number of warmup
+ * iterations followed by measured iterations each timed on their own, and
+ * keeps the results so they can be written out in JMH's JSON format.  That
+ * way runs can be compared with each other, and with the usual JMH tools,
+ * without needing JMH or a build to run them.
+ *
+ * Allocation and CPU time are only counted on the thread running the
+ * benchmark, not on any threads it hands work to.
+ */
+public class Harness
+{
+
+  // Student's t at 99.9% confidence, by degrees of freedom, as JMH reports
+  private static final double[] T_999 = {
+      636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+      4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+      3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+  private static final double T_999_LIMIT = 3.291;
+
+  // the names JMH's profilers give these, so that tools comparing runs find them
+  public static final String ALLOCATION = "\u00b7gc.alloc.rate.norm";
+  public static final String CPU_TIME = "\u00b7cpu.time.norm";
+
+  private int warmupIterations = 5;
+  private int measuredIterations = 10;
+
+  private Map<String, String> params = new LinkedHashMap<String, String>();
+  private List<Result> results = new ArrayList<Result>();
+
+  private com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+
+  public Harness(int warmupIterations, int measuredIterations)
+  {
+    this.warmupIterations = warmupIterations;
+    this.measuredIterations = measuredIterations;
+  }
+
+  /**
+   * One iteration of a benchmark.
+   */
+  public interface Iteration
+  {
+    void run() throws Exception;
+  }
+
+  /**
+   * Record a parameter of the benchmarks measured from now on, such as the
+   * number of samples.
+   */
+  public void setParam(String name, Object value)
+  {
+    params.put(name, String.valueOf(value));
+  }
+
+  public void clearParams()
+  {
+    params.clear();
+  }
+
+  /**
+   * Run a benchmark and print its result.
+   * @param benchmark The benchmark's name, prefixed by its suite
+   * @param operations The number of operations in each iteration
+   */
+  public Result measure(String benchmark, long operations, Iteration iteration) throws Exception
+  {
+    for (int i = 0; i < warmupIterations; i++)
+    {
+      iteration.run();
+    }
+
+    Result result = new Result(benchmark, operations);
+    long threadId = Thread.currentThread().getId();
+    long allocated = threads.getThreadAllocatedBytes(threadId);
+    long cpu = threads.getCurrentThreadCpuTime();
+    long total = 0;
+    for (int i = 0; i < measuredIterations; i++)
+    {
+      long start = System.nanoTime();
+      iteration.run();
+      long elapsed = System.nanoTime() - start;
+      result.rawData[i] = operations / (elapsed / 1e9);
+      total += elapsed;
+    }
+    allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+    cpu = threads.getCurrentThreadCpuTime() - cpu;
+
+    long ops = operations * measuredIterations;
+    result.nanosPerOp = (double)total / ops;
+    result.addMetric(ALLOCATION, "B/op", (double)allocated / ops);
+    result.addMetric(CPU_TIME, "ns/op", (double)cpu / ops);
+    results.add(result);
+    return result;
+  }
+
+  public List<Result> getResults()
+  {
+    return results;
+  }
+
+  public void printHeader()
+  {
+    System.out.println(String.format("%-44s %14s %10s %10s %10s %10s", "Benchmark", "ops/s", "error",
+        "ns/op", "B/op", "CPU ns/op"));
+  }
+
+  /**
+   * Write every result measured so far as a JMH JSON results file.
+   */
+  public void writeJson(File file) throws IOException
+  {
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try
+    {
+      out.println("[");
+      for (int i = 0; i < results.size(); i++)
+      {
+        results.get(i).writeJson(out);
+        out.println(i < results.size() - 1 ? "    }," : "    }");
+      }
+      out.println("]");
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private static String quote(String value)
+  {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static String number(double value)
+  {
+    return Double.isNaN(value) || Double.isInfinite(value) ? quote(String.valueOf(value)) :
+        String.valueOf(value);
+  }
+
+
+  /**
+   * The throughput of a benchmark in operations per second, with the other
+   * metrics per operation.
+   */
+  public class Result
+  {
+
+    private String benchmark = null;
+    private Map<String, String> params = null;
+    private long operations = 0;
+    private double[] rawData = null;
+    private double nanosPerOp = 0;
+    // name to unit and value
+    private Map<String, Object[]> metrics = new LinkedHashMap<String, Object[]>();
+
+    Result(String benchmark, long operations)
+    {
+      this.benchmark = benchmark;
+      this.operations = operations;
+      params = new LinkedHashMap<String, String>(Harness.this.params);
+      rawData = new double[measuredIterations];
+    }
+
+    /**
+     * Add a metric of the benchmark's own, such as the bytes written per
+     * operation.
+     */
+    public void addMetric(String name, String unit, double value)
+    {
+      metrics.put(name, new Object[] {unit, value});
+    }
+
+    public double getScore()
+    {
+      double sum = 0;
+      for (double value : rawData)
+      {
+        sum += value;
+      }
+      return sum / rawData.length;
+    }
+
+    /**
+     * @return Half the width of the 99.9% confidence interval of the score
+     */
+    public double getScoreError()
+    {
+      int n = rawData.length;
+      if (n < 2)
+      {
+        return Double.NaN;
+      }
+      double mean = getScore();
+      double squares = 0;
+      for (double value : rawData)
+      {
+        squares += (value - mean) * (value - mean);
+      }
+      double t = n - 1 <= T_999.length ? T_999[n - 2] : T_999_LIMIT;
+      return t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+    }
+
+    public double getMetric(String name)
+    {
+      Object[] metric = metrics.get(name);
+      return metric != null ? (Double)metric[1] : Double.NaN;
+    }
+
+    public long getOperations()
+    {
+      return operations;
+    }
+
+    public double getNanosPerOp()
+    {
+      return nanosPerOp;
+    }
+
+    /**
+     * Print the result, followed by the benchmark's own metrics.
+     */
+    public void print()
+    {
+      StringBuilder line = new StringBuilder(String.format("%-44s %14.1f %10.1f %10.2f %10.1f %10.2f",
+          benchmark, getScore(), getScoreError(), nanosPerOp, getMetric(ALLOCATION),
+          getMetric(CPU_TIME)));
+      for (Map.Entry<String, Object[]> metric : metrics.entrySet())
+      {
+        if (!ALLOCATION.equals(metric.getKey()) && !CPU_TIME.equals(metric.getKey()))
+        {
+          line.append(String.format("  %s %.2f %s", metric.getKey(), (Double)metric.getValue()[1],
+              metric.getValue()[0]));
+        }
+      }
+      System.out.println(line);
+    }
+
+    private void writeJson(PrintWriter out)
+    {
+      double score = getScore();
+      double error = getScoreError();
+
+      out.println("    {");
+      out.println("        \"benchmark\" : " + quote(benchmark) + ",");
+      out.println("        \"mode\" : \"thrpt\",");
+      out.println("        \"threads\" : 1,");
+      out.println("        \"forks\" : 1,");
+      out.println("        \"jvm\" : " + quote(System.getProperty("java.home")) + ",");
+      out.println("        \"jvmArgs\" : [");
+      List<String> jvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
+      for (int i = 0; i < jvmArgs.size(); i++)
+      {
+        out.println("            " + quote(jvmArgs.get(i)) + (i < jvmArgs.size() - 1 ? "," : ""));
+      }
+      out.println("        ],");
+      out.println("        \"jdkVersion\" : " + quote(System.getProperty("java.version")) + ",");
+      out.println("        \"vmName\" : " + quote(System.getProperty("java.vm.name")) + ",");
+      out.println("        \"vmVersion\" : " + quote(System.getProperty("java.vm.version")) + ",");
+      out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+      out.println("        \"measurementIterations\" : " + measuredIterations + ",");
+      if (!params.isEmpty())
+      {
+        out.println("        \"params\" : {");
+        int i = 0;
+        for (Map.Entry<String, String> param : params.entrySet())
+        {
+          out.println("            " + quote(param.getKey()) + " : " + quote(param.getValue()) +
+              (++i < params.size() ? "," : ""));
+        }
+        out.println("        },");
+      }
+
+      out.println("        \"primaryMetric\" : {");
+      out.println("            \"score\" : " + number(score) + ",");
+      out.println("            \"scoreError\" : " + number(error) + ",");
+      out.println("            \"scoreConfidence\" : [" + number(score - error) + ", " +
+          number(score + error) + "],");
+      out.println("            \"scoreUnit\" : \"ops/s\",");
+      StringBuilder raw = new StringBuilder();
+      for (double value : rawData)
+      {
+        raw.append(raw.length() > 0 ? ", " : "").append(number(value));
+      }
+      out.println("            \"rawData\" : [[" + raw + "]]");
+      out.println("        },");
+
+      out.println("        \"secondaryMetrics\" : {");
+      int i = 0;
+      for (Map.Entry<String, Object[]> metric : metrics.entrySet())
+      {
+        String value = number((Double)metric.getValue()[1]);
+        out.println("            " + quote(metric.getKey()) + " : {");
+        out.println("                \"score\" : " + value + ",");
+        out.println("                \"scoreError\" : \"NaN\",");
+        out.println("                \"scoreConfidence\" : [" + value + ", " + value + "],");
+        out.println("                \"scoreUnit\" : " + quote((String)metric.getValue()[0]) + ",");
+        out.println("                \"rawData\" : [[" + value + "]]");
+        out.println("            }" + (++i < metrics.size() ? "," : ""));
+      }
+      out.println("        }");
+    }
+
+  }
+
+}
@@ -0,0 +1,109 @@
+package org.mach30.shepard_ts.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.calibration.LinearCalibration;
+import org.mach30.shepard_ts.storage.CsvRecorder;
+import org.mach30.shepard_ts.storage.FlushPolicy;
+import org.mach30.shepard_ts.storage.RunFile;
+import org.mach30.shepard_ts.storage.RunFileRecorder;
+import org.mach30.shepard_ts.storage.RunHeader;
+import org.mach30.shepard_ts.storage.SampleRecorder;
+
+/**
+ * Measures recording a run to a CSV file and to run files of fixed records
+ * and of compressed blocks, from the first block handed to the recorder until
+ * the file has been closed.  The files go in the temporary directory unless
+ * another is given.  An operation is one sample.
+ *
+ * Usage: RecordingBenchmark [samples] [directory]
+ */
+public class RecordingBenchmark
+{
+
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+
+  public static void main(String[] args) throws Exception
+  {
+    int samples = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    File directory = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+    run(new Harness(WARMUP_ITERATIONS, MEASURED_ITERATIONS), samples, directory);
+  }
+
+  public static void run(Harness harness, int samples, File directory) throws Exception
+  {
+    final SampleBlock[] blocks = Fixtures.sampleBlocks(samples, 256);
+    final File csv = File.createTempFile("bench", ".csv", directory);
+    final File run = File.createTempFile("bench", RunFile.EXTENSION, directory);
+
+    System.out.println(samples + " samples, recording to " + directory);
+    harness.clearParams();
+    harness.setParam("samples", samples);
+    harness.printHeader();
+
+    try
+    {
+      measure(harness, "RecordingBenchmark.csv", samples, csv, new Harness.Iteration() {
+        @Override
+        public void run() throws IOException
+        {
+          record(new CsvRecorder(csv, FlushPolicy.DEFAULT), blocks);
+        }
+      });
+
+      measure(harness, "RecordingBenchmark.runFileFixed", samples, run, new Harness.Iteration() {
+        @Override
+        public void run() throws IOException
+        {
+          record(new RunFileRecorder(run, FlushPolicy.DEFAULT, header(RunFile.ENCODING_FIXED)), blocks);
+        }
+      });
+
+      measure(harness, "RecordingBenchmark.runFileBlocks", samples, run, new Harness.Iteration() {
+        @Override
+        public void run() throws IOException
+        {
+          record(new RunFileRecorder(run, FlushPolicy.DEFAULT, header(RunFile.ENCODING_BLOCKS)), blocks);
+        }
+      });
+    }
+    finally
+    {
+      csv.delete();
+      run.delete();
+    }
+  }
+
+  private static RunHeader header(int encoding)
+  {
+    RunHeader header = RunHeader.forCalibration(LinearCalibration.DEFAULT, "benchmark");
+    header.encoding = encoding;
+    return header;
+  }
+
+  private static void record(SampleRecorder recorder, SampleBlock[] blocks) throws IOException
+  {
+    recorder.start();
+    for (SampleBlock block : blocks)
+    {
+      recorder.handleBlock(block);
+    }
+    recorder.close();
+  }
+
+  /**
+   * Measure recording, along with the size of the file for each sample.
+   */
+  private static void measure(Harness harness, String name, int samples, File file,
+      Harness.Iteration iteration) throws Exception
+  {
+    Harness.Result result = harness.measure(name, samples, iteration);
+    result.addMetric("file", "B/op", (double)file.length() / samples);
+    result.print();
+  }
+
+}
@@ -0,0 +1,52 @@
+package org.mach30.shepard_ts.bench;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+
+/**
+ * A serial port that hands out a prerecorded byte stream in fixed size chunks
+ * instead of talking to hardware.  Like jssc, every read returns a new array.
+ */
+public class ReplaySerialPort extends SerialPort
+{
+  
+  private byte[] data = null;
+  private int chunkSize = 0;
+  private int position = 0;
+  
+  public ReplaySerialPort(byte[] data, int chunkSize)
+  {
+    super("replay");
+    this.data = data;
+    this.chunkSize = chunkSize;
+  }
+  
+  /**
+   * @return The RX event for the next chunk, or null once the stream has been
+   *     consumed
+   */
+  public SerialPortEvent nextEvent()
+  {
+    int count = Math.min(chunkSize, data.length - position);
+    if (count <= 0)
+    {
+      return null;
+    }
+    return new SerialPortEvent(getPortName(), SerialPortEvent.RXCHAR, count);
+  }
+  
+  public void rewind()
+  {
+    position = 0;
+  }
+  
+  @Override
+  public byte[] readBytes(int byteCount)
+  {
+    byte[] ret = new byte[byteCount];
+    System.arraycopy(data, position, ret, 0, byteCount);
+    position += byteCount;
+    return ret;
+  }
+  
+}
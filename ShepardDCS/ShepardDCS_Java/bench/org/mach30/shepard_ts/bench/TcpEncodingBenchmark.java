@@ -0,0 +1,188 @@
+package org.mach30.shepard_ts.bench;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.ShepardData;
+import org.mach30.shepard_ts.server.BinarySampleEncoder;
+
+/**
+ * Compares the ways the TCP collection server can send samples to a client 
+ * over a loopback connection: the original autoflushed println per sample, 
+ * the text protocol written a block at a time, binary frames and compressed
+ * binary frames.
+ * 
+ * Usage: TcpEncodingBenchmark [samples] [block size]
+ */
+public class TcpEncodingBenchmark
+{
+  
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+  
+  public static void main(String[] args) throws Exception
+  {
+    int samples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+    
+    run(new Harness(WARMUP_ITERATIONS, MEASURED_ITERATIONS), samples, blockSize);
+  }
+  
+  public static void run(Harness harness, int samples, int blockSize) throws Exception
+  {
+    final SampleBlock[] blocks = Fixtures.sampleBlocks(samples, blockSize);
+    
+    ServerSocket server = new ServerSocket(0);
+    Socket client = new Socket("localhost", server.getLocalPort());
+    final Socket accepted = server.accept();
+    
+    // the reading side just throws everything away as fast as it can
+    Thread drain = new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        byte[] buf = new byte[64 * 1024];
+        try
+        {
+          InputStream in = accepted.getInputStream();
+          while (in.read(buf) >= 0)
+          {
+          }
+        }
+        catch (IOException ioex)
+        {
+        }
+      }
+    });
+    drain.setDaemon(true);
+    drain.start();
+    
+    final CountingOutputStream out = new CountingOutputStream(client.getOutputStream());
+    final PrintWriter writer = new PrintWriter(out, true);
+    
+    System.out.println(samples + " samples, " + blockSize + " samples/block");
+    harness.clearParams();
+    harness.setParam("samples", samples);
+    harness.setParam("blockSize", blockSize);
+    harness.printHeader();
+    
+    measure(harness, "TcpEncodingBenchmark.textLinePerSample", samples, out, new Harness.Iteration() {
+      private ShepardData datapoint = new ShepardData();
+      
+      @Override
+      public void run()
+      {
+        for (SampleBlock block : blocks)
+        {
+          for (int i = 0; i < block.count; i++)
+          {
+            block.get(i, datapoint);
+            writer.println(datapoint);
+          }
+        }
+      }
+    });
+    
+    measure(harness, "TcpEncodingBenchmark.textBlockAtATime", samples, out, new Harness.Iteration() {
+      private StringBuilder lines = new StringBuilder();
+      
+      @Override
+      public void run()
+      {
+        for (SampleBlock block : blocks)
+        {
+          lines.setLength(0);
+          for (int i = 0; i < block.count; i++)
+          {
+            lines.append(block.time[i]).append(',').append(block.thrust[i])
+                .append(',').append(block.temp[i]).append('\n');
+          }
+          writer.print(lines);
+          writer.flush();
+        }
+      }
+    });
+    
+    measure(harness, "TcpEncodingBenchmark.binaryFrames", samples, out, new Harness.Iteration() {
+      private BinarySampleEncoder encoder = new BinarySampleEncoder(64 * 1024);
+      
+      @Override
+      public void run() throws IOException
+      {
+        for (SampleBlock block : blocks)
+        {
+          encoder.encodeSamples(block);
+          encoder.writeTo(out);
+        }
+      }
+    });
+    
+    measure(harness, "TcpEncodingBenchmark.compressedFrames", samples, out, new Harness.Iteration() {
+      private BinarySampleEncoder encoder = new BinarySampleEncoder(64 * 1024);
+      
+      @Override
+      public void run() throws IOException
+      {
+        for (SampleBlock block : blocks)
+        {
+          encoder.encodeCompressedSamples(block);
+          encoder.writeTo(out);
+        }
+      }
+    });
+    
+    client.close();
+    accepted.close();
+    server.close();
+  }
+  
+  /**
+   * Measure sending the samples, along with the bytes sent for each.  An
+   * operation is one sample.
+   */
+  private static void measure(Harness harness, String name, int samples, CountingOutputStream out,
+      Harness.Iteration iteration) throws Exception
+  {
+    long bytes = out.count;
+    iteration.run();
+    bytes = out.count - bytes;
+    
+    Harness.Result result = harness.measure(name, samples, iteration);
+    result.addMetric("sent", "B/op", (double)bytes / samples);
+    result.print();
+  }
+  
+  /**
+   * Passes everything through while counting the bytes written.
+   */
+  private static class CountingOutputStream extends FilterOutputStream
+  {
+    long count = 0;
+    
+    CountingOutputStream(OutputStream out)
+    {
+      super(out);
+    }
+    
+    @Override
+    public void write(int b) throws IOException
+    {
+      out.write(b);
+      ++count;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+  
+}
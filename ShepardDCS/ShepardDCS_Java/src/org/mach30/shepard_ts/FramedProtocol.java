@@ -0,0 +1,120 @@
+package org.mach30.shepard_ts;
+
+/**
+ * Version 2 of the protocol the Shepard DCS hardware sends its readings in.
+ * Unlike the control codes of version 1, whose bytes can also turn up inside
+ * the values, the samples are sent in frames that can be found again after
+ * any corruption and are checked before they are used:
+ *
+ *   0xa5 0x5a  sync word
+ *   u16        sequence number, one more than the last frame's, wrapping
+ *   u8         number of samples, from 1 to 255
+ *   u8         number of channels, the readings in each sample, from 1 to 4
+ *   samples    each a u32 time stamp in milliseconds followed by a u16
+ *              reading for each channel: the thrust ADC reading, then the
+ *              signed temperature in hundredths of a degree Celsius
+ *   u16        CRC-16/CCITT-FALSE of everything from the sequence number on
+ *
+ * Every value is big-endian, as in version 1.  A host that understands frames
+ * asks for the protocol version after the discovery command, and firmware
+ * that can send frames answers with the version command followed by its
+ * version, and sends frames from then on.  Version 1 firmware ignores the
+ * question, so it keeps sending control codes.  The discovery command makes
+ * the firmware forget the question, so a host that gives up waiting for the
+ * answer sends it again before settling on control codes.
+ */
+public class FramedProtocol
+{
+
+  public static final int VERSION = 2;
+  public static final byte VERSION_COMMAND = (byte)0x56; // V
+
+  public static final int SYNC_1 = 0xa5;
+  public static final int SYNC_2 = 0x5a;
+
+  // sync word, sequence number, sample count and channel count
+  public static final int HEADER_SIZE = 6;
+  public static final int CRC_SIZE = 2;
+  public static final int TIME_SIZE = 4;
+  public static final int CHANNELS = 2;
+  public static final int MAX_CHANNELS = 4;
+  public static final int MAX_SAMPLES = 255;
+
+  private static final int CRC_INITIAL = 0xffff;
+  private static final int CRC_POLYNOMIAL = 0x1021;
+  private static final int[] CRC_TABLE = new int[256];
+
+  static
+  {
+    for (int i = 0; i < 256; i++)
+    {
+      int crc = i << 8;
+      for (int bit = 0; bit < 8; bit++)
+      {
+        crc = (crc & 0x8000) != 0 ? (crc << 1) ^ CRC_POLYNOMIAL : crc << 1;
+      }
+      CRC_TABLE[i] = crc & 0xffff;
+    }
+  }
+
+
+  /**
+   * @return The CRC-16/CCITT-FALSE of the bytes, a byte at a time from a table
+   */
+  public static int crc(byte[] data, int offset, int length)
+  {
+    int crc = CRC_INITIAL;
+    int end = offset + length;
+    for (int i = offset; i < end; i++)
+    {
+      crc = (crc << 8) ^ CRC_TABLE[((crc >> 8) ^ data[i]) & 0xff];
+    }
+    return crc & 0xffff;
+  }
+
+  /**
+   * @return The size of a frame of samples with the given number of channels
+   */
+  public static int frameSize(int samples, int channels)
+  {
+    return HEADER_SIZE + samples * (TIME_SIZE + 2 * channels) + CRC_SIZE;
+  }
+
+  /**
+   * Write a frame of thrust and temperature samples, as the firmware does.
+   * @param out The buffer to write to, with room for frameSize bytes
+   * @param sequence The frame's sequence number
+   * @param first The first sample in the block to send
+   * @param count The number of samples to send, at most MAX_SAMPLES
+   * @return The number of bytes written
+   */
+  public static int encode(byte[] out, int offset, int sequence, SampleBlock block, int first, int count)
+  {
+    int pos = offset;
+    out[pos++] = (byte)SYNC_1;
+    out[pos++] = (byte)SYNC_2;
+    out[pos++] = (byte)(sequence >> 8);
+    out[pos++] = (byte)sequence;
+    out[pos++] = (byte)count;
+    out[pos++] = (byte)CHANNELS;
+
+    for (int i = first; i < first + count; i++)
+    {
+      long time = block.time[i];
+      out[pos++] = (byte)(time >> 24);
+      out[pos++] = (byte)(time >> 16);
+      out[pos++] = (byte)(time >> 8);
+      out[pos++] = (byte)time;
+      out[pos++] = (byte)(block.rawThrust[i] >> 8);
+      out[pos++] = (byte)block.rawThrust[i];
+      out[pos++] = (byte)(block.rawTemp[i] >> 8);
+      out[pos++] = (byte)block.rawTemp[i];
+    }
+
+    int crc = crc(out, offset + 2, pos - offset - 2);
+    out[pos++] = (byte)(crc >> 8);
+    out[pos++] = (byte)crc;
+    return pos - offset;
+  }
+
+}
@@ -0,0 +1,137 @@
+package org.mach30.shepard_ts;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mach30.shepard_ts.calibration.Calibration;
+
+/**
+ * A batch of samples stored as parallel arrays, so that consumers can work 
+ * through hundreds of samples per call.  Only the first count entries of each
+ * array are valid.
+ * 
+ * Samples are added with the raw readings from the device, and the thrust
+ * and temperature are only valid once a Calibration has been applied to the
+ * block, which the pipeline does before handing a block to its sinks.
+ * 
+ * When several devices are merged into one stream, each sample is tagged 
+ * with the channel of the device it came from.  Otherwise the channel is 0.
+ * 
+ * Blocks are pooled.  A block handed to a consumer is only valid for the
+ * duration of the call, unless the consumer calls retain, in which case it 
+ * must call release once it is done with the block.
+ */
+public class SampleBlock
+{
+  
+  public long[] time = null;
+  public int[] rawThrust = null;
+  public int[] rawTemp = null;
+  public float[] thrust = null;
+  public float[] temp = null;
+  public int[] channel = null;
+  public int count = 0;
+  // the calibration last applied, or null if there hasn't been one
+  public Calibration calibration = null;
+  
+  private SampleBlockPool pool = null;
+  private AtomicInteger references = new AtomicInteger();
+  
+  
+  public SampleBlock(int capacity)
+  {
+    this(capacity, null);
+  }
+  
+  SampleBlock(int capacity, SampleBlockPool pool)
+  {
+    time = new long[capacity];
+    rawThrust = new int[capacity];
+    rawTemp = new int[capacity];
+    thrust = new float[capacity];
+    temp = new float[capacity];
+    channel = new int[capacity];
+    this.pool = pool;
+  }
+  
+  public int capacity()
+  {
+    return time.length;
+  }
+  
+  public boolean isFull()
+  {
+    return count == time.length;
+  }
+  
+  public boolean isEmpty()
+  {
+    return count == 0;
+  }
+  
+  /**
+   * Append a sample.  The caller is responsible for checking that the block 
+   * isn't full.
+   */
+  public void add(long time, int rawThrust, int rawTemp)
+  {
+    add(time, rawThrust, rawTemp, 0);
+  }
+  
+  /**
+   * Append a sample from one of several devices.  The caller is responsible
+   * for checking that the block isn't full.
+   */
+  public void add(long time, int rawThrust, int rawTemp, int channel)
+  {
+    this.time[count] = time;
+    this.rawThrust[count] = rawThrust;
+    this.rawTemp[count] = rawTemp;
+    this.channel[count] = channel;
+    ++count;
+  }
+  
+  /**
+   * Copy a sample into a ShepardData.
+   */
+  public void get(int idx, ShepardData datapoint)
+  {
+    datapoint.time = time[idx];
+    datapoint.thrust = thrust[idx];
+    datapoint.temp = temp[idx];
+  }
+  
+  public void clear()
+  {
+    count = 0;
+    calibration = null;
+  }
+  
+  /**
+   * Keep the block after the call it was handed to returns.
+   */
+  public void retain()
+  {
+    references.incrementAndGet();
+  }
+  
+  /**
+   * Give up a reference to the block, returning it to its pool once nobody 
+   * holds it.
+   */
+  public void release()
+  {
+    if (references.decrementAndGet() <= 0 && pool != null)
+    {
+      references.set(0);
+      clear();
+      pool.recycle(this);
+    }
+  }
+  
+  void acquired()
+  {
+    references.set(1);
+    clear();
+  }
+  
+}
@@ -0,0 +1,398 @@
+package org.mach30.shepard_ts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Compresses blocks of samples for storage and transmission.  Each encoded
+ * block stands on its own, so a block can be decoded without the ones before
+ * it, and ends with a checksum so corruption is caught instead of decoded.
+ *
+ *   varint  number of samples
+ *   byte    how the readings are stored, COUNTS, or CHANNEL_COUNTS when
+ *           the samples come from several devices
+ *   varint  time of the first sample in milliseconds
+ *   column  the change in the time step for each following sample, the
+ *           first step counting as a change from 0
+ *   column  the change in the raw thrust reading for each sample, the first
+ *           reading counting as a change from 0
+ *   column  the same for the raw temperature reading
+ *   column  for CHANNEL_COUNTS, the same for the channel of each sample
+ *   u32     CRC-32 of everything above, little-endian
+ *
+ * A column is a run of entries, each a varint holding the zig-zag encoded
+ * value shifted left a bit, with the low bit set when the value repeats, in
+ * which case a second varint holds the number of extra repeats.  The time
+ * step, and the readings of a motor that isn't firing, mostly don't change,
+ * so most columns collapse to a few bytes, and the rest of the values are one
+ * or two bytes each.
+ *
+ * Only the times, raw readings and channels are stored.  Decoding leaves the
+ * block uncalibrated, for the caller to apply whichever calibration it needs.
+ * A block is only written as CHANNEL_COUNTS if one of its samples has a
+ * channel other than 0, so the blocks of a single device stay readable by
+ * decoders that predate channels.
+ *
+ * Times are the device's unsigned 32 bit milliseconds.  A codec reuses its
+ * working arrays, so each thread needs its own.
+ */
+public class SampleBlockCodec
+{
+
+  public static final byte COUNTS = 0;
+  public static final byte CHANNEL_COUNTS = 1;
+
+  // count, encoding and first time, then per sample a time step, two
+  // readings and a channel, and the checksum
+  private static final int FIXED_SIZE = 5 + 1 + 10 + 4;
+  private static final int MAX_SAMPLE_SIZE = 10 + 5 + 5 + 5;
+
+  private CRC32 crc = new CRC32();
+
+  // the block being decoded
+  private byte[] data = null;
+  private byte[] scratch = new byte[0];
+  private int position = 0;
+  private int limit = 0;
+
+
+  /**
+   * @return The most bytes a block of the given number of samples can take
+   */
+  public static int maxEncodedSize(int samples)
+  {
+    return FIXED_SIZE + samples * MAX_SAMPLE_SIZE;
+  }
+
+  /**
+   * Append a block holding every sample in the block.
+   * @param out The buffer to append to, with at least maxEncodedSize bytes
+   *     remaining
+   * @return The number of bytes appended
+   */
+  public int encode(SampleBlock block, ByteBuffer out)
+  {
+    return encode(block, 0, block.count, out);
+  }
+
+  /**
+   * Append a block holding some of the samples in the block.
+   * @param out The buffer to append to, with at least maxEncodedSize bytes
+   *     remaining
+   * @return The number of bytes appended
+   */
+  public int encode(SampleBlock block, int first, int count, ByteBuffer out)
+  {
+    int start = out.position();
+
+    boolean channels = hasChannels(block, first, count);
+    putVarLong(out, count);
+    out.put(channels ? CHANNEL_COUNTS : COUNTS);
+    if (count > 0)
+    {
+      putVarLong(out, block.time[first]);
+      putTimes(out, block.time, first, count);
+      putCounts(out, block.rawThrust, first, count);
+      putCounts(out, block.rawTemp, first, count);
+      if (channels)
+      {
+        putCounts(out, block.channel, first, count);
+      }
+    }
+
+    putIntLE(out, checksum(out, start, out.position()));
+    return out.position() - start;
+  }
+
+  private static boolean hasChannels(SampleBlock block, int first, int count)
+  {
+    for (int i = first; i < first + count; i++)
+    {
+      if (block.channel[i] != 0)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void putTimes(ByteBuffer out, long[] time, int first, int count)
+  {
+    long step = 0;
+    long value = 0;
+    long repeats = -1;
+    for (int i = first + 1; i < first + count; i++)
+    {
+      long nextStep = time[i] - time[i - 1];
+      long change = nextStep - step;
+      step = nextStep;
+
+      if (repeats >= 0 && change == value)
+      {
+        ++repeats;
+        continue;
+      }
+      if (repeats >= 0)
+      {
+        putEntry(out, value, repeats);
+      }
+      value = change;
+      repeats = 0;
+    }
+    if (repeats >= 0)
+    {
+      putEntry(out, value, repeats);
+    }
+  }
+
+  private static void putCounts(ByteBuffer out, int[] counts, int first, int count)
+  {
+    int previous = 0;
+    long value = 0;
+    long repeats = -1;
+    for (int i = first; i < first + count; i++)
+    {
+      long change = (long)counts[i] - previous;
+      previous = counts[i];
+
+      if (repeats >= 0 && change == value)
+      {
+        ++repeats;
+        continue;
+      }
+      if (repeats >= 0)
+      {
+        putEntry(out, value, repeats);
+      }
+      value = change;
+      repeats = 0;
+    }
+    if (repeats >= 0)
+    {
+      putEntry(out, value, repeats);
+    }
+  }
+
+  private static void putEntry(ByteBuffer out, long value, long repeats)
+  {
+    long zigzag = (value << 1) ^ (value >> 63);
+    if (repeats == 0)
+    {
+      putVarLong(out, zigzag << 1);
+    }
+    else
+    {
+      putVarLong(out, (zigzag << 1) | 1);
+      putVarLong(out, repeats);
+    }
+  }
+
+  /**
+   * @return The number of samples in the block starting at the buffer's
+   *     position, which is left where it is
+   * @throws IOException If the count is corrupt
+   */
+  public static long getCount(ByteBuffer in) throws IOException
+  {
+    in = in.duplicate();
+    long value = 0;
+    for (int shift = 0; shift < 64 && in.hasRemaining(); shift += 7)
+    {
+      byte b = in.get();
+      value |= (long)(b & 0x7f) << shift;
+      if (b >= 0)
+      {
+        return value;
+      }
+    }
+    throw new IOException("Corrupt block count");
+  }
+
+  /**
+   * Decode a block, appending its samples to a sample block, uncalibrated.
+   * If the block is corrupt, nothing is appended.
+   * @param in Positioned at the start of the block, and left after its end
+   * @param block The block to append to
+   * @return The number of samples appended
+   * @throws IOException If the block is corrupt or doesn't fit
+   */
+  public int decode(ByteBuffer in, SampleBlock block) throws IOException
+  {
+    // decoding from an array is much quicker than a byte at a time from the
+    // buffer
+    int start = 0;
+    if (in.hasArray())
+    {
+      data = in.array();
+      start = in.arrayOffset() + in.position();
+      limit = in.arrayOffset() + in.limit();
+    }
+    else
+    {
+      limit = Math.min(in.remaining(), maxEncodedSize(block.capacity()));
+      if (scratch.length < limit)
+      {
+        scratch = new byte[maxEncodedSize(block.capacity())];
+      }
+      in.duplicate().get(scratch, 0, limit);
+      data = scratch;
+    }
+    position = start;
+
+    int first = block.count;
+    long count = getVarLong();
+    if (count < 0 || count > block.capacity() - first)
+    {
+      throw new IOException("Block of " + count + " samples doesn't fit");
+    }
+    int end = first + (int)count;
+    byte encoding = getByte();
+    if (encoding != COUNTS && encoding != CHANNEL_COUNTS)
+    {
+      throw new IOException("Unknown block encoding " + encoding);
+    }
+
+    if (count > 0)
+    {
+      getTimes(block.time, first, end, getVarLong());
+      getCounts(block.rawThrust, first, end);
+      getCounts(block.rawTemp, first, end);
+      if (encoding == CHANNEL_COUNTS)
+      {
+        getCounts(block.channel, first, end);
+      }
+      else
+      {
+        Arrays.fill(block.channel, first, end, 0);
+      }
+    }
+
+    crc.reset();
+    crc.update(data, start, position - start);
+    if (getIntLE() != (int)crc.getValue())
+    {
+      throw new IOException("Block checksum mismatch");
+    }
+
+    in.position(in.position() + position - start);
+    data = null;
+    block.count = end;
+    block.calibration = null;
+    return end - first;
+  }
+
+  private void getTimes(long[] time, int first, int end, long start) throws IOException
+  {
+    time[first] = start;
+    long step = 0;
+    int i = first + 1;
+    while (i < end)
+    {
+      long entry = getVarLong();
+      long change = unzigzag(entry >>> 1);
+      long repeats = (entry & 1) != 0 ? getVarLong() : 0;
+      if (repeats >= end - i)
+      {
+        throw new IOException("Column overruns the block");
+      }
+      for (long r = 0; r <= repeats; r++, i++)
+      {
+        step += change;
+        time[i] = time[i - 1] + step;
+      }
+    }
+  }
+
+  private void getCounts(int[] counts, int first, int end) throws IOException
+  {
+    int raw = 0;
+    int i = first;
+    while (i < end)
+    {
+      long entry = getVarLong();
+      int change = (int)unzigzag(entry >>> 1);
+      long repeats = (entry & 1) != 0 ? getVarLong() : 0;
+      if (repeats >= end - i)
+      {
+        throw new IOException("Column overruns the block");
+      }
+      for (long r = 0; r <= repeats; r++, i++)
+      {
+        raw += change;
+        counts[i] = raw;
+      }
+    }
+  }
+
+  private byte getByte() throws IOException
+  {
+    if (position >= limit)
+    {
+      throw new IOException("Block is truncated");
+    }
+    return data[position++];
+  }
+
+  private long getVarLong() throws IOException
+  {
+    // most values fit in a byte
+    if (position < limit && data[position] >= 0)
+    {
+      return data[position++];
+    }
+
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      byte b = getByte();
+      value |= (long)(b & 0x7f) << shift;
+      if (b >= 0)
+      {
+        return value;
+      }
+    }
+    throw new IOException("Varint is too long");
+  }
+
+  private int getIntLE() throws IOException
+  {
+    return (getByte() & 0xff) | (getByte() & 0xff) << 8 | (getByte() & 0xff) << 16 |
+        (getByte() & 0xff) << 24;
+  }
+
+  private int checksum(ByteBuffer buffer, int start, int end)
+  {
+    ByteBuffer range = buffer.duplicate();
+    range.limit(end);
+    range.position(start);
+    crc.reset();
+    crc.update(range);
+    return (int)crc.getValue();
+  }
+
+  private static long unzigzag(long zigzag)
+  {
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+  private static void putVarLong(ByteBuffer out, long value)
+  {
+    while ((value & ~0x7fL) != 0)
+    {
+      out.put((byte)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte)value);
+  }
+
+  private static void putIntLE(ByteBuffer out, int value)
+  {
+    out.put((byte)value);
+    out.put((byte)(value >>> 8));
+    out.put((byte)(value >>> 16));
+    out.put((byte)(value >>> 24));
+  }
+
+}
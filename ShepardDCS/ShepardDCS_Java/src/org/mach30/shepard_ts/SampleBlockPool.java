@@ -0,0 +1,50 @@
+package org.mach30.shepard_ts;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of equally sized SampleBlocks.  When the pool is empty a new 
+ * block is created, and blocks released to a full pool are left to the 
+ * garbage collector, so neither call ever blocks.
+ */
+public class SampleBlockPool
+{
+  
+  private int blockSize = 0;
+  private ArrayBlockingQueue<SampleBlock> free = null;
+  
+  /**
+   * @param blockSize The capacity of each block
+   * @param maxPooled The number of idle blocks to keep for reuse
+   */
+  public SampleBlockPool(int blockSize, int maxPooled)
+  {
+    this.blockSize = blockSize;
+    free = new ArrayBlockingQueue<SampleBlock>(maxPooled);
+  }
+  
+  public int getBlockSize()
+  {
+    return blockSize;
+  }
+  
+  /**
+   * Get an empty block, which the caller must release once done with.
+   */
+  public SampleBlock acquire()
+  {
+    SampleBlock block = free.poll();
+    if (block == null)
+    {
+      block = new SampleBlock(blockSize, this);
+    }
+    block.acquired();
+    return block;
+  }
+  
+  void recycle(SampleBlock block)
+  {
+    free.offer(block);
+  }
+  
+}
@@ -0,0 +1,154 @@
+package org.mach30.shepard_ts.calibration;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * Converts the raw readings from the device to newtons and degrees Celsius.
+ * Samples carry their raw readings through the pipeline and into storage,
+ * and a calibration is applied a block at a time wherever the values are
+ * needed, so a run can be recalibrated long after the motor was fired.
+ *
+ * Every calibration can be described by a polynomial in the raw reading for
+ * each channel, which is how it is stored with a run and sent to clients.
+ * Calibrations never change once created, so they can be shared between
+ * threads.
+ */
+public abstract class Calibration
+{
+
+  /**
+   * @return The thrust in newtons for a raw thrust reading
+   */
+  public abstract float toNewtons(int rawThrust);
+
+  /**
+   * @return The temperature in degrees Celsius for a raw temperature reading
+   */
+  public abstract float toDegrees(int rawTemp);
+
+  /**
+   * @return The coefficients of the thrust polynomial, constant term first
+   */
+  public abstract double[] getThrustCoefficients();
+
+  /**
+   * @return The coefficients of the temperature polynomial, constant term
+   *     first
+   */
+  public abstract double[] getTempCoefficients();
+
+  /**
+   * Fill in the thrust and temperature of every sample in the block from its
+   * raw readings.
+   */
+  public void apply(SampleBlock block)
+  {
+    for (int i = 0; i < block.count; i++)
+    {
+      block.thrust[i] = toNewtons(block.rawThrust[i]);
+      block.temp[i] = toDegrees(block.rawTemp[i]);
+    }
+    block.calibration = this;
+  }
+
+  /**
+   * Create the calibration described by the given polynomials, which is a
+   * LinearCalibration if neither is of a higher degree.
+   */
+  public static Calibration fromCoefficients(double[] thrust, double[] temp)
+  {
+    if (thrust.length <= 2 && temp.length <= 2)
+    {
+      return new LinearCalibration(coefficient(thrust, 1), coefficient(thrust, 0),
+          coefficient(temp, 1), coefficient(temp, 0));
+    }
+    return new PolynomialCalibration(thrust, temp);
+  }
+
+  /**
+   * Fit a calibration to the points recorded for each sensor by the
+   * calibration utility.
+   * @param thrustFile The thrust points, or null to keep the default thrust
+   *     calibration
+   * @param tempFile The temperature points, or null to keep the default
+   *     temperature calibration
+   * @param degree The degree of the polynomials to fit, 1 for straight lines
+   * @throws IOException If a file can't be read, or its points can't be
+   *     fitted by a polynomial of that degree
+   */
+  public static Calibration load(File thrustFile, File tempFile, int degree) throws IOException
+  {
+    double[] thrust = thrustFile != null ? fit(thrustFile, degree) :
+        LinearCalibration.DEFAULT.getThrustCoefficients();
+    double[] temp = tempFile != null ? fit(tempFile, degree) :
+        LinearCalibration.DEFAULT.getTempCoefficients();
+    return fromCoefficients(thrust, temp);
+  }
+
+  private static double[] fit(File file, int degree) throws IOException
+  {
+    try
+    {
+      return CalibrationPoints.read(file).fit(degree);
+    }
+    catch (IllegalArgumentException iaex)
+    {
+      throw new IOException(file + ": " + iaex.getMessage());
+    }
+  }
+
+  /**
+   * @return The value of the polynomial at x
+   */
+  static double evaluate(double[] coefficients, double x)
+  {
+    double ret = 0;
+    for (int i = coefficients.length - 1; i >= 0; i--)
+    {
+      ret = ret * x + coefficients[i];
+    }
+    return ret;
+  }
+
+  private static double coefficient(double[] coefficients, int power)
+  {
+    return power < coefficients.length ? coefficients[power] : 0;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "thrust " + toString(getThrustCoefficients()) + ", temperature " +
+        toString(getTempCoefficients());
+  }
+
+  static String toString(double[] coefficients)
+  {
+    StringBuilder ret = new StringBuilder();
+    for (int i = coefficients.length - 1; i >= 0; i--)
+    {
+      if (ret.length() > 0)
+      {
+        ret.append(coefficients[i] < 0 ? " - " : " + ");
+        ret.append(Math.abs(coefficients[i]));
+      }
+      else
+      {
+        ret.append(coefficients[i]);
+      }
+      if (i > 1)
+      {
+        ret.append("x^").append(i);
+      }
+      else if (i == 1)
+      {
+        ret.append('x');
+      }
+    }
+    return ret.length() > 0 ? ret.toString() : "0";
+  }
+
+}
@@ -0,0 +1,234 @@
+package org.mach30.shepard_ts.calibration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The raw and real value pairs recorded for one sensor with the calibration
+ * utility in tools/Calibration_Util_Processing, one comma separated pair per
+ * line after its "Raw (X),Real (Y)" heading.  Lines that aren't a pair of
+ * numbers, like the heading, are skipped.
+ *
+ * Usage: CalibrationPoints points-file [degree]
+ */
+public class CalibrationPoints
+{
+
+  // higher degrees fit the noise in a handful of points rather than the
+  // sensor
+  public static final int MAX_DEGREE = 5;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private double[] raw = new double[16];
+  private double[] real = new double[16];
+  private int count = 0;
+
+
+  public CalibrationPoints()
+  {
+  }
+
+  public static void main(String[] args)
+  {
+    if (args.length < 1)
+    {
+      System.err.println("Usage: CalibrationPoints points-file [degree]");
+      System.exit(1);
+    }
+
+    try
+    {
+      CalibrationPoints points = read(new File(args[0]));
+      int degree = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+      double[] coefficients = points.fit(degree);
+      System.out.println(points.count + " points, fitted by " + Calibration.toString(coefficients));
+      System.out.println("RAW,REAL,FITTED,RESIDUAL");
+      for (int i = 0; i < points.count; i++)
+      {
+        double fitted = Calibration.evaluate(coefficients, points.raw[i]);
+        System.out.println(points.raw[i] + "," + points.real[i] + "," + fitted + "," +
+            (points.real[i] - fitted));
+      }
+    }
+    catch (NumberFormatException nfex)
+    {
+      System.err.println("Invalid number: " + nfex.getMessage());
+      System.exit(1);
+    }
+    catch (IllegalArgumentException iaex)
+    {
+      System.err.println(iaex.getMessage());
+      System.exit(1);
+    }
+    catch (IOException ioex)
+    {
+      System.err.println("Unable to read " + args[0] + ": " + ioex.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Read the points from a calibration file.
+   * @throws IOException If the file can't be read or holds no points
+   */
+  public static CalibrationPoints read(File file) throws IOException
+  {
+    CalibrationPoints points = new CalibrationPoints();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+    try
+    {
+      String line = null;
+      while ((line = in.readLine()) != null)
+      {
+        String[] values = line.split(",");
+        if (values.length != 2)
+        {
+          continue;
+        }
+        try
+        {
+          points.add(Double.parseDouble(values[0].trim()), Double.parseDouble(values[1].trim()));
+        }
+        catch (NumberFormatException nfex)
+        {
+        }
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+
+    if (points.count == 0)
+    {
+      throw new IOException("No calibration points in " + file);
+    }
+    return points;
+  }
+
+  public void add(double raw, double real)
+  {
+    if (count == this.raw.length)
+    {
+      this.raw = Arrays.copyOf(this.raw, count * 2);
+      this.real = Arrays.copyOf(this.real, count * 2);
+    }
+    this.raw[count] = raw;
+    this.real[count] = real;
+    ++count;
+  }
+
+  public int getCount()
+  {
+    return count;
+  }
+
+  /**
+   * Fit a polynomial to the points by least squares.
+   * @param degree The degree of the polynomial, 1 for a straight line
+   * @return The coefficients, constant term first
+   * @throws IllegalArgumentException If there aren't enough distinct raw
+   *     values for a polynomial of that degree
+   */
+  public double[] fit(int degree)
+  {
+    if (degree < 1 || degree > MAX_DEGREE)
+    {
+      throw new IllegalArgumentException("Calibrations can be of degree 1 to " + MAX_DEGREE);
+    }
+    int n = degree + 1;
+    if (count < n)
+    {
+      throw new IllegalArgumentException("Fitting a degree " + degree + " calibration needs at least " +
+          n + " points, there are " + count);
+    }
+
+    // the raw values go up to the thousands, so their powers are scaled down
+    // to keep the normal equations well conditioned
+    double scale = 0;
+    for (int i = 0; i < count; i++)
+    {
+      scale = Math.max(scale, Math.abs(raw[i]));
+    }
+    if (scale == 0)
+    {
+      scale = 1;
+    }
+
+    // the normal equations, with the right hand side in the last column
+    double[][] a = new double[n][n + 1];
+    double[] powers = new double[2 * n - 1];
+    for (int p = 0; p < count; p++)
+    {
+      double x = raw[p] / scale;
+      powers[0] = 1;
+      for (int k = 1; k < powers.length; k++)
+      {
+        powers[k] = powers[k - 1] * x;
+      }
+      for (int i = 0; i < n; i++)
+      {
+        for (int j = 0; j < n; j++)
+        {
+          a[i][j] += powers[i + j];
+        }
+        a[i][n] += powers[i] * real[p];
+      }
+    }
+
+    // gaussian elimination with partial pivoting
+    for (int col = 0; col < n; col++)
+    {
+      int pivot = col;
+      for (int row = col + 1; row < n; row++)
+      {
+        if (Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+        {
+          pivot = row;
+        }
+      }
+      if (Math.abs(a[pivot][col]) < 1e-12 * count)
+      {
+        throw new IllegalArgumentException("The points don't have enough distinct raw values for a degree " +
+            degree + " calibration");
+      }
+      double[] swap = a[col];
+      a[col] = a[pivot];
+      a[pivot] = swap;
+
+      for (int row = col + 1; row < n; row++)
+      {
+        double factor = a[row][col] / a[col][col];
+        for (int k = col; k <= n; k++)
+        {
+          a[row][k] -= factor * a[col][k];
+        }
+      }
+    }
+
+    double[] coefficients = new double[n];
+    for (int row = n - 1; row >= 0; row--)
+    {
+      double sum = a[row][n];
+      for (int k = row + 1; k < n; k++)
+      {
+        sum -= a[row][k] * coefficients[k];
+      }
+      coefficients[row] = sum / a[row][row];
+    }
+    double power = 1;
+    for (int k = 0; k < n; k++)
+    {
+      coefficients[k] /= power;
+      power *= scale;
+    }
+    return coefficients;
+  }
+
+}
@@ -0,0 +1,149 @@
+package org.mach30.shepard_ts.calibration;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * A calibration that scales and offsets each raw reading.  The block
+ * conversion is a plain multiply and add over the columns, which the JIT
+ * compiles to vector instructions.
+ */
+public class LinearCalibration extends Calibration
+{
+
+  // the load cell calibration the firmware was built with, 0.0095566744 lbf
+  // per count and -0.0652739447 lbf at zero counts at 4.448 N per lbf, and
+  // the temperature, which is sent in hundredths of a degree
+  public static final LinearCalibration DEFAULT = new FirmwareCalibration();
+
+  private double thrustScale = 0;
+  private double thrustOffset = 0;
+  private double tempScale = 0;
+  private double tempOffset = 0;
+
+  // the same, for the conversion itself
+  private float thrustScaleF = 0;
+  private float thrustOffsetF = 0;
+  private float tempScaleF = 0;
+  private float tempOffsetF = 0;
+
+
+  /**
+   * @param thrustScale Newtons per raw thrust count
+   * @param thrustOffset Newtons at zero counts
+   * @param tempScale Degrees per raw temperature count
+   * @param tempOffset Degrees at zero counts
+   */
+  public LinearCalibration(double thrustScale, double thrustOffset, double tempScale, double tempOffset)
+  {
+    this.thrustScale = thrustScale;
+    this.thrustOffset = thrustOffset;
+    this.tempScale = tempScale;
+    this.tempOffset = tempOffset;
+
+    thrustScaleF = (float)thrustScale;
+    thrustOffsetF = (float)thrustOffset;
+    tempScaleF = (float)tempScale;
+    tempOffsetF = (float)tempOffset;
+  }
+
+  @Override
+  public float toNewtons(int rawThrust)
+  {
+    return thrustScaleF * rawThrust + thrustOffsetF;
+  }
+
+  @Override
+  public float toDegrees(int rawTemp)
+  {
+    return tempScaleF * rawTemp + tempOffsetF;
+  }
+
+  @Override
+  public void apply(SampleBlock block)
+  {
+    int count = block.count;
+    int[] rawThrust = block.rawThrust;
+    float[] thrust = block.thrust;
+    for (int i = 0; i < count; i++)
+    {
+      thrust[i] = thrustScaleF * rawThrust[i] + thrustOffsetF;
+    }
+
+    int[] rawTemp = block.rawTemp;
+    float[] temp = block.temp;
+    for (int i = 0; i < count; i++)
+    {
+      temp[i] = tempScaleF * rawTemp[i] + tempOffsetF;
+    }
+    block.calibration = this;
+  }
+
+  @Override
+  public double[] getThrustCoefficients()
+  {
+    return new double[] {thrustOffset, thrustScale};
+  }
+
+  @Override
+  public double[] getTempCoefficients()
+  {
+    return new double[] {tempOffset, tempScale};
+  }
+
+
+  /**
+   * The default calibration, worked out in exactly the float arithmetic the
+   * server has always used, so that the values sent to text clients and
+   * written to CSV files are the same to the last digit.  Folding the
+   * conversion to Newtons into the coefficients, or multiplying by 0.01
+   * rather than dividing by 100, changes the last bit of many readings,
+   * which shows in their decimal form.
+   */
+  private static class FirmwareCalibration extends LinearCalibration
+  {
+
+    private static final float LBF_PER_COUNT = 0.0095566744f;
+    private static final float LBF_AT_ZERO = 0.0652739447f;
+    private static final float NEWTONS_PER_LBF = 4.448f;
+    private static final float COUNTS_PER_DEGREE = 100.0f;
+
+    FirmwareCalibration()
+    {
+      super(0.0095566744 * 4.448, -0.0652739447 * 4.448, 0.01, 0);
+    }
+
+    @Override
+    public float toNewtons(int rawThrust)
+    {
+      return (LBF_PER_COUNT * (float)rawThrust - LBF_AT_ZERO) * NEWTONS_PER_LBF;
+    }
+
+    @Override
+    public float toDegrees(int rawTemp)
+    {
+      return rawTemp / COUNTS_PER_DEGREE;
+    }
+
+    @Override
+    public void apply(SampleBlock block)
+    {
+      int count = block.count;
+      int[] rawThrust = block.rawThrust;
+      float[] thrust = block.thrust;
+      for (int i = 0; i < count; i++)
+      {
+        thrust[i] = (LBF_PER_COUNT * (float)rawThrust[i] - LBF_AT_ZERO) * NEWTONS_PER_LBF;
+      }
+
+      int[] rawTemp = block.rawTemp;
+      float[] temp = block.temp;
+      for (int i = 0; i < count; i++)
+      {
+        temp[i] = rawTemp[i] / COUNTS_PER_DEGREE;
+      }
+      block.calibration = this;
+    }
+
+  }
+
+}
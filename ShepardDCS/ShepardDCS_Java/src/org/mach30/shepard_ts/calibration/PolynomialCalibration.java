@@ -0,0 +1,87 @@
+package org.mach30.shepard_ts.calibration;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * A calibration that evaluates a polynomial in each raw reading.  The thrust
+ * ADC is 10 bits, so the thrust of every reading it can send is worked out
+ * up front and converting a sample is a single table lookup.  Thrust
+ * readings outside the table, and temperatures, are evaluated directly.
+ */
+public class PolynomialCalibration extends Calibration
+{
+
+  public static final int THRUST_TABLE_SIZE = 1024;
+
+  private double[] thrustCoefficients = null;
+  private double[] tempCoefficients = null;
+  private float[] thrustTable = new float[THRUST_TABLE_SIZE];
+
+
+  /**
+   * @param thrustCoefficients The thrust polynomial, constant term first
+   * @param tempCoefficients The temperature polynomial, constant term first
+   */
+  public PolynomialCalibration(double[] thrustCoefficients, double[] tempCoefficients)
+  {
+    this.thrustCoefficients = thrustCoefficients.clone();
+    this.tempCoefficients = tempCoefficients.clone();
+
+    for (int i = 0; i < THRUST_TABLE_SIZE; i++)
+    {
+      thrustTable[i] = (float)evaluate(this.thrustCoefficients, i);
+    }
+  }
+
+  @Override
+  public float toNewtons(int rawThrust)
+  {
+    if ((rawThrust & ~(THRUST_TABLE_SIZE - 1)) == 0)
+    {
+      return thrustTable[rawThrust];
+    }
+    return (float)evaluate(thrustCoefficients, rawThrust);
+  }
+
+  @Override
+  public float toDegrees(int rawTemp)
+  {
+    return (float)evaluate(tempCoefficients, rawTemp);
+  }
+
+  @Override
+  public void apply(SampleBlock block)
+  {
+    int count = block.count;
+    int[] rawThrust = block.rawThrust;
+    float[] thrust = block.thrust;
+    float[] table = thrustTable;
+    for (int i = 0; i < count; i++)
+    {
+      int raw = rawThrust[i];
+      thrust[i] = (raw & ~(THRUST_TABLE_SIZE - 1)) == 0 ? table[raw] :
+          (float)evaluate(thrustCoefficients, raw);
+    }
+
+    int[] rawTemp = block.rawTemp;
+    float[] temp = block.temp;
+    for (int i = 0; i < count; i++)
+    {
+      temp[i] = (float)evaluate(tempCoefficients, rawTemp[i]);
+    }
+    block.calibration = this;
+  }
+
+  @Override
+  public double[] getThrustCoefficients()
+  {
+    return thrustCoefficients.clone();
+  }
+
+  @Override
+  public double[] getTempCoefficients()
+  {
+    return tempCoefficients.clone();
+  }
+
+}
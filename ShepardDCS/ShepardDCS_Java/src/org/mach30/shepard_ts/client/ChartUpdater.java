@@ -0,0 +1,236 @@
+package org.mach30.shepard_ts.client;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.SwingUtilities;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * Hands samples from the display sink's thread to the charts on the Swing 
+ * event thread, one batch per frame.  Samples accumulate off the event 
+ * thread, and at each frame everything that arrived since the last one is 
+ * drawn by a single invokeLater, so the charts and bars are only touched on 
+ * the event thread and at most once a frame however fast samples arrive.
+ * 
+ * A frame that comes around while the last one is still waiting to be drawn 
+ * is dropped, and its samples go out with the next one.  The number of 
+ * frames drawn and dropped and the time taken to draw them are reported 
+ * every few seconds while samples are arriving.
+ * 
+ * Each chart draws a single trace, so when samples from several devices are
+ * merged only the samples of one channel are charted.
+ */
+public class ChartUpdater implements Runnable
+{
+  
+  public static final int DEFAULT_FRAME_RATE = 60;
+  
+  // the most samples held for one frame, in case the event thread stalls
+  private static final int MAX_FRAME_SAMPLES = 1 << 20;
+  private static final long REPORT_INTERVAL = 5000000000L;
+  
+  private ShepardDataPanel thrustPanel = null;
+  private ShepardDataPanel tempPanel = null;
+  private long framePeriod = 0;
+  // the channel to chart, or -1 for every sample
+  private volatile int channel = -1;
+  
+  // filled by the sink's thread, then swapped with the frame being drawn
+  private Frame filling = new Frame();
+  private Frame drawing = new Frame();
+  private boolean pending = false;
+  
+  // guarded by this, like the frames
+  private long frames = 0;
+  private long droppedFrames = 0;
+  private long droppedSamples = 0;
+  private long renderTime = 0;
+  private long maxRenderTime = 0;
+  
+  private volatile boolean running = true;
+  
+  private Runnable render = new Runnable() {
+    @Override
+    public void run()
+    {
+      render();
+    }
+  };
+  
+  
+  /**
+   * @param thrustPanel The chart for the thrust
+   * @param tempPanel The chart for the temperature
+   * @param frameRate The frames drawn per second
+   */
+  public ChartUpdater(ShepardDataPanel thrustPanel, ShepardDataPanel tempPanel, int frameRate)
+  {
+    this.thrustPanel = thrustPanel;
+    this.tempPanel = tempPanel;
+    framePeriod = 1000000000L / Math.max(frameRate, 1);
+  }
+  
+  /**
+   * Start drawing frames on a daemon thread.
+   * @return The thread
+   */
+  public Thread start()
+  {
+    Thread t = new Thread(this, "Chart updater");
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+  
+  public void stop()
+  {
+    running = false;
+  }
+  
+  /**
+   * Only chart the samples from one device.
+   * @param channel The device's channel, or -1 to chart every sample
+   */
+  public void setChannel(int channel)
+  {
+    this.channel = channel;
+  }
+  
+  /**
+   * Queue a block of samples for the next frame.  This may be called from 
+   * any thread.
+   */
+  public synchronized void offer(SampleBlock block)
+  {
+    int room = MAX_FRAME_SAMPLES - filling.count;
+    if (block.count > room)
+    {
+      droppedSamples += block.count - room;
+    }
+    filling.add(block, Math.min(block.count, room), channel);
+  }
+  
+  @Override
+  public void run()
+  {
+    long nextFrame = System.nanoTime() + framePeriod;
+    long nextReport = nextFrame + REPORT_INTERVAL;
+    long reportedFrames = 0;
+    
+    while (running)
+    {
+      long wait = nextFrame - System.nanoTime();
+      if (wait > 0)
+      {
+        LockSupport.parkNanos(wait);
+        continue;
+      }
+      // skip any frames missed while this thread wasn't scheduled
+      nextFrame += (-wait / framePeriod + 1) * framePeriod;
+      
+      boolean report = false;
+      synchronized (this)
+      {
+        if (filling.count > 0)
+        {
+          if (pending)
+          {
+            ++droppedFrames;
+          }
+          else
+          {
+            Frame frame = drawing;
+            drawing = filling;
+            filling = frame;
+            pending = true;
+            SwingUtilities.invokeLater(render);
+          }
+        }
+        
+        if (nextFrame >= nextReport)
+        {
+          nextReport += REPORT_INTERVAL;
+          report = frames != reportedFrames;
+          reportedFrames = frames;
+        }
+      }
+      
+      if (report)
+      {
+        System.out.println(this);
+      }
+    }
+  }
+  
+  /**
+   * Draw the frame, on the event thread.
+   */
+  private void render()
+  {
+    long start = System.nanoTime();
+    // the frame can't be swapped out again until pending is cleared
+    Frame frame = drawing;
+    thrustPanel.addPoints(frame.time, frame.thrust, frame.count);
+    tempPanel.addPoints(frame.time, frame.temp, frame.count);
+    frame.count = 0;
+    long elapsed = System.nanoTime() - start;
+    
+    synchronized (this)
+    {
+      pending = false;
+      ++frames;
+      renderTime += elapsed;
+      maxRenderTime = Math.max(maxRenderTime, elapsed);
+    }
+  }
+  
+  @Override
+  public synchronized String toString()
+  {
+    return String.format("Charts: %d frames drawn, %d dropped, %.2f ms average and %.2f ms " +
+        "longest to draw%s", frames, droppedFrames, 
+        frames > 0 ? renderTime / 1e6 / frames : 0.0, maxRenderTime / 1e6,
+        droppedSamples > 0 ? ", " + droppedSamples + " samples dropped" : "");
+  }
+  
+  
+  private static class Frame
+  {
+    long[] time = new long[1024];
+    float[] thrust = new float[1024];
+    float[] temp = new float[1024];
+    int count = 0;
+    
+    void add(SampleBlock block, int samples, int channel)
+    {
+      if (count + samples > time.length)
+      {
+        int capacity = Math.max(time.length * 2, count + samples);
+        time = Arrays.copyOf(time, capacity);
+        thrust = Arrays.copyOf(thrust, capacity);
+        temp = Arrays.copyOf(temp, capacity);
+      }
+      if (channel < 0)
+      {
+        System.arraycopy(block.time, 0, time, count, samples);
+        System.arraycopy(block.thrust, 0, thrust, count, samples);
+        System.arraycopy(block.temp, 0, temp, count, samples);
+        count += samples;
+        return;
+      }
+      for (int i = 0; i < samples; i++)
+      {
+        if (block.channel[i] == channel)
+        {
+          time[count] = block.time[i];
+          thrust[count] = block.thrust[i];
+          temp[count] = block.temp[i];
+          ++count;
+        }
+      }
+    }
+  }
+  
+}
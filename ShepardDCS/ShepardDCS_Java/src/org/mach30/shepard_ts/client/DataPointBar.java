@@ -113,21 +113,31 @@ public class DataPointBar extends JPanel
       val = point;
     }
     
-    datapointLabel = Float.toString(point);
-    
-    positionDatapointLabel();
-    
-    repaint();
+    // the bar's size doesn't depend on its value, so there's nothing to lay
+    // out, and nothing to paint unless what it shows has changed
+    String label = Float.toString(point);
+    int height = getBarHeight();
+    if (height != barHeight || !label.equals(datapointLabel))
+    {
+      datapointLabel = label;
+      barHeight = height;
+      repaint();
+    }
   }
   
   private void positionDatapointLabel()
+  {
+    barHeight = getBarHeight();
+    
+    this.revalidate();
+  }
+  
+  private int getBarHeight()
   {
     int constraint = getHeight() - 40;
     constraint *= val;
     float height = constraint / maxVal;
-    barHeight = Math.round(height) + 33;
-    
-    this.revalidate();
+    return Math.round(height) + 33;
   }
   
 
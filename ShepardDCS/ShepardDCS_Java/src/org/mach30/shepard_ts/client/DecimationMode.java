@@ -0,0 +1,53 @@
+package org.mach30.shepard_ts.client;
+
+/**
+ * How a TraceDecimator thins out the samples drawn on a chart.
+ */
+public enum DecimationMode
+{
+  /** draw every sample */
+  NONE("Every sample", 1),
+  /** draw the lowest and highest sample of each bucket */
+  MIN_MAX("Min/max", 2),
+  /** draw the first, lowest, highest and last sample of each bucket */
+  M4("Min/max/first/last", 4);
+  
+  private String label = null;
+  private int pointsPerBucket = 0;
+  
+  private DecimationMode(String label, int pointsPerBucket)
+  {
+    this.label = label;
+    this.pointsPerBucket = pointsPerBucket;
+  }
+  
+  /**
+   * @return The most points drawn for each bucket
+   */
+  public int getPointsPerBucket()
+  {
+    return pointsPerBucket;
+  }
+  
+  /**
+   * Parse a mode from a preference such as "min-max".
+   * @return The mode, or the default if the name doesn't match one
+   */
+  public static DecimationMode parse(String name, DecimationMode def)
+  {
+    try
+    {
+      return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+    catch (RuntimeException rex)
+    {
+      return def;
+    }
+  }
+  
+  @Override
+  public String toString()
+  {
+    return label;
+  }
+}
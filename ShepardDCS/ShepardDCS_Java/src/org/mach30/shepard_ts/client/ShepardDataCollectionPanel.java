@@ -6,47 +6,63 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
-import jssc.SerialPortEventListener;
-
+import org.mach30.shepard_ts.SampleBlock;
 import org.mach30.shepard_ts.server.CollectionServer;
-import org.mach30.shepard_ts.server.ShepardSerialEventListener;
+import org.mach30.shepard_ts.server.SampleSink;
+import org.mach30.shepard_ts.server.SampleSubscription;
+import org.mach30.shepard_ts.storage.CsvRecorder;
+import org.mach30.shepard_ts.storage.FlushPolicy;
+import org.mach30.shepard_ts.storage.RunFile;
+import org.mach30.shepard_ts.storage.RunFileRecorder;
+import org.mach30.shepard_ts.storage.RunHeader;
+import org.mach30.shepard_ts.storage.SampleFormatter;
+import org.mach30.shepard_ts.storage.SampleRecorder;
 
 public class ShepardDataCollectionPanel extends JPanel implements ActionListener
 {
   
   private static final String CONNECT = "Connect";
   private static final String RECORD = "Record";
-  private static final String CSV_HEADER = "TIME(ms),THRUST(N),TEMPERATURE(c)";
+  // the longest to wait for the recorder to write what is queued for it, in ms
+  private static final long RECORDER_DRAIN_TIMEOUT = 10000;
 
   
   private boolean connected = false;  
   private boolean recording = false;
   private UserPreferences preferences = UserPreferences.getInstance();
-  private FileOutputStream csvOutput = null;
+  private CollectionServer server = null;
+  private volatile SampleRecorder recorder = null;
+  private SampleSubscription recorderSubscription = null;
   
   private ShepardDataPanel thrustPanel = null;
   private ShepardDataPanel tempPanel = null;
+  private ChartUpdater chartUpdater = null;
   
   private JTextField notation = null;
   private JButton connectButton = null;
   private JButton recordButton = null;
   private JButton clearButton = null;
   private JButton prefButton = null;
+  private JComboBox<DecimationMode> decimationBox = null;
   private PreferencesPanel prefPanel = null;
 
   public ShepardDataCollectionPanel()
@@ -101,6 +117,15 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
     recordButton.setToolTipText("Clear the data currently graphed");
     topPanel.add(clearButton);
 
+    decimationBox = new JComboBox<DecimationMode>(DecimationMode.values());
+    decimationBox.setSelectedItem(DecimationMode.parse(
+        preferences.getPreference(UserPreferences.CHART_DECIMATION_PROP, ""), DecimationMode.M4));
+    decimationBox.addActionListener(this);
+    decimationBox.setToolTipText("How much of the data to graph.  Every sample is " +
+        "recorded either way");
+    decimationBox.setMaximumSize(decimationBox.getPreferredSize());
+    topPanel.add(decimationBox);
+
     prefButton = new JButton("Preferences");
     prefButton.addActionListener(this);
     prefButton.setToolTipText("Set application preferences");
@@ -120,6 +145,7 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
     leftPanel.add(thrustPanel);
     tempPanel = new ShepardDataPanel("Temperature (C)", 380);
     leftPanel.add(tempPanel);
+    setDecimation((DecimationMode)decimationBox.getSelectedItem());
     
     add(leftPanel);
 
@@ -160,35 +186,25 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
         if (recording)
         {
           // if recording, disable recording and close the output file.
-          recordButton.setText(RECORD);
-          recording = false;
-          
-          try
-          {
-            csvOutput.close();
-          }
-          catch (IOException e)
-          {
-          }
-          csvOutput = null;
+          stopRecording();
         }
         else
         {
           // try to open the output file.  if it succeeds without issue, the header line is
-          // appended to the file and the record state is enabled.
+          // written to the file and the recorder starts receiving samples.
           try
           {
-            csvOutput = new FileOutputStream(getFileName());
-            
-            // add the header
-            addLineToCSV(CSV_HEADER);
+            recorder = createRecorder();
+            recorder.start();
+            recorderSubscription = server.getPipeline().addSink("recorder", recorder);
+            server.resetLatency();
             
             recordButton.setText("Stop Recording");
             recording = true;
           }
           catch (IOException e)
           {
-            csvOutput = null;
+            recorder = null;
             JOptionPane.showMessageDialog(
                 this,
                 "Unable to open the output file for writing.  Make sure you have permission " +
@@ -203,6 +219,10 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
       thrustPanel.clear();
       tempPanel.clear();
     }
+    else if (event.getSource() == decimationBox)
+    {
+      setDecimation((DecimationMode)decimationBox.getSelectedItem());
+    }
     else if (event.getSource() == prefButton)
     {
       // open the preferences panel, initializing it if necessary
@@ -224,6 +244,12 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
     }
   }
     
+  private void setDecimation(DecimationMode mode)
+  {
+    thrustPanel.setDecimation(mode);
+    tempPanel.setDecimation(mode);
+  }
+    
   private void connectToServer()
   {
     connectButton.setText("Connecting...");
@@ -235,10 +261,11 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
    * Get the current name of the output file.  The name is based upon the current date/time, and 
    * includes the notation that the user has specified.  The notation string is also modified to 
    * replace special characters (such as directory separators) with an underscore.
-   * @return The user specified notation prefixed with the current date/time stamp, with a CSV 
-   *     extension.
+   * @param extension The extension for the type of file being recorded
+   * @return The user specified notation prefixed with the current date/time stamp, with the
+   *     given extension.
    */
-  private String getFileName()
+  private String getFileName(String extension)
   {
     DateFormat format = new SimpleDateFormat("yyyy-MM-dd__HH_mm");
     
@@ -252,20 +279,171 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
       ret += "__" + notationStr.replaceAll(" \t/\\:", "_");
     }
     
-    ret += ".csv";
+    ret += extension;
     
     return ret;
   }
   
   /**
-   * Append a line to the CSV file.  A newline character is added after the string is written.
-   * @param str A string to append
-   * @throws IOException
+   * Create the recorder for the output file, which is a run file if the preferences say so, or
+   * a CSV file otherwise.  With several devices each sample is recorded with its channel.
+   */
+  private SampleRecorder createRecorder() throws IOException
+  {
+    boolean channels = server.getDevices() != null;
+    String format = preferences.getPreference(UserPreferences.RECORD_FORMAT_PROP, 
+        UserPreferences.CSV_FORMAT);
+    if (UserPreferences.RUN_FORMAT.equalsIgnoreCase(format) || 
+        UserPreferences.COMPRESSED_RUN_FORMAT.equalsIgnoreCase(format))
+    {
+      RunHeader header = RunHeader.forCalibration(server.getPipeline().getCalibration(),
+          notation.getText().trim());
+      if (UserPreferences.COMPRESSED_RUN_FORMAT.equalsIgnoreCase(format))
+      {
+        header.encoding = channels ? RunFile.ENCODING_CHANNEL_BLOCKS : RunFile.ENCODING_BLOCKS;
+      }
+      else if (channels)
+      {
+        header.encoding = RunFile.ENCODING_FIXED_CHANNELS;
+      }
+      return new RunFileRecorder(new File(getFileName(RunFile.EXTENSION)), getFlushPolicy(), header);
+    }
+    return new CsvRecorder(new File(getFileName(".csv")), getFlushPolicy(), getFormatter(), channels);
+  }
+  
+  /**
+   * Get when the recorder should flush samples to the output file, as set in the preferences.
+   * By default the samples are flushed every second.
+   */
+  private FlushPolicy getFlushPolicy()
+  {
+    FlushPolicy def = FlushPolicy.DEFAULT;
+    try
+    {
+      return new FlushPolicy(
+          Integer.parseInt(preferences.getPreference(UserPreferences.FLUSH_SAMPLES_PROP, 
+              Integer.toString(def.getSamples()))),
+          Long.parseLong(preferences.getPreference(UserPreferences.FLUSH_INTERVAL_PROP, 
+              Long.toString(def.getInterval()))),
+          Boolean.parseBoolean(preferences.getPreference(UserPreferences.FLUSH_SYNC_PROP, 
+              Boolean.toString(def.isSync()))));
+    }
+    catch (NumberFormatException nfex)
+    {
+      System.err.println("Invalid flush preferences, using the defaults");
+      return def;
+    }
+  }
+  
+  /**
+   * Get the collection server arguments for the calibration files set in the preferences.
+   */
+  private List<String> getServerArgs()
+  {
+    List<String> args = new ArrayList<String>();
+    addServerArg(args, CollectionServer.THRUST_CALIBRATION, UserPreferences.THRUST_CALIBRATION_PROP);
+    addServerArg(args, CollectionServer.TEMP_CALIBRATION, UserPreferences.TEMP_CALIBRATION_PROP);
+    addServerArg(args, CollectionServer.CALIBRATION_DEGREE, UserPreferences.CALIBRATION_DEGREE_PROP);
+    return args;
+  }
+  
+  private void addServerArg(List<String> args, String arg, String prop)
+  {
+    String value = preferences.getPreference(prop, "").trim();
+    if (!value.isEmpty())
+    {
+      args.add(arg);
+      args.add(value);
+    }
+  }
+  
+  /**
+   * Get the formatter for the recorded samples, using the number of decimals set in the 
+   * preferences.
+   */
+  private SampleFormatter getFormatter()
+  {
+    try
+    {
+      return new SampleFormatter(
+          Integer.parseInt(preferences.getPreference(UserPreferences.THRUST_DECIMALS_PROP, 
+              Integer.toString(SampleFormatter.DEFAULT_THRUST_DECIMALS))),
+          Integer.parseInt(preferences.getPreference(UserPreferences.TEMP_DECIMALS_PROP, 
+              Integer.toString(SampleFormatter.DEFAULT_TEMP_DECIMALS))));
+    }
+    catch (IllegalArgumentException iaex)
+    {
+      // also covers badly formatted numbers
+      System.err.println("Invalid decimal preferences, using the defaults");
+      return new SampleFormatter();
+    }
+  }
+  
+  /**
+   * Stop recording.  The recorder writes everything it has been handed to the output file
+   * on a thread of its own, so that the display isn't held up, and recording can start
+   * again once it is done.
+   */
+  private void stopRecording()
+  {
+    recordButton.setText(RECORD);
+    recordButton.setEnabled(false);
+    recording = false;
+    
+    server.printLatency();
+    final SampleSubscription subscription = recorderSubscription;
+    final SampleRecorder finished = recorder;
+    recorderSubscription = null;
+    recorder = null;
+    
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        final boolean written = finishRecording(subscription, finished);
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run()
+          {
+            recordButton.setEnabled(true);
+            if (!written)
+            {
+              JOptionPane.showMessageDialog(ShepardDataCollectionPanel.this, 
+                  "An error occurred writing the data file.  " +
+                  "Some data may not have been recorded.");
+            }
+          }
+        });
+      }
+    }, "Recorder close");
+    t.start();
+  }
+  
+  /**
+   * Wait for the recorder to write everything it has been handed, and close it.
+   * @return false if some of the samples may not have been written
    */
-  private void addLineToCSV(String str) throws IOException
+  private boolean finishRecording(SampleSubscription subscription, SampleRecorder finished)
   {
-    csvOutput.write(str.getBytes());
-    csvOutput.write('\n');
+    boolean written = false;
+    try
+    {
+      written = server.getPipeline().drainSink(subscription, RECORDER_DRAIN_TIMEOUT);
+    }
+    catch (InterruptedException iex)
+    {
+      Thread.currentThread().interrupt();
+    }
+    try
+    {
+      finished.close();
+      System.out.println("Recorded " + finished);
+    }
+    catch (IOException e)
+    {
+      written = false;
+    }
+    return written;
   }
   
   
@@ -283,53 +461,62 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
     @Override
     public void handleClient() throws Exception
     {
-      SerialPortEventListener listener = null;
-      while (listener == null)
+      while (!awaitDevice(10))
       {
-        Thread.sleep(10);
-        if (port != null)
-        {
-          System.out.println("Initializing listener...");
-          // TODO: make the instantiation of the listener an abstract getter
-          listener = new ShepardDataListener(parent);
-          port.addEventListener(listener);
-          port.writeByte(READY_COMMAND);
-        }
-        else if (errorStatus) 
+        if (errorStatus) 
         {
           JOptionPane.showMessageDialog(parent, status);
-          break;
+          return;
         }
       }
+      
+      System.out.println("Initializing listener...");
+      chartUpdater = new ChartUpdater(thrustPanel, tempPanel, ChartUpdater.DEFAULT_FRAME_RATE);
+      if (getDevices() != null)
+      {
+        // one trace per chart, so chart the first device
+        chartUpdater.setChannel(0);
+      }
+      chartUpdater.start();
+      pipeline.addSink("display", new ShepardDataSink(parent));
+      startListening();
+      source.write(READY_COMMAND);
     }
     
     
-    private class ShepardDataListener extends ShepardSerialEventListener
+    private class ShepardDataSink implements SampleSink
     {
       
       private Component parent = null;
       
-      public ShepardDataListener(Component parent) 
+      public ShepardDataSink(Component parent) 
       {
-        super(port);
         this.parent = parent;
       }
 
       @Override
-      protected void handleData()
+      public void handleBlock(SampleBlock block)
       {
         if (recording)
         {
-          thrustPanel.addPoint(this.datapoint.thrust, this.datapoint.time);
-          tempPanel.addPoint(this.datapoint.temp, this.datapoint.time);
+          chartUpdater.offer(block);
           
-          try
-          {
-            addLineToCSV(this.datapoint.toString());
-          }
-          catch (IOException e)
+          // the recorder writes the samples from its own thread, so this is 
+          // where its errors are noticed
+          SampleRecorder current = recorder;
+          if (current != null && current.getError() != null)
           {
             recording = false;
+            SwingUtilities.invokeLater(new Runnable() {
+              @Override
+              public void run()
+              {
+                if (recorder != null)
+                {
+                  stopRecording();
+                }
+              }
+            });
             JOptionPane.showMessageDialog(parent, "An error occurred appending data to the data file.  Recording has automatically been stopped.");
           }
         }
@@ -354,9 +541,9 @@ public class ShepardDataCollectionPanel extends JPanel implements ActionListener
     {
       try 
       {
-        CollectionServer server = new ShepardGUICollectionServer(parent);
+        server = new ShepardGUICollectionServer(parent);
   
-        server.init();
+        server.init(getServerArgs());
         server.listen();
         server.handleClient();
         
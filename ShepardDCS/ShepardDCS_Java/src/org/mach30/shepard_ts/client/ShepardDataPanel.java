@@ -11,6 +11,8 @@ import info.monitorenter.util.Range;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 
 import javax.swing.BoxLayout;
 import javax.swing.JPanel;
@@ -18,7 +20,13 @@ import javax.swing.JPanel;
 public class ShepardDataPanel extends JPanel
 {
   
-  private ITrace2D trace = null;
+  // the points shown when every sample is drawn
+  private static final int MAX_POINTS = 10000;
+  // the time shown when the samples are decimated, in ms
+  private static final long DECIMATED_SPAN = 20000;
+  
+  private Trace2DLtd trace = null;
+  private TraceDecimator decimator = null;
   
   private Chart2D chart = null;
   private DataPointBar maxBar = null;
@@ -44,12 +52,22 @@ public class ShepardDataPanel extends JPanel
     setLayout(layout);
     
     chart = new Chart2D();
-    trace = new Trace2DLtd(10000); 
+    trace = new Trace2DLtd(MAX_POINTS); 
     trace.setColor(Color.BLUE);
     chart.addTrace(trace);
     chart.setPreferredSize(new Dimension(800, 570));
     add(chart);
     
+    decimator = new TraceDecimator(trace);
+    setDecimation(DecimationMode.M4);
+    chart.addComponentListener(new ComponentAdapter() {
+      @Override
+      public void componentResized(ComponentEvent event)
+      {
+        setDecimation(decimator.getMode());
+      }
+    });
+    
     maxBar = new DataPointBar(0.0f, yAxisMax);
     maxBar.setLabel("Max");
     add(maxBar);
@@ -76,16 +94,81 @@ public class ShepardDataPanel extends JPanel
     yAxis.setRangePolicy(rangePolicy);
   }
 
+  /**
+   * Change how the samples are thinned out before they are drawn.  The full
+   * resolution samples are still recorded.
+   */
+  public void setDecimation(DecimationMode mode)
+  {
+    // a bucket per pixel, with the trace holding a chart's width of buckets
+    int pixels = Math.max(chart.getWidth(), chart.getPreferredSize().width);
+    decimator.setResolution(DECIMATED_SPAN, pixels);
+    decimator.setMode(mode);
+    trace.setMaxSize(mode == DecimationMode.NONE ? MAX_POINTS : 
+        mode.getPointsPerBucket() * (int)(DECIMATED_SPAN / decimator.getBucketWidth() + 1));
+  }
+  
+  public DecimationMode getDecimation()
+  {
+    return decimator.getMode();
+  }
+
   public void clear()
   {
+    decimator.clear();
     trace.removeAllPoints();
     max = 0;
     min = yMax;
   }
 
+  /**
+   * Add a batch of points, updating the max/min/average bars once for the
+   * whole batch.  Only call this on the event thread, see ChartUpdater.
+   * @param timestamps The time stamp of each point
+   * @param vals The value of each point
+   * @param count The number of points to add from the arrays
+   */
+  public void addPoints(long[] timestamps, float[] vals, int count)
+  {
+    boolean newMax = false;
+    boolean newMin = false;
+    
+    decimator.addPoints(timestamps, vals, count);
+    for (int i = 0; i < count; i++)
+    {
+      float val = vals[i];
+      if (val > max)
+      {
+        max = val;
+        newMax = true;
+      }
+      else if (val < min)
+      {
+        min = val;
+        newMin = true;
+      }
+      
+      ++numPoints;
+      sum += val;
+    }
+    
+    if (newMax)
+    {
+      maxBar.setData(max);
+    }
+    if (newMin)
+    {
+      minBar.setData(min);
+    }
+    if (count > 0)
+    {
+      avgBar.setData(sum / numPoints);
+    }
+  }
+
   public void addPoint(float val, long timestamp)
   {
-    trace.addPoint(timestamp, val);
+    decimator.addPoint(timestamp, val);
     
     if (val > max)
     {
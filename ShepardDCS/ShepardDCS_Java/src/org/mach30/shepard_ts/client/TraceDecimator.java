@@ -0,0 +1,186 @@
+package org.mach30.shepard_ts.client;
+
+import info.monitorenter.gui.chart.ITrace2D;
+
+/**
+ * Thins out the samples added to a chart trace to about what the chart can
+ * show.  Time is cut into buckets roughly a pixel wide, and only the lowest
+ * and highest samples of each bucket, and with M4 its first and last, are
+ * added to the trace.  Those are the samples that decide which pixels a
+ * line through every sample would light, so peaks are drawn exactly while
+ * the trace holds a few points per pixel instead of every sample.
+ * 
+ * A bucket is added to the trace once a sample arrives after it ends, so
+ * the newest few milliseconds appear one bucket late.
+ */
+public class TraceDecimator
+{
+  
+  private ITrace2D trace = null;
+  private volatile DecimationMode mode = DecimationMode.M4;
+  // the bucket width in ms
+  private volatile long width = 1;
+  
+  // the open bucket
+  private int count = 0;
+  private long start = 0;
+  private long firstTime = 0;
+  private float first = 0;
+  private long minTime = 0;
+  private float min = 0;
+  private long maxTime = 0;
+  private float max = 0;
+  private long lastTime = 0;
+  private float last = 0;
+  
+  // the last point added to the trace, so that a sample that is both the
+  // first and lowest of its bucket isn't added twice
+  private long addedTime = Long.MIN_VALUE;
+  private float added = Float.NaN;
+  
+  
+  /**
+   * @param trace The trace to add the decimated samples to
+   */
+  public TraceDecimator(ITrace2D trace)
+  {
+    this.trace = trace;
+  }
+  
+  public DecimationMode getMode()
+  {
+    return mode;
+  }
+  
+  /**
+   * Change how samples are thinned out from the next sample on.
+   */
+  public void setMode(DecimationMode mode)
+  {
+    this.mode = mode;
+  }
+  
+  /**
+   * Set the bucket width for a chart showing the given span of time across
+   * the given number of pixels.
+   */
+  public void setResolution(long span, int pixels)
+  {
+    pixels = Math.max(pixels, 1);
+    width = Math.max((span + pixels - 1) / pixels, 1);
+  }
+  
+  public long getBucketWidth()
+  {
+    return width;
+  }
+  
+  /**
+   * Add a batch of samples.
+   * @param timestamps The time stamp of each sample, in ms
+   * @param vals The value of each sample
+   * @param count The number of samples to add from the arrays
+   */
+  public synchronized void addPoints(long[] timestamps, float[] vals, int count)
+  {
+    DecimationMode mode = this.mode;
+    long width = this.width;
+    for (int i = 0; i < count; i++)
+    {
+      add(mode, width, timestamps[i], vals[i]);
+    }
+  }
+  
+  public synchronized void addPoint(long timestamp, float val)
+  {
+    add(mode, width, timestamp, val);
+  }
+  
+  private void add(DecimationMode mode, long width, long time, float val)
+  {
+    if (mode == DecimationMode.NONE)
+    {
+      flush();
+      trace.addPoint(time, val);
+      return;
+    }
+    
+    // a time before the bucket means the device restarted its clock
+    if (count > 0 && (time >= start + width || time < start))
+    {
+      flush();
+    }
+    
+    if (count == 0)
+    {
+      start = time - time % width;
+      firstTime = minTime = maxTime = time;
+      first = min = max = val;
+    }
+    else if (val < min)
+    {
+      minTime = time;
+      min = val;
+    }
+    else if (val > max)
+    {
+      maxTime = time;
+      max = val;
+    }
+    lastTime = time;
+    last = val;
+    ++count;
+  }
+  
+  /**
+   * Add the open bucket to the trace, even though it may not have ended.
+   */
+  public synchronized void flush()
+  {
+    if (count == 0)
+    {
+      return;
+    }
+    
+    boolean m4 = mode == DecimationMode.M4;
+    if (m4)
+    {
+      emit(firstTime, first);
+    }
+    if (minTime <= maxTime)
+    {
+      emit(minTime, min);
+      emit(maxTime, max);
+    }
+    else
+    {
+      emit(maxTime, max);
+      emit(minTime, min);
+    }
+    if (m4)
+    {
+      emit(lastTime, last);
+    }
+    count = 0;
+  }
+  
+  private void emit(long time, float val)
+  {
+    if (time != addedTime || Float.floatToIntBits(val) != Float.floatToIntBits(added))
+    {
+      trace.addPoint(time, val);
+      addedTime = time;
+      added = val;
+    }
+  }
+  
+  /**
+   * Forget the open bucket, for when the trace is cleared.
+   */
+  public synchronized void clear()
+  {
+    count = 0;
+    addedTime = Long.MIN_VALUE;
+  }
+  
+}
@@ -9,6 +9,25 @@ public class UserPreferences extends Properties
   
   public static String PREFERENCES_FILE = "config.properties";
   public static String SAVE_LOCATION_PROP = "SaveLocation"; 
+  // when recorded samples are flushed to the output file, see FlushPolicy
+  public static String FLUSH_SAMPLES_PROP = "FlushSamples";
+  public static String FLUSH_INTERVAL_PROP = "FlushInterval";
+  public static String FLUSH_SYNC_PROP = "FlushSync";
+  // whether to record CSV files, run files or compressed run files
+  public static String RECORD_FORMAT_PROP = "RecordFormat";
+  public static String CSV_FORMAT = "csv";
+  public static String RUN_FORMAT = "run";
+  public static String COMPRESSED_RUN_FORMAT = "compressed";
+  // the number of decimals recorded to CSV files, see SampleFormatter
+  public static String THRUST_DECIMALS_PROP = "ThrustDecimals";
+  public static String TEMP_DECIMALS_PROP = "TempDecimals";
+  // the calibration utility's point files, and the degree of the curve fitted
+  // to them, see CalibrationPoints
+  public static String THRUST_CALIBRATION_PROP = "ThrustCalibrationFile";
+  public static String TEMP_CALIBRATION_PROP = "TempCalibrationFile";
+  public static String CALIBRATION_DEGREE_PROP = "CalibrationDegree";
+  // how the charts thin out the samples they draw, see DecimationMode
+  public static String CHART_DECIMATION_PROP = "ChartDecimation";
   
   private UserPreferences()
   {
@@ -0,0 +1,31 @@
+package org.mach30.shepard_ts.server;
+
+/**
+ * What a SamplePipeline does with a new sample when a sink's queue is full.
+ */
+public enum BackpressurePolicy
+{
+  /** wait for the sink to make room, stalling acquisition */
+  BLOCK,
+  /** discard the oldest queued sample to make room for the new one */
+  DROP_OLDEST,
+  /** discard the new sample */
+  DROP_NEWEST;
+  
+  /**
+   * Parse a policy from a command line argument such as "drop-oldest".
+   * @throws Exception if the name doesn't match a policy
+   */
+  public static BackpressurePolicy parse(String name) throws Exception
+  {
+    try
+    {
+      return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+    catch (IllegalArgumentException iaex)
+    {
+      throw new Exception("Unknown backpressure policy " + name + 
+          ".  Expected block, drop-oldest or drop-newest");
+    }
+  }
+}
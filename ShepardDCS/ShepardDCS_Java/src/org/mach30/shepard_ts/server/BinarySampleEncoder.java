@@ -0,0 +1,261 @@
+package org.mach30.shepard_ts.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.SampleBlockCodec;
+import org.mach30.shepard_ts.calibration.Calibration;
+
+/**
+ * Encodes frames for the binary mode of the TCP collection server.  Frames 
+ * accumulate in a reusable buffer until they are written out, so several
+ * frames can share a single write.  All values are big-endian.
+ * 
+ *   int    length of the rest of the frame, in bytes
+ *   byte   frame type
+ *   int    sequence number, incremented for every frame the encoder writes
+ * 
+ * followed, for a SAMPLES frame, by
+ * 
+ *   int    number of samples
+ *   then for each sample:
+ *   int    time stamp in milliseconds, unsigned
+ *   float  thrust in Newtons
+ *   float  temperature in degrees Celsius
+ *
+ * or, for a CHANNEL_SAMPLES frame, which replaces SAMPLES when the server is
+ * collecting from several devices, by the same with
+ * 
+ *   int    channel of the device the sample came from
+ * 
+ * after each sample's temperature, or, for a COMPRESSED_SAMPLES frame, by a SampleBlockCodec block, or, for
+ * a STATUS frame, by the UTF-8 encoded status message.
+ *
+ * Compressed samples are raw readings, so a CALIBRATION frame is sent ahead
+ * of the first compressed frame and whenever the calibration changes, with
+ * 
+ *   byte   number of thrust coefficients
+ *   double each thrust coefficient, constant term first
+ *   byte   number of temperature coefficients
+ *   double each temperature coefficient, constant term first
+ * 
+ * A CALIBRATION frame carries the sequence number of the frame after it
+ * rather than using up one of its own.  Compressed samples from several
+ * devices use the codec's CHANNEL_COUNTS encoding.
+ */
+public class BinarySampleEncoder
+{
+  
+  public static final byte SAMPLES = 1;
+  public static final byte STATUS = 2;
+  public static final byte COMPRESSED_SAMPLES = 3;
+  public static final byte CALIBRATION = 4;
+  public static final byte CHANNEL_SAMPLES = 5;
+  
+  // length, type and sequence
+  public static final int HEADER_SIZE = 4 + 1 + 4;
+  public static final int SAMPLE_SIZE = 4 + 4 + 4;
+  public static final int CHANNEL_SAMPLE_SIZE = SAMPLE_SIZE + 4;
+  
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  
+  private ByteBuffer buffer = null;
+  private int sequence = 0;
+  private SampleBlockCodec codec = new SampleBlockCodec();
+  
+  
+  public BinarySampleEncoder(int bufferSize)
+  {
+    buffer = ByteBuffer.allocate(bufferSize);
+  }
+  
+  /**
+   * @return The size of a SAMPLES frame holding the given number of samples
+   */
+  public static int frameSize(int samples)
+  {
+    return HEADER_SIZE + 4 + samples * SAMPLE_SIZE;
+  }
+  
+  /**
+   * @return The size of a CHANNEL_SAMPLES frame holding the given number of 
+   *     samples
+   */
+  public static int channelFrameSize(int samples)
+  {
+    return HEADER_SIZE + 4 + samples * CHANNEL_SAMPLE_SIZE;
+  }
+  
+  /**
+   * Append a SAMPLES frame holding every sample in the block.
+   */
+  public void encodeSamples(SampleBlock block)
+  {
+    int size = frameSize(block.count);
+    ensureRoom(size);
+    
+    buffer.putInt(size - 4);
+    buffer.put(SAMPLES);
+    buffer.putInt(sequence++);
+    buffer.putInt(block.count);
+    for (int i = 0; i < block.count; i++)
+    {
+      buffer.putInt((int)block.time[i]);
+      buffer.putFloat(block.thrust[i]);
+      buffer.putFloat(block.temp[i]);
+    }
+  }
+  
+  /**
+   * Append a CHANNEL_SAMPLES frame holding every sample in the block.
+   */
+  public void encodeChannelSamples(SampleBlock block)
+  {
+    int size = channelFrameSize(block.count);
+    ensureRoom(size);
+    
+    buffer.putInt(size - 4);
+    buffer.put(CHANNEL_SAMPLES);
+    buffer.putInt(sequence++);
+    buffer.putInt(block.count);
+    for (int i = 0; i < block.count; i++)
+    {
+      buffer.putInt((int)block.time[i]);
+      buffer.putFloat(block.thrust[i]);
+      buffer.putFloat(block.temp[i]);
+      buffer.putInt(block.channel[i]);
+    }
+  }
+  
+  /**
+   * Append a COMPRESSED_SAMPLES frame holding every sample in the block.
+   */
+  public void encodeCompressedSamples(SampleBlock block)
+  {
+    ensureRoom(HEADER_SIZE + SampleBlockCodec.maxEncodedSize(block.count));
+    
+    int start = buffer.position();
+    buffer.putInt(0);
+    buffer.put(COMPRESSED_SAMPLES);
+    buffer.putInt(sequence++);
+    int size = codec.encode(block, buffer);
+    buffer.putInt(start, HEADER_SIZE - 4 + size);
+  }
+  
+  /**
+   * Append a CALIBRATION frame holding the calibration's coefficients, with
+   * the sequence number of the next frame.
+   */
+  public void encodeCalibration(Calibration calibration)
+  {
+    encodeCalibration(calibration, sequence);
+  }
+  
+  /**
+   * Append a CALIBRATION frame holding the calibration's coefficients.
+   * @param sequence The sequence number of the frame the calibration applies
+   *     to, for when it has already been encoded
+   */
+  public void encodeCalibration(Calibration calibration, int sequence)
+  {
+    double[] thrust = calibration.getThrustCoefficients();
+    double[] temp = calibration.getTempCoefficients();
+    int size = HEADER_SIZE + 2 + 8 * (thrust.length + temp.length);
+    ensureRoom(size);
+    
+    buffer.putInt(size - 4);
+    buffer.put(CALIBRATION);
+    buffer.putInt(sequence);
+    putCoefficients(thrust);
+    putCoefficients(temp);
+  }
+  
+  private void putCoefficients(double[] coefficients)
+  {
+    buffer.put((byte)coefficients.length);
+    for (double coefficient : coefficients)
+    {
+      buffer.putDouble(coefficient);
+    }
+  }
+  
+  /**
+   * Append a STATUS frame holding the message.
+   */
+  public void encodeStatus(String message)
+  {
+    byte[] bytes = message.getBytes(UTF8);
+    ensureRoom(HEADER_SIZE + bytes.length);
+    
+    buffer.putInt(HEADER_SIZE - 4 + bytes.length);
+    buffer.put(STATUS);
+    buffer.putInt(sequence++);
+    buffer.put(bytes);
+  }
+  
+  /**
+   * @return The sequence number the next frame will have
+   */
+  public int getSequence()
+  {
+    return sequence;
+  }
+  
+  /**
+   * @return The number of encoded bytes waiting to be written
+   */
+  public int pending()
+  {
+    return buffer.position();
+  }
+  
+  /**
+   * Move all of the encoded frames into a new buffer, ready for reading, and
+   * empty the encoding buffer.
+   */
+  public ByteBuffer takeFrames()
+  {
+    buffer.flip();
+    ByteBuffer ret = ByteBuffer.allocate(buffer.remaining());
+    ret.put(buffer);
+    ret.flip();
+    buffer.clear();
+    return ret;
+  }
+  
+  /**
+   * Write all of the encoded frames to the stream and empty the buffer.
+   */
+  public void writeTo(OutputStream out) throws IOException
+  {
+    out.write(buffer.array(), 0, buffer.position());
+    out.flush();
+    buffer.clear();
+  }
+  
+  /**
+   * Discard any unwritten frames and restart the sequence numbers.
+   */
+  public void reset()
+  {
+    buffer.clear();
+    sequence = 0;
+  }
+  
+  private void ensureRoom(int size)
+  {
+    if (buffer.remaining() < size)
+    {
+      // the frames that are waiting have to go out before anything else, so
+      // grow the buffer instead of dropping them
+      ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+      buffer.flip();
+      bigger.put(buffer);
+      buffer = bigger;
+    }
+  }
+  
+}
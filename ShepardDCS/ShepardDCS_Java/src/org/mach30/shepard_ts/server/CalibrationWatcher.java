@@ -0,0 +1,104 @@
+package org.mach30.shepard_ts.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.mach30.shepard_ts.calibration.Calibration;
+
+/**
+ * Loads the calibration from the files recorded by the calibration utility
+ * and reloads it whenever they change, swapping it into the pipeline while
+ * samples are streaming.  The serial event thread never sees the swap, and
+ * every block is calibrated with either the old calibration or the new one.
+ * A file that fails to load leaves the current calibration in place.
+ */
+public class CalibrationWatcher implements Runnable
+{
+  
+  private SamplePipeline pipeline = null;
+  private File thrustFile = null;
+  private File tempFile = null;
+  private int degree = 1;
+  private long interval = 0;
+  
+  private long thrustModified = 0;
+  private long tempModified = 0;
+  
+  /**
+   * @param pipeline The pipeline to calibrate
+   * @param thrustFile The thrust calibration points, or null for the default
+   * @param tempFile The temperature calibration points, or null for the
+   *     default
+   * @param degree The degree of the polynomials to fit
+   * @param interval The time between checks for changes, in milliseconds
+   */
+  public CalibrationWatcher(SamplePipeline pipeline, File thrustFile, File tempFile, int degree,
+      long interval)
+  {
+    this.pipeline = pipeline;
+    this.thrustFile = thrustFile;
+    this.tempFile = tempFile;
+    this.degree = degree;
+    this.interval = interval;
+  }
+  
+  /**
+   * Load the calibration and set it on the pipeline.
+   * @throws IOException If the calibration can't be loaded
+   */
+  public void load() throws IOException
+  {
+    // noted first, so a file that fails to load isn't retried until it
+    // changes again
+    thrustModified = lastModified(thrustFile);
+    tempModified = lastModified(tempFile);
+    pipeline.setCalibration(Calibration.load(thrustFile, tempFile, degree));
+  }
+  
+  private static long lastModified(File file)
+  {
+    return file != null ? file.lastModified() : 0;
+  }
+  
+  /**
+   * Start watching for changes on a daemon thread.
+   * @return The watching thread
+   */
+  public Thread start()
+  {
+    Thread t = new Thread(this, "Calibration watcher");
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+  
+  @Override
+  public void run()
+  {
+    try
+    {
+      while (!Thread.currentThread().isInterrupted())
+      {
+        Thread.sleep(interval);
+  
+        if (lastModified(thrustFile) == thrustModified && lastModified(tempFile) == tempModified)
+        {
+          continue;
+        }
+        try
+        {
+          load();
+          System.out.println("Reloaded calibration: " + pipeline.getCalibration());
+        }
+        catch (IOException ioex)
+        {
+          System.err.println("Unable to reload calibration: " + ioex.getMessage());
+        }
+      }
+    }
+    catch (InterruptedException iex)
+    {
+    }
+  }
+  
+}
@@ -0,0 +1,198 @@
+package org.mach30.shepard_ts.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.calibration.Calibration;
+
+/**
+ * Encodes data for a set of TCP clients once per protocol and queues the same 
+ * buffer for every client using that protocol.  Clients are either on the 
+ * text protocol, one line per sample, or have switched to BinarySampleEncoder
+ * frames, with the samples either as they are or compressed.  Binary frames
+ * are numbered by the fanout rather than per client, so a client that was
+ * skipped can tell which frames it missed.  The binary and compressed frames
+ * are separate streams with their own sequence numbers, so that a client
+ * only sees a gap when it missed a frame.  Compressed clients are sent a
+ * CALIBRATION frame before their first samples and whenever the calibration
+ * of the samples changes.
+ * 
+ * When the server collects from several devices, each text line ends with
+ * the channel of the device the sample came from, binary clients are sent
+ * CHANNEL_SAMPLES frames instead of SAMPLES, and compressed frames carry the
+ * channels in the block.  With a single device the output is unchanged.
+ * 
+ * Everything queued for the clients is queued while holding the fanout's
+ * lock, so a client switching protocols while holding the lock sees a clean
+ * break between the two.
+ */
+public class ClientFanout
+{
+  
+  public static final String LINE_SEPARATOR = System.getProperty("line.separator");
+  
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  
+  /**
+   * A client's queue of outgoing buffers.
+   */
+  public interface Client
+  {
+    boolean isBinary();
+    
+    /**
+     * @return Whether a binary client wants COMPRESSED_SAMPLES frames
+     */
+    boolean isCompressed();
+    
+    /**
+     * Queue a buffer for the client without blocking.  The buffer is shared 
+     * with other clients, so it must not be modified.
+     */
+    void offer(ByteBuffer buffer);
+  }
+  
+  
+  private BinarySampleEncoder binaryEncoder = new BinarySampleEncoder(64 * 1024);
+  private BinarySampleEncoder compressedEncoder = new BinarySampleEncoder(64 * 1024);
+  private StringBuilder lines = new StringBuilder();
+  // the calibration each compressed client was last sent
+  private Map<Client, Calibration> calibrations = new WeakHashMap<Client, Calibration>();
+  
+  
+  public Object getLock()
+  {
+    return this;
+  }
+  
+  /**
+   * Queue a block of samples for each of the clients.
+   * @param channels Whether the samples come from several devices, so the
+   *     clients have to be told each sample's channel
+   */
+  public synchronized void publish(SampleBlock block, boolean channels,
+      Iterable<? extends Client> clients)
+  {
+    ByteBuffer text = null;
+    ByteBuffer binary = null;
+    ByteBuffer compressed = null;
+    ByteBuffer calibration = null;
+    int compressedSequence = 0;
+    
+    for (Client client : clients)
+    {
+      if (client.isBinary() && client.isCompressed())
+      {
+        if (compressed == null)
+        {
+          compressedSequence = compressedEncoder.getSequence();
+          compressedEncoder.encodeCompressedSamples(block);
+          compressed = compressedEncoder.takeFrames();
+        }
+        if (calibrations.get(client) != block.calibration)
+        {
+          // numbered for the samples, which have already been encoded
+          if (calibration == null)
+          {
+            compressedEncoder.encodeCalibration(block.calibration, compressedSequence);
+            calibration = compressedEncoder.takeFrames();
+          }
+          client.offer(calibration.duplicate());
+          calibrations.put(client, block.calibration);
+        }
+        client.offer(compressed.duplicate());
+      }
+      else if (client.isBinary())
+      {
+        // so the calibration is sent again if it switches back
+        calibrations.remove(client);
+        if (binary == null)
+        {
+          if (channels)
+          {
+            binaryEncoder.encodeChannelSamples(block);
+          }
+          else
+          {
+            binaryEncoder.encodeSamples(block);
+          }
+          binary = binaryEncoder.takeFrames();
+        }
+        client.offer(binary.duplicate());
+      }
+      else
+      {
+        calibrations.remove(client);
+        if (text == null)
+        {
+          lines.setLength(0);
+          for (int i = 0; i < block.count; i++)
+          {
+            lines.append(block.time[i]).append(',').append(block.thrust[i])
+                .append(',').append(block.temp[i]);
+            if (channels)
+            {
+              lines.append(',').append(block.channel[i]);
+            }
+            lines.append(LINE_SEPARATOR);
+          }
+          text = ByteBuffer.wrap(lines.toString().getBytes(ASCII));
+        }
+        client.offer(text.duplicate());
+      }
+    }
+  }
+  
+  /**
+   * Queue a status message for each of the clients.
+   */
+  public synchronized void publishStatus(String message, Iterable<? extends Client> clients)
+  {
+    ByteBuffer text = null;
+    ByteBuffer binary = null;
+    ByteBuffer compressed = null;
+    
+    for (Client client : clients)
+    {
+      // numbered in the client's own stream of frames
+      if (client.isBinary() && client.isCompressed())
+      {
+        if (compressed == null)
+        {
+          compressedEncoder.encodeStatus(message);
+          compressed = compressedEncoder.takeFrames();
+        }
+        client.offer(compressed.duplicate());
+      }
+      else if (client.isBinary())
+      {
+        if (binary == null)
+        {
+          binaryEncoder.encodeStatus(message);
+          binary = binaryEncoder.takeFrames();
+        }
+        client.offer(binary.duplicate());
+      }
+      else
+      {
+        if (text == null)
+        {
+          text = line(message);
+        }
+        client.offer(text.duplicate());
+      }
+    }
+  }
+  
+  /**
+   * @return The message as a line of the text protocol
+   */
+  public static ByteBuffer line(String message)
+  {
+    return ByteBuffer.wrap((message + LINE_SEPARATOR).getBytes(ASCII));
+  }
+  
+}
@@ -1,6 +1,6 @@
 package org.mach30.shepard_ts.server;
 
-import jssc.SerialPortEventListener;
+import org.mach30.shepard_ts.SampleBlock;
 
 public class ClientlessCollectionServer extends CollectionServer
 {
@@ -13,35 +13,35 @@ public class ClientlessCollectionServer extends CollectionServer
   @Override
   public void handleClient() throws Exception
   {
-    SerialPortEventListener listener = null;
+    awaitDevice();
     
-    while (listener == null)
-    {
-      Thread.sleep(10);
-      if (port != null)
-      {
-        System.out.println("Initializing listener...");
-        // TODO: make the instantiation of the listener an abstract getter
-        listener = new EchoListener();
-        port.addEventListener(listener);
-        port.writeByte(READY_COMMAND);
-      }
-    }
+    System.out.println("Initializing listener...");
+    pipeline.addSink("echo", new EchoSink());
+    startListening();
+    source.write(READY_COMMAND);
   }
   
   // TODO: move this to an instance of an abstract version of ClientlessCollectionServer
-  private class EchoListener extends ShepardSerialEventListener
+  private class EchoSink implements SampleSink
   {
-    
-    public EchoListener()
-    {
-      super(port);
-    }
 
     @Override
-    protected void handleData()
+    public void handleBlock(SampleBlock block)
     {
-      System.out.println(this.datapoint);
+      // with several devices, each line ends with the device's channel
+      boolean tagged = getDevices() != null;
+      StringBuilder lines = new StringBuilder(block.count * 26);
+      for (int i = 0; i < block.count; i++)
+      {
+        lines.append(block.time[i]).append(',').append(block.thrust[i])
+            .append(',').append(block.temp[i]);
+        if (tagged)
+        {
+          lines.append(',').append(block.channel[i]);
+        }
+        lines.append('\n');
+      }
+      System.out.print(lines);
     }
     
   }
@@ -0,0 +1,179 @@
+package org.mach30.shepard_ts.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing the data received from the collection hardware.  The
+ * counters are updated from the serial event thread without locking and can 
+ * be read from any thread, either directly or through a MetricsReporter.
+ * 
+ * With several devices, each device has its own metrics, which also count
+ * towards the total for all of them.  The total is then updated from every
+ * device's thread, which only makes its sample rate approximate.
+ */
+public class CollectionMetrics
+{
+  
+  // the sample rate is averaged over the last RATE_WINDOW - 1 full seconds
+  private static final int RATE_WINDOW = 6;
+  
+  private AtomicLong events = new AtomicLong();
+  private AtomicLong bytes = new AtomicLong();
+  private AtomicLong samples = new AtomicLong();
+  private AtomicLong resyncs = new AtomicLong();
+  private AtomicLong frames = new AtomicLong();
+  private AtomicLong corruptFrames = new AtomicLong();
+  private AtomicLong droppedFrames = new AtomicLong();
+  private LatencyHistogram decodeLatency = new LatencyHistogram();
+  
+  // samples received per second, indexed by the second modulo the window size
+  private AtomicLongArray secondCounts = new AtomicLongArray(RATE_WINDOW);
+  private AtomicLongArray secondStamps = new AtomicLongArray(RATE_WINDOW);
+  
+  private CollectionMetrics total = null;
+  
+  
+  public CollectionMetrics()
+  {
+  }
+  
+  /**
+   * @param total The metrics for all of the devices, which this device's
+   *     events are also recorded in
+   */
+  public CollectionMetrics(CollectionMetrics total)
+  {
+    this.total = total;
+  }
+  
+  /**
+   * Record a single RX event.
+   * @param byteCount The number of bytes received
+   * @param sampleCount The number of complete samples decoded
+   * @param resyncCount The number of times the decoder had to resynchronize
+   * @param decodeNanos The time from receiving the bytes to their samples 
+   *     being decoded and handed on, queued for the sinks when publishing to
+   *     a pipeline
+   */
+  public void recordEvent(int byteCount, int sampleCount, long resyncCount, long decodeNanos)
+  {
+    events.incrementAndGet();
+    bytes.addAndGet(byteCount);
+    samples.addAndGet(sampleCount);
+    if (resyncCount > 0)
+    {
+      resyncs.addAndGet(resyncCount);
+    }
+    decodeLatency.record(decodeNanos);
+    
+    long second = System.currentTimeMillis() / 1000;
+    int idx = (int)(second % RATE_WINDOW);
+    if (secondStamps.get(idx) != second)
+    {
+      // first event in a new second, so the slot holds a stale count
+      secondCounts.set(idx, 0);
+      secondStamps.set(idx, second);
+    }
+    secondCounts.addAndGet(idx, sampleCount);
+    
+    if (total != null)
+    {
+      total.recordEvent(byteCount, sampleCount, resyncCount, decodeNanos);
+    }
+  }
+  
+  /**
+   * Record the frames decoded from an RX event, when the hardware sends 
+   * frames.
+   * @param frameCount The number of frames decoded
+   * @param corruptCount The number of frames whose checksum failed
+   * @param droppedCount The number of frames missing from the sequence
+   */
+  public void recordFrames(long frameCount, long corruptCount, long droppedCount)
+  {
+    frames.addAndGet(frameCount);
+    corruptFrames.addAndGet(corruptCount);
+    droppedFrames.addAndGet(droppedCount);
+    
+    if (total != null)
+    {
+      total.recordFrames(frameCount, corruptCount, droppedCount);
+    }
+  }
+  
+  public long getEventCount()
+  {
+    return events.get();
+  }
+  
+  public long getByteCount()
+  {
+    return bytes.get();
+  }
+  
+  public long getSampleCount()
+  {
+    return samples.get();
+  }
+  
+  public long getResyncCount()
+  {
+    return resyncs.get();
+  }
+  
+  public long getFrameCount()
+  {
+    return frames.get();
+  }
+  
+  public long getCorruptFrameCount()
+  {
+    return corruptFrames.get();
+  }
+  
+  public long getDroppedFrameCount()
+  {
+    return droppedFrames.get();
+  }
+  
+  public LatencyHistogram getDecodeLatency()
+  {
+    return decodeLatency;
+  }
+  
+  /**
+   * @return The average number of samples per second received over the last 
+   *     few full seconds
+   */
+  public double getSampleRate()
+  {
+    long current = System.currentTimeMillis() / 1000;
+    long total = 0;
+    
+    for (int i = 0; i < RATE_WINDOW; i++)
+    {
+      long second = secondStamps.get(i);
+      // skip the current, partial second and anything too old
+      if (second < current && second >= current - (RATE_WINDOW - 1))
+      {
+        total += secondCounts.get(i);
+      }
+    }
+    
+    return total / (double)(RATE_WINDOW - 1);
+  }
+  
+  @Override
+  public String toString()
+  {
+    // frames are only counted when the hardware sends them
+    String framing = frames.get() + corruptFrames.get() == 0 ? "" : 
+        frames.get() + " frames (" + corruptFrames.get() + " corrupt, " + 
+        droppedFrames.get() + " dropped), ";
+    return events.get() + " events, " + bytes.get() + " bytes, " + 
+        samples.get() + " samples, " + framing + resyncs.get() + " resyncs, ~" + 
+        Math.round(getSampleRate()) + " Samples/s, decode " + decodeLatency;
+  }
+  
+}
@@ -1,47 +1,154 @@
 package org.mach30.shepard_ts.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import jssc.SerialPort;
-import jssc.SerialPortEvent;
-import jssc.SerialPortEventListener;
-import jssc.SerialPortException;
 import jssc.SerialPortList;
 
+import org.mach30.shepard_ts.FramedProtocol;
+import org.mach30.shepard_ts.simulator.SampleSource;
+import org.mach30.shepard_ts.simulator.SimulatedDevice;
+import org.mach30.shepard_ts.simulator.SimulatedSerialPort;
+import org.mach30.shepard_ts.transport.ByteListener;
+import org.mach30.shepard_ts.transport.ByteSource;
+import org.mach30.shepard_ts.transport.SerialByteSource;
+
 public abstract class CollectionServer
 {
   
   private static final String PORT              = "-port";
+  private static final String SOURCE            = "-source";
   private static final String RATE              = "-rate";
   private static final String DATA_BITS         = "-dbits";
   private static final String STOP_BITS         = "-sbits";
   private static final String PARITY            = "-parity";
   private static final String CONNECTION_DELAY  = "-conxdelay";
   private static final String CONNECTION_RETRYS = "-retrys";
+  private static final String DISCOVERY_TIMEOUT = "-discoverytimeout";
+  private static final String PORT_CACHE        = "-portcache";
+  private static final String CACHED_PORT_TIMEOUT = "-cachetimeout";
+  private static final String METRICS_INTERVAL  = "-metrics";
+  private static final String QUEUE_SIZE        = "-queuesize";
+  private static final String BACKPRESSURE      = "-backpressure";
+  private static final String BATCH_SIZE        = "-batchsize";
+  private static final String BATCH_DELAY       = "-batchdelay";
+  public static final String THRUST_CALIBRATION = "-thrustcal";
+  public static final String TEMP_CALIBRATION  = "-tempcal";
+  public static final String CALIBRATION_DEGREE = "-caldegree";
+  private static final String SIMULATE          = "-simulate";
+  private static final String SIMULATION_SPEED  = "-simspeed";
+  private static final String SIMULATION_LOOP   = "-simloop";
+  private static final String DEVICES           = "-devices";
+  private static final String MERGE_DELAY       = "-mergedelay";
+  private static final String PROTOCOL          = "-protocol";
+  private static final String SIMULATION_PROTOCOL = "-simprotocol";
+  
+  private static final String SIMULATED_PORT = "simulated";
   
   private static final byte DISCOVERY_COMMAND = (byte)0x44; // D
+  // how long to wait for an answer after each discovery command, in ms.  the
+  // hardware drops anything sent while it boots, so the command is repeated
+  // until it answers
+  private static final int[] DISCOVERY_BACKOFF = {20, 40, 80, 160, 250};
+  // how long to wait for the answer to the version command, in ms.  version 1
+  // firmware never answers, so this is what finding it costs
+  private static final int VERSION_TIMEOUT = 100;
+  // the least time given to discovering the hardware again after it didn't
+  // answer the version command, in ms
+  private static final int REDISCOVERY_TIMEOUT = 500;
   protected static final byte READY_COMMAND = (byte)0x52; // R
   protected static final byte QUIT_COMMAND = (byte)0x51; // R
   
   private String portName  = null;
+  // where to read the bytes from instead of a serial port, see ByteSource
+  private String sourceName = null;
   private int baudRate     = 115200;
   private int dataBits     = 8;
   private int stopBits     = 1;
   private int parity       = 0;
+  // the longest to wait for the hardware to answer on a port is 
+  // retrys * (delay + delay / 10), the time the fixed delays used to take
   private int delay        = 2500;
   private int retrys       = 2;
+  // the longest to look for the hardware in ms, 0 to work it out from the 
+  // delay and retrys
+  private int discoveryTimeout = 0;
+  // where the last port found is remembered, or null to always scan
+  private PortCache portCache = PortCache.getDefault();
+  // the longest to wait for the hardware on the cached port before falling
+  // back to the scan.  opening the port resets the hardware, so this needs to
+  // cover its boot time
+  private int cachedPortTimeout = 2000;
+  private int metricsInterval = 5;
+  private int queueSize    = SamplePipeline.DEFAULT_CAPACITY;
+  private BackpressurePolicy backpressure = BackpressurePolicy.DROP_OLDEST;
+  private int batchSize    = SamplePipeline.DEFAULT_BATCH_SIZE;
+  private int batchDelay   = SamplePipeline.DEFAULT_BATCH_DELAY;
+  // the points recorded by the calibration utility, which are fitted with
+  // polynomials of the calibration degree and reloaded when they change.
+  // without them the firmware's calibration is used
+  private File thrustCalibration = null;
+  private File tempCalibration = null;
+  private int calibrationDegree = 1;
+  private CalibrationWatcher calibrationWatcher = null;
+  // the samples a simulated device sends in place of the hardware, which is
+  // "synthetic", a run file or a capture, or null to use the hardware.  the
+  // speed is a multiple of real time, 0 for as fast as they can be read
+  private String simulation = null;
+  private double simulationSpeed = 1;
+  private boolean simulationLoop = false;
+  // the simulated devices by the name of their port
+  private Map<String, SimulatedDevice> simulators = null;
+  // how many devices to collect from at once, 0 for every one that answers.
+  // several devices are merged into one stream, waiting at most the merge 
+  // delay in ms for a device that has fallen quiet
+  private int deviceCount  = 1;
+  private int mergeDelay   = DeviceGroup.DEFAULT_MERGE_DELAY;
+  // the newest version of the protocol to ask the hardware for, or the 
+  // version a named source was recorded in, 0 for the newest the hardware
+  // can send and version 1 for named sources.  the simulated firmware sends
+  // the simulation protocol
+  private int protocol     = 0;
+  private int simulationProtocol = FramedProtocol.VERSION;
+  // the version agreed with a single device
+  private int deviceProtocol = 1;
+  
+  // where the bytes from the hardware are read from, once it has been found.
+  // with several devices this is their group.  only use it once awaitDevice
+  // has returned, which is when everything about the connection has been set
+  protected ByteSource source = null;
+  private DeviceGroup devices = null;
   
-  protected SerialPort port = null;
+  private MetricsReporter reporter = null;
   
-  // TODO: see if there's a better way to handle this than making it static.
-  // currently, this seems to be the only way to make it so that the threads
-  // can see it
-  static boolean deviceConnected = false;
+  protected CollectionMetrics metrics = new CollectionMetrics();
   
-  protected String status = "";
-  protected boolean errorStatus = false;
+  // created once the arguments have been parsed
+  protected SamplePipeline pipeline = null;
+  
+  private volatile boolean deviceConnected = false;
+  // released once the device has been found, so that threads needing the
+  // device can wait for it instead of polling
+  private CountDownLatch deviceReady = new CountDownLatch(1);
+  
+  protected volatile String status = "";
+  protected volatile boolean errorStatus = false;
   
   
   public CollectionServer() throws Exception
@@ -55,6 +162,8 @@ public abstract class CollectionServer
     // although this currently just handles argument parsing, it could 
     // conceivably handle more in the future
     parseArgs(args);
+    createPipeline();
+    createSimulator();
   }
   
   /**
@@ -67,6 +176,57 @@ public abstract class CollectionServer
     // although this currently just handles argument parsing, it could 
     // conceivably handle more in the future
     parseArgs(args);
+    createPipeline();
+    createSimulator();
+  }
+  
+  private void createPipeline() throws Exception
+  {
+    pipeline = new SamplePipeline(queueSize, backpressure, batchSize, batchDelay);
+    if (thrustCalibration != null || tempCalibration != null)
+    {
+      calibrationWatcher = new CalibrationWatcher(pipeline, thrustCalibration, tempCalibration,
+          calibrationDegree, 1000);
+      try
+      {
+        calibrationWatcher.load();
+      }
+      catch (IOException ioex)
+      {
+        throw new Exception("Failed to load calibration: " + ioex.getMessage());
+      }
+      System.out.println("Calibration: " + pipeline.getCalibration());
+    }
+  }
+  
+  private void createSimulator() throws Exception
+  {
+    if (simulation == null)
+    {
+      return;
+    }
+    
+    // every simulated device sends the same readings from a source of its own
+    simulators = new LinkedHashMap<String, SimulatedDevice>();
+    int count = Math.max(1, deviceCount);
+    for (int i = 1; i <= count; i++)
+    {
+      SampleSource source = null;
+      try
+      {
+        // a capture was converted with the calibration it would be now
+        source = SampleSource.open(simulation, pipeline.getCalibration());
+      }
+      catch (IOException ioex)
+      {
+        throw new Exception("Failed to open the simulation " + simulation + ": " + ioex.getMessage());
+      }
+      simulators.put(count > 1 ? SIMULATED_PORT + i : SIMULATED_PORT, 
+          new SimulatedDevice(source, simulationSpeed, simulationLoop, simulationProtocol));
+    }
+    System.out.println("Simulating " + (simulators.size() > 1 ? simulators.size() + " devices" : "the hardware") +
+        " with " + simulation + 
+        (simulationSpeed > 0 ? " at " + simulationSpeed + "x real time" : " as fast as it can be read"));
   }
   
   /**
@@ -81,10 +241,134 @@ public abstract class CollectionServer
   {
     Thread t = new Thread(new PortDetector());
     t.start();
+    
+    if (metricsInterval > 0)
+    {
+      reporter = new MetricsReporter(metrics, pipeline, metricsInterval * 1000L);
+      reporter.start();
+    }
+    if (calibrationWatcher != null)
+    {
+      calibrationWatcher.start();
+    }
+    
+    // a run without a quit command ends when the server is stopped
+    Runtime.getRuntime().addShutdownHook(new Thread("Latency report") {
+      @Override
+      public void run()
+      {
+        if (metrics.getSampleCount() > 0)
+        {
+          printLatency();
+        }
+      }
+    });
+  }
+  
+  /**
+   * @return The metrics for the data received from the collection hardware
+   */
+  public CollectionMetrics getMetrics()
+  {
+    return metrics;
   }
     
   public abstract void handleClient() throws Exception;  
   
+  /**
+   * Create the listener that decodes the data from the collection hardware
+   * and publishes it to the sinks added to the pipeline.  Only call this once
+   * the source has been connected.
+   */
+  protected ShepardSerialEventListener createListener()
+  {
+    return new PipelineEventListener(metrics, pipeline);
+  }
+  
+  /**
+   * Start decoding the data from the collection hardware into the pipeline,
+   * merging the devices into one stream when there are several.  Only call
+   * this once the source has been connected.
+   */
+  protected void startListening() throws IOException
+  {
+    if (devices != null)
+    {
+      devices.start(pipeline);
+    }
+    else
+    {
+      ShepardSerialEventListener listener = createListener();
+      listener.setProtocol(deviceProtocol);
+      source.setListener(listener);
+    }
+  }
+  
+  /**
+   * @return The devices being collected from, or null if there is only one
+   */
+  public DeviceGroup getDevices()
+  {
+    return devices;
+  }
+  
+  public SamplePipeline getPipeline()
+  {
+    return pipeline;
+  }
+  
+  /**
+   * Start measuring the latencies afresh, at the start of a run.
+   */
+  public void resetLatency()
+  {
+    metrics.getDecodeLatency().reset();
+    pipeline.resetLatency();
+  }
+  
+  /**
+   * Print the latencies of each stage samples pass through, from when they
+   * were received from the source, since the start of the run.
+   */
+  public void printLatency()
+  {
+    StringBuilder report = new StringBuilder("Latency since the start of the run:");
+    report.append("\n  decode: ").append(metrics.getDecodeLatency().getCount())
+        .append(" reads, ").append(metrics.getDecodeLatency());
+    for (SampleSubscription subscription : pipeline.getSubscriptions())
+    {
+      report.append("\n  ").append(subscription.getName()).append(": ")
+          .append(subscription.getTotalLatency().getCount()).append(" blocks");
+      report.append("\n    queued ").append(subscription.getQueueLatency());
+      report.append("\n    sink   ").append(subscription.getSinkLatency());
+      report.append("\n    total  ").append(subscription.getTotalLatency());
+    }
+    System.out.println(report);
+  }
+  
+  public boolean isDeviceConnected()
+  {
+    return deviceConnected;
+  }
+  
+  /**
+   * Wait until the collection hardware has been found and its port connected.
+   */
+  public void awaitDevice() throws InterruptedException
+  {
+    deviceReady.await();
+  }
+  
+  /**
+   * Wait until the collection hardware has been found and its port connected.
+   * @param timeout The longest to wait, in milliseconds
+   * @return true if the device is connected, false if the wait timed out
+   */
+  public boolean awaitDevice(long timeout) throws InterruptedException
+  {
+    return deviceReady.await(timeout, TimeUnit.MILLISECONDS);
+  }
+  
   
   protected void parseArgs(List<String> args) throws Exception {
     Iterator<String> iter = args.iterator();
@@ -95,6 +379,15 @@ public abstract class CollectionServer
     while (iter.hasNext()) {
       arg = iter.next();
       
+      if (isFlag(arg))
+      {
+        if (SIMULATION_LOOP.equals(arg))
+        {
+          simulationLoop = true;
+        }
+        continue;
+      }
+      
       // currently all of the arguments require a parameter to follow them, so
       // check to make sure there's another parameter, otherwise we're done
       if (!iter.hasNext()) {
@@ -106,6 +399,46 @@ public abstract class CollectionServer
       {
         portName = param;
       }
+      else if (SOURCE.equals(arg))
+      {
+        sourceName = param;
+      }
+      else if (PORT_CACHE.equals(arg))
+      {
+        // "none" disables the cache
+        portCache = "none".equals(param) ? null : new PortCache(new File(param));
+      }
+      else if (BACKPRESSURE.equals(arg))
+      {
+        backpressure = BackpressurePolicy.parse(param);
+      }
+      else if (THRUST_CALIBRATION.equals(arg))
+      {
+        thrustCalibration = new File(param);
+      }
+      else if (TEMP_CALIBRATION.equals(arg))
+      {
+        tempCalibration = new File(param);
+      }
+      else if (SIMULATE.equals(arg))
+      {
+        simulation = param;
+      }
+      else if (SIMULATION_SPEED.equals(arg))
+      {
+        try
+        {
+          simulationSpeed = Double.parseDouble(param);
+          if (simulationSpeed < 0)
+          {
+            throw new NumberFormatException();
+          }
+        }
+        catch (NumberFormatException nfex)
+        {
+          throw new Exception("Failed to parse parameter for " + arg + " argument.  Expected a positive number");
+        }
+      }
       else
       {
         try {
@@ -141,14 +474,73 @@ public abstract class CollectionServer
         {
           retrys = intParam;
         }
+        else if (DISCOVERY_TIMEOUT.equals(arg)) 
+        {
+          discoveryTimeout = intParam;
+        }
+        else if (CACHED_PORT_TIMEOUT.equals(arg)) 
+        {
+          cachedPortTimeout = intParam;
+        }
+        else if (METRICS_INTERVAL.equals(arg)) 
+        {
+          // seconds between metrics reports, 0 to disable them
+          metricsInterval = intParam;
+        }
+        else if (QUEUE_SIZE.equals(arg)) 
+        {
+          queueSize = intParam;
+        }
+        else if (BATCH_SIZE.equals(arg)) 
+        {
+          batchSize = Math.max(1, intParam);
+        }
+        else if (BATCH_DELAY.equals(arg)) 
+        {
+          batchDelay = intParam;
+        }
+        else if (CALIBRATION_DEGREE.equals(arg)) 
+        {
+          calibrationDegree = intParam;
+        }
+        else if (DEVICES.equals(arg)) 
+        {
+          // 0 collects from every device that answers
+          deviceCount = intParam;
+        }
+        else if (MERGE_DELAY.equals(arg)) 
+        {
+          mergeDelay = intParam;
+        }
+        else if (PROTOCOL.equals(arg)) 
+        {
+          protocol = intParam;
+        }
+        else if (SIMULATION_PROTOCOL.equals(arg)) 
+        {
+          simulationProtocol = intParam;
+        }
       }      
     }
   }  
   
+  /**
+   * @return true if the argument stands alone rather than being followed by a 
+   *     parameter
+   */
+  protected boolean isFlag(String arg)
+  {
+    return SIMULATION_LOOP.equals(arg);
+  }
+  
   private String[] getPortNames() {
     String[] portNames = null;
     
-    if (port != null)
+    if (simulators != null)
+    {
+      portNames = simulators.keySet().toArray(new String[simulators.size()]);
+    }
+    else if (portName != null)
     {
       portNames = new String[1];
       portNames[0] = portName;
@@ -161,6 +553,41 @@ public abstract class CollectionServer
     return portNames;
   }
   
+  /**
+   * Create the port with the given name, which has the simulated device on
+   * the other end when simulating.
+   */
+  private SerialPort createPort(String name)
+  {
+    if (simulators != null)
+    {
+      return new SimulatedSerialPort(name, simulators.get(name));
+    }
+    return new SerialPort(name);
+  }
+  
+  /**
+   * @return The longest to spend looking for the hardware, in milliseconds
+   */
+  private long getDiscoveryTimeout()
+  {
+    if (discoveryTimeout > 0)
+    {
+      return discoveryTimeout;
+    }
+    // enough for the handshake on a port, with a second to spare
+    return getHandshakeTimeout() + 1000L;
+  }
+  
+  /**
+   * @return The longest to wait for the hardware to answer on a port, in 
+   *     milliseconds
+   */
+  private long getHandshakeTimeout()
+  {
+    return retrys * (delay + delay / 10L);
+  }
+  
   protected void setStatus(String message)
   {
     status = message;
@@ -175,143 +602,591 @@ public abstract class CollectionServer
   }
   
   
+  /**
+   * Looks for the hardware, first on the port it was last found on and then
+   * on every candidate port at once.  Each port is probed on its own thread,
+   * the first port to answer the discovery command is used and the other 
+   * probes are cancelled.  
+   * 
+   * When collecting from several devices, the probes carry on until enough
+   * ports have answered, or every port has when collecting from all of them.
+   */
   private class PortDetector implements Runnable
   {
     
     private Exception ex = null;
-
-    SerialPort currport = null; 
+    
+    // set once the detector has finished, after which a probe that finds the
+    // hardware closes its port instead of claiming it
+    private boolean finished = false;
+    // the first probe to find the hardware, and every one that did
+    private PortProbe winner = null;
+    private List<PortProbe> winners = new ArrayList<PortProbe>();
     
     @Override
     public void run()
+    {
+      long start = System.currentTimeMillis();
+      
+      if (sourceName != null)
+      {
+        openSource(start);
+        return;
+      }
+      
+      PortCache.Entry cached = getCachedPort();
+      if (cached != null)
+      {
+        probeCachedPort(cached);
+      }
+      
+      if (winner == null)
+      {
+        scan();
+      }
+      
+      if (winner == null)
+      {
+        setErrorStatus("Unable to connect to Data Collection Hardware");
+        return;
+      }
+      if (deviceCount > winners.size())
+      {
+        System.err.println("Only found " + winners.size() + " of " + deviceCount + " devices");
+      }
+      
+      if (winners.size() > 1)
+      {
+        connectDevices(winners, start);
+        return;
+      }
+      
+      deviceProtocol = winner.getProtocol();
+      source = winner.getSource();
+      setStatus("Connected on port " + source.getName() + " with protocol version " + 
+          deviceProtocol + " after " + (System.currentTimeMillis() - start) + " ms");
+      
+      if (portCache != null && simulators == null)
+      {
+        PortCache.Entry entry = new PortCache.Entry();
+        entry.portName = source.getName();
+        entry.baudRate = baudRate;
+        entry.dataBits = dataBits;
+        entry.stopBits = stopBits;
+        entry.parity = parity;
+        entry.connected = System.currentTimeMillis();
+        portCache.save(entry);
+      }
+      
+      connected();
+    }
+    
+    /**
+     * Open the source named on the command line instead of looking for the
+     * hardware.  Sources other than serial ports can't answer the discovery
+     * command, so they are used as they are.
+     */
+    private void openSource(long start)
+    {
+      // several sources are separated by commas, one for each device
+      String[] specs = sourceName.split(",");
+      ByteSource[] named = new ByteSource[specs.length];
+      int[] protocols = new int[specs.length];
+      deviceProtocol = protocol > 0 ? protocol : 1;
+      Arrays.fill(protocols, deviceProtocol);
+      try
+      {
+        for (int i = 0; i < specs.length; i++)
+        {
+          named[i] = ByteSource.create(specs[i].trim());
+        }
+        if (named.length > 1)
+        {
+          DeviceGroup group = new DeviceGroup(named, protocols, metrics, queueSize, mergeDelay);
+          group.open();
+          devices = group;
+          source = group;
+        }
+        else
+        {
+          named[0].open();
+          source = named[0];
+        }
+      }
+      catch (IOException ioex)
+      {
+        ex = ioex;
+        setErrorStatus("Unable to open " + sourceName + ": " + ioex.getMessage());
+        return;
+      }
+      
+      setStatus("Connected to " + source.getName() + " after " + 
+          (System.currentTimeMillis() - start) + " ms");
+      connected();
+    }
+    
+    /**
+     * Collect from every device that was found, merged into one stream.
+     */
+    private void connectDevices(List<PortProbe> found, long start)
+    {
+      ByteSource[] sources = new ByteSource[found.size()];
+      int[] protocols = new int[found.size()];
+      StringBuilder names = new StringBuilder();
+      for (int i = 0; i < sources.length; i++)
+      {
+        sources[i] = found.get(i).getSource();
+        protocols[i] = found.get(i).getProtocol();
+        names.append(i > 0 ? ", " : "").append(sources[i].getName())
+            .append(" (v").append(protocols[i]).append(')');
+      }
+      
+      devices = new DeviceGroup(sources, protocols, metrics, queueSize, mergeDelay);
+      source = devices;
+      setStatus("Connected to " + sources.length + " devices on ports " + names + " after " + 
+          (System.currentTimeMillis() - start) + " ms");
+      connected();
+    }
+    
+    /**
+     * Let the threads waiting for the device go, once everything about the
+     * connection has been set.
+     */
+    private void connected()
+    {
+      if (reporter != null)
+      {
+        reporter.setDevices(devices);
+      }
+      deviceConnected = true;
+      deviceReady.countDown();
+    }
+    
+    /**
+     * @return The cached port worth trying before the scan, or null if there
+     *     isn't one
+     */
+    private PortCache.Entry getCachedPort()
+    {
+      // the cache only remembers one port
+      if (portCache == null || simulators != null || deviceCount != 1)
+      {
+        return null;
+      }
+      
+      PortCache.Entry cached = portCache.load();
+      if (cached == null)
+      {
+        return null;
+      }
+      if (!cached.matches(baudRate, dataBits, stopBits, parity))
+      {
+        System.out.println("Ignoring cached port " + cached + ", the serial settings have changed");
+        return null;
+      }
+      if (portName != null && !portName.equals(cached.portName))
+      {
+        return null;
+      }
+      return cached;
+    }
+    
+    /**
+     * Give the port the hardware was last found on a short handshake.
+     */
+    private void probeCachedPort(PortCache.Entry cached)
+    {
+      setStatus("Trying cached port " + cached);
+      PortProbe probe = new PortProbe(cached.portName, cachedPortTimeout);
+      try
+      {
+        probe.call();
+      }
+      catch (Exception ex)
+      {
+        // the probe records what went wrong, and the scan will try again
+      }
+      System.out.println("  " + probe);
+    }
+    
+    /**
+     * Probe every candidate port at once, until one answers or the discovery
+     * timeout runs out.
+     */
+    private void scan()
     {
       String[] names = getPortNames();
-      String name = null;
+      if (names.length == 0)
+      {
+        setErrorStatus("No serial ports found.");
+        return;
+      }
       
-      for (int attempt = 0; attempt < retrys && currport == null; ++attempt)
+      long timeout = getDiscoveryTimeout();
+      setStatus("Probing " + names.length + " port(s) for the Data Acquisition hardware");
+      
+      ExecutorService executor = Executors.newFixedThreadPool(names.length, 
+          new SessionThreadFactory("Port probe", false));
+      CompletionService<ByteSource> completion = new ExecutorCompletionService<ByteSource>(executor);
+      List<PortProbe> probes = new ArrayList<PortProbe>();
+      for (String name : names)
       {
-        setStatus("Starting attempt " + (attempt + 1) + " of " + retrys + " at connecting to the DAta Acquisition hardware");
-        
-        for (int portNameIdx = 0; portNameIdx < names.length; portNameIdx++)
+        PortProbe probe = new PortProbe(name, getHandshakeTimeout());
+        probes.add(probe);
+        completion.submit(probe);
+      }
+      
+      long start = System.currentTimeMillis();
+      try
+      {
+        for (int remaining = probes.size(); remaining > 0 && !isSatisfied(); --remaining)
         {
-          name = names[portNameIdx];
-  
-          setStatus("Trying " + name);
-          currport = new SerialPort(name);
-          
-          try
-          {        
-            if (!currport.openPort())
+          long wait = start + timeout - System.currentTimeMillis();
+          Future<ByteSource> result = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+          if (result == null)
+          {
+            // collecting from every device that answers always ends here, so
+            // it is only an error if none of them did
+            if (hasWinner())
             {
-              setErrorStatus("Failed to open port " + portName);
+              setStatus("Stopped looking for more Data Acquisition hardware after " + timeout + " ms");
             }
-            else if (!currport.setParams(baudRate, dataBits, stopBits, parity))
+            else
             {
-              setErrorStatus("Unable to initialize serial connection");
+              setErrorStatus("Gave up looking for the Data Acquisition hardware after " + timeout + " ms");
             }
-            else
+            break;
+          }
+          getResult(result);
+        }
+      }
+      catch (InterruptedException iex)
+      {
+        ex = new Exception("An interrupt was encountered.", iex);
+      }
+      
+      synchronized (this)
+      {
+        finished = true;
+      }
+      // cancel whatever is still probing, they'll close their own ports
+      executor.shutdownNow();
+      try
+      {
+        // give the cancelled probes a moment to record how far they got
+        executor.awaitTermination(250, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException iex)
+      {
+      }
+      
+      // the devices' channels follow the order of their ports, not the order
+      // they answered in
+      List<PortProbe> ordered = new ArrayList<PortProbe>();
+      for (PortProbe probe : probes)
+      {
+        System.out.println("  " + probe);
+        if (winners.contains(probe))
+        {
+          ordered.add(probe);
+        }
+      }
+      winners = ordered;
+    }
+    
+    private ByteSource getResult(Future<ByteSource> result) throws InterruptedException
+    {
+      try
+      {
+        return result.get();
+      }
+      catch (ExecutionException eex)
+      {
+        ex = new Exception("An error occurred initializing the serial connection", eex.getCause());
+        return null;
+      }
+    }
+    
+    /**
+     * Claim the port a probe found the hardware on.
+     * @return false if the detector has already finished and the port should
+     *     be closed
+     */
+    private synchronized boolean claim(PortProbe probe)
+    {
+      if (finished)
+      {
+        return false;
+      }
+      if (winner == null)
+      {
+        winner = probe;
+      }
+      winners.add(probe);
+      finished = isSatisfied();
+      return true;
+    }
+    
+    /**
+     * @return true once any device has been found
+     */
+    private synchronized boolean hasWinner()
+    {
+      return winner != null;
+    }
+    
+    /**
+     * @return true once enough devices have been found
+     */
+    private synchronized boolean isSatisfied()
+    {
+      return deviceCount > 0 && winners.size() >= deviceCount;
+    }
+    
+    @SuppressWarnings("unused")
+    // TODO: figure out how to handle exceptions here, or if it's even useful to get one
+    public Exception getException() {
+      return ex;
+    }
+    
+    
+    /**
+     * Probes one port, returning its source if the hardware answers the 
+     * discovery command or null otherwise.  The discovery command is sent again after
+     * each step of the backoff schedule without an answer, and the probe 
+     * finishes as soon as the answer arrives.
+     */
+    private class PortProbe implements Callable<ByteSource>
+    {
+      
+      private String name = null;
+      private long timeout = 0;
+      
+      private ByteSource currport = null;
+      // the version of the protocol agreed with the hardware
+      private int version = 1;
+      private volatile String outcome = "not started";
+      private volatile long elapsed = 0;
+      
+      /**
+       * @param name The name of the port to probe
+       * @param timeout The longest to wait for the hardware to answer, in 
+       *     milliseconds
+       */
+      PortProbe(String name, long timeout)
+      {
+        this.name = name;
+        this.timeout = timeout;
+      }
+      
+      public ByteSource getSource()
+      {
+        return currport;
+      }
+      
+      /**
+       * @return The version of the protocol agreed with the hardware
+       */
+      public int getProtocol()
+      {
+        return version;
+      }
+      
+      @Override
+      public ByteSource call() throws Exception
+      {
+        long start = System.currentTimeMillis();
+        currport = new SerialByteSource(createPort(name), baudRate, dataBits, stopBits, parity);
+        boolean keep = false;
+        
+        try
+        {
+          outcome = "opening";
+          currport.open();
+          
+          DetectionListener listener = new DetectionListener();
+          currport.setListener(listener);
+          
+          long deadline = start + timeout;
+          if (!discover(listener, deadline))
+          {
+            currport.removeListener();
+            return null;
+          }
+          
+          // ask for frames, which firmware that can't send them ignores
+          int highest = protocol > 0 ? protocol : FramedProtocol.VERSION;
+          if (highest >= FramedProtocol.VERSION)
+          {
+            outcome = "no response to the version command";
+            currport.write(FramedProtocol.VERSION_COMMAND);
+            version = Math.min(listener.awaitVersion(VERSION_TIMEOUT), highest);
+            
+            // the answer may only be late, and the firmware sends frames once
+            // it has answered, so discover it again, which makes it forget the
+            // version command, before settling on version 1
+            if (version < FramedProtocol.VERSION)
             {
-              DetectionListener listener = new DetectionListener();
-              // currently, try to handle all the comm events, including flow
-              // control
-              currport.addEventListener(listener, SerialPort.MASK_RXCHAR
-                | SerialPort.MASK_RXFLAG | SerialPort.MASK_CTS
-                | SerialPort.MASK_DSR | SerialPort.MASK_RLSD);
-              
-              // delay for a bit to let the serial communications initialize
-              int delayPart = delay / 10;
-              for (int delayNum = 0; delayNum < 10; delayNum++)
-              {
-                System.out.print(".");
-                Thread.sleep(delayPart);
-              }
-              
-              // write the discovery command to attempt communication
-              currport.writeByte(DISCOVERY_COMMAND);
-  
-              // delay for a little bit longer, just-in-case
-              System.out.print(".");
-              Thread.sleep(delayPart);
-  
-              // this is the end-of-line for the "Trying" message
-              System.out.println();
-              
-              // if a connection was detected, update the connected port and break
-              // out of the loop to stop discovery
-              if (listener.isConnected())
-              {
-                currport.removeEventListener();
-                
-                port = currport;
-                
-                setStatus("Connected on port " + name);
-                
-                deviceConnected = true;
-                
-                break;
-              }
-              else
+              listener.expectAnswer();
+              long rediscovery = System.currentTimeMillis() + REDISCOVERY_TIMEOUT;
+              if (!discover(listener, Math.max(deadline, rediscovery)))
               {
-                currport.removeEventListener();
-                currport.closePort();
-                currport = null;
+                outcome = "no response to discovery after the version command";
+                currport.removeListener();
+                return null;
               }
             }
           }
-          catch (SerialPortException spex)
+          currport.removeListener();
+          
+          if (!claim(this))
           {
-            ex = new Exception("An error occurred initializing the serial connection", spex);
+            outcome = "responded after another port was chosen";
+            return null;
           }
-          catch (InterruptedException iex)
+          
+          // drop the answers to any repeated discovery commands
+          currport.purge();
+          outcome = "connected, protocol version " + version;
+          keep = true;
+          return currport;
+        }
+        catch (InterruptedException iex)
+        {
+          outcome = "cancelled, " + outcome;
+          return null;
+        }
+        catch (IOException ioex)
+        {
+          outcome = "failed: " + ioex.getMessage();
+          throw ioex;
+        }
+        finally
+        {
+          elapsed = System.currentTimeMillis() - start;
+          if (!keep)
           {
-            ex = new Exception("An interrupt was encountered.", iex);
+            close();
           }
         }
-        
-        setStatus("Attempt " + (attempt + 1) + " of " + retrys + " failed to locate the Data Acquisition hardware.");
       }
       
-      if (currport == null)
+      /**
+       * Send the discovery command until the hardware answers, following the
+       * backoff schedule.
+       * @param deadline When to give up, from System.currentTimeMillis
+       * @return true if the hardware answered
+       */
+      private boolean discover(DetectionListener listener, long deadline) 
+          throws IOException, InterruptedException
       {
-        setErrorStatus("Unable to connect to Data Collection Hardware");
+        boolean answered = false;
+        for (int attempt = 0; !answered; ++attempt)
+        {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0)
+          {
+            break;
+          }
+          outcome = "no response to " + (attempt + 1) + " discovery command(s)";
+          
+          // write the discovery command to attempt communication
+          currport.write(DISCOVERY_COMMAND);
+          
+          int backoff = DISCOVERY_BACKOFF[Math.min(attempt, DISCOVERY_BACKOFF.length - 1)];
+          answered = listener.awaitAnswer(Math.min(backoff, remaining));
+        }
+        return answered;
+      }
+      
+      private void close()
+      {
+        try
+        {
+          currport.close();
+        }
+        catch (IOException ioex)
+        {
+        }
+      }
+      
+      @Override
+      public String toString()
+      {
+        return name + ": " + outcome + " (" + elapsed + " ms)";
       }
+      
     }
     
-    @SuppressWarnings("unused")
-    // TODO: figure out how to handle exceptions here, or if it's even useful to get one
-    public Exception getException() {
-      return ex;
-    }
-   
     
-    private class DetectionListener implements SerialPortEventListener
+    /**
+     * Waits for the hardware to echo the discovery command, and then for the
+     * answer to the version command, which is the command followed by the
+     * version.
+     */
+    private class DetectionListener implements ByteListener
     {
       
-      private boolean connected = false;
-
+      // replaced to wait for the hardware to be discovered again
+      private volatile CountDownLatch answered = new CountDownLatch(1);
+      private CountDownLatch versioned = new CountDownLatch(1);
+      private volatile int version = 1;
+      // whether the next byte is the version
+      private boolean versionNext = false;
+      
       @Override
-      public void serialEvent(SerialPortEvent event)
+      public void bytesReceived(byte[] buffer, int offset, int length)
       {
-        if (event.isRXCHAR() || event.isRXFLAG())
+        for (int i = offset; i < offset + length; i++)
         {
-          try
+          if (answered.getCount() > 0)
           {
-            byte[] buffer = currport.readBytes(event.getEventValue());
-            
-            if (!connected && buffer.length == 1)
+            if (buffer[i] == DISCOVERY_COMMAND)
             {
-              connected = true;
+              answered.countDown();
             }
-          } 
-          catch (SerialPortException spex)
+          }
+          else if (versionNext)
           {
+            version = buffer[i] & 0xff;
+            versionNext = false;
+            versioned.countDown();
+          }
+          else if (buffer[i] == FramedProtocol.VERSION_COMMAND && versioned.getCount() > 0)
+          {
+            versionNext = true;
           }
         }
       }
       
-      public boolean isConnected()
+      /**
+       * Wait for the hardware to answer.
+       * @param timeout The longest to wait, in milliseconds
+       * @return true if the hardware has answered
+       */
+      public boolean awaitAnswer(long timeout) throws InterruptedException
+      {
+        return answered.await(timeout, TimeUnit.MILLISECONDS);
+      }
+      
+      /**
+       * Wait for the hardware to answer the discovery command again, ignoring
+       * anything else it sends in the meantime, such as a late answer to the
+       * version command.
+       */
+      public void expectAnswer()
+      {
+        answered = new CountDownLatch(1);
+      }
+      
+      /**
+       * Wait for the hardware to answer the version command.
+       * @param timeout The longest to wait, in milliseconds
+       * @return The hardware's version, or 1 if it didn't answer
+       */
+      public int awaitVersion(long timeout) throws InterruptedException
       {
-        return connected;
+        return versioned.await(timeout, TimeUnit.MILLISECONDS) ? version : 1;
       }
       
     }
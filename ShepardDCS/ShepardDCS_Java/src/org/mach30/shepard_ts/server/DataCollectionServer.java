@@ -6,6 +6,7 @@ import java.util.List;
 public class DataCollectionServer
 {
   private static final String NO_TCP = "-notcp";
+  private static final String NIO    = "-nio";
     
   public static void main(String[] args)
   {
@@ -19,6 +20,12 @@ public class DataCollectionServer
         server = new ClientlessCollectionServer();
         arglist = arglist.subList(1, arglist.size());
       }
+      else if (arglist.size() > 0 && NIO.equals(arglist.get(0)))
+      {
+        // serve any number of clients from a single selector thread
+        server = new SelectorCollectionServer();
+        arglist = arglist.subList(1, arglist.size());
+      }
       
       server.init(arglist);
       server.listen();
@@ -0,0 +1,194 @@
+package org.mach30.shepard_ts.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mach30.shepard_ts.transport.ByteSource;
+
+/**
+ * One of the devices in a DeviceGroup.  The bytes from the device are
+ * decoded on its source's own thread and the samples queued for the merge.
+ *
+ * The queue is a preallocated ring with one producer, the device's reader,
+ * and one consumer, the merge, so neither has to lock.  When the merge falls
+ * a full queue behind, the device's newest samples are dropped rather than
+ * holding up its reader, which would only make the device drop them instead.
+ */
+public class DeviceChannel extends ShepardSerialEventListener
+{
+  
+  private int channel = 0;
+  private ByteSource source = null;
+  private DeviceGroup group = null;
+  
+  private int capacity = 0;
+  private int mask = 0;
+  private long[] times = null;
+  private int[] thrusts = null;
+  private int[] temps = null;
+  private long[] stamps = null;
+  
+  private AtomicLong head = new AtomicLong();
+  private AtomicLong tail = new AtomicLong();
+  
+  private AtomicLong dropped = new AtomicLong();
+  private volatile long maxLag = 0;
+  private volatile long late = 0;
+  
+  // added to the device's timestamps to put them on the group's clock, which
+  // is only worked out once the merge sees the first sample
+  private boolean aligned = false;
+  private long offset = 0;
+  
+  
+  /**
+   * @param channel The channel the device's samples are tagged with
+   * @param source Where the device's bytes come from
+   * @param metrics The metrics for all of the devices
+   * @param capacity The number of samples that can wait for the merge,
+   *     rounded up to a power of two
+   */
+  DeviceChannel(int channel, ByteSource source, DeviceGroup group, CollectionMetrics metrics,
+      int capacity)
+  {
+    super(new CollectionMetrics(metrics));
+    setCalibration(null);
+    this.channel = channel;
+    this.source = source;
+    this.group = group;
+    
+    this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = this.capacity - 1;
+    times = new long[this.capacity];
+    thrusts = new int[this.capacity];
+    temps = new int[this.capacity];
+    stamps = new long[this.capacity];
+  }
+  
+  @Override
+  protected void handleData()
+  {
+    long t = tail.get();
+    if (t - head.get() >= capacity)
+    {
+      dropped.incrementAndGet();
+      return;
+    }
+    
+    int idx = (int)t & mask;
+    times[idx] = datapoint.time;
+    thrusts[idx] = rawThrust;
+    temps[idx] = rawTemp;
+    stamps[idx] = received;
+    tail.set(t + 1);
+    
+    long lag = t + 1 - head.get();
+    if (lag > maxLag)
+    {
+      maxLag = lag;
+    }
+    
+    group.wake();
+  }
+  
+  /*
+   * The rest is only called from the merge.
+   */
+  
+  boolean isEmpty()
+  {
+    return head.get() == tail.get();
+  }
+  
+  /**
+   * @return The time of the oldest queued sample on the group's clock.  Only
+   *     call this when the queue isn't empty.
+   */
+  long peekTime()
+  {
+    int idx = (int)head.get() & mask;
+    if (!aligned)
+    {
+      offset = group.align(times[idx], stamps[idx]);
+      aligned = true;
+    }
+    return times[idx] + offset;
+  }
+  
+  /**
+   * @return When the oldest queued sample was received.  Only call this when
+   *     the queue isn't empty.
+   */
+  long peekReceived()
+  {
+    return stamps[(int)head.get() & mask];
+  }
+  
+  /**
+   * Publish the oldest queued sample to the pipeline, tagged with the channel.
+   */
+  void take(SamplePipeline pipeline, boolean isLate)
+  {
+    long h = head.get();
+    int idx = (int)h & mask;
+    pipeline.publish(times[idx] + offset, thrusts[idx], temps[idx], stamps[idx], channel);
+    head.lazySet(h + 1);
+    
+    if (isLate)
+    {
+      ++late;
+    }
+  }
+  
+  public int getChannel()
+  {
+    return channel;
+  }
+  
+  public ByteSource getSource()
+  {
+    return source;
+  }
+  
+  /**
+   * @return The number of samples waiting to be merged
+   */
+  public long getLag()
+  {
+    return tail.get() - head.get();
+  }
+  
+  /**
+   * @return The largest number of samples that have waited to be merged at
+   *     once
+   */
+  public long getMaxLag()
+  {
+    return maxLag;
+  }
+  
+  /**
+   * @return The number of samples dropped because the merge fell behind
+   */
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+  
+  /**
+   * @return The number of samples that arrived after the merge had given up
+   *     waiting for them, and so went out of order
+   */
+  public long getLateCount()
+  {
+    return late;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return channel + " (" + source.getName() + "): ~" + Math.round(getMetrics().getSampleRate()) +
+        " Samples/s, lag " + getLag() + " (max " + maxLag + "), " + dropped.get() +
+        " dropped, " + late + " late";
+  }
+  
+}
@@ -0,0 +1,293 @@
+package org.mach30.shepard_ts.server;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mach30.shepard_ts.transport.ByteListener;
+import org.mach30.shepard_ts.transport.ByteSource;
+
+/**
+ * Several devices collected from at once, such as the boards on a multi-stand
+ * setup.  Commands are sent to every device, and each device's bytes are
+ * decoded on its own source's thread, so decoding spreads across cores.  The
+ * samples are merged into one stream in timestamp order on a thread of their
+ * own and published to a pipeline tagged with the device's channel, which is
+ * its position in the group.
+ *
+ * The merge is a k-way merge of the devices' queues, taking the earliest
+ * sample at the head of any queue.  A device with nothing queued might still
+ * send an earlier sample, so the merge waits for it, but only until the
+ * earliest queued sample has waited the merge delay.  A device that has
+ * stopped sending only delays the stream by that much, and anything it sends
+ * after the merge has moved on goes out late.
+ *
+ * Each board's clock starts when it boots, so the devices' timestamps are
+ * moved onto the clock of the first device to send, by comparing when each
+ * device's first sample was received.
+ */
+public class DeviceGroup extends ByteSource implements Runnable
+{
+  
+  public static final int DEFAULT_MERGE_DELAY = 20;
+  
+  // how long the merge sleeps when it runs out of samples, if a device
+  // doesn't wake it first
+  private static final long IDLE_WAIT = 1000000;
+  
+  private DeviceChannel[] channels = null;
+  private long mergeDelay = 0;
+  
+  private SamplePipeline pipeline = null;
+  private volatile boolean running = false;
+  private volatile boolean waiting = false;
+  private Thread thread = null;
+  
+  // the first device's timestamp less when it was received, in ms, which
+  // the other devices are aligned to
+  private boolean based = false;
+  private long base = 0;
+  private long lastTime = Long.MIN_VALUE;
+  
+  
+  /**
+   * @param sources The devices' sources, in channel order, already connected
+   * @param protocols The version of the protocol each device sends
+   * @param metrics The metrics for all of the devices, which each device's
+   *     own metrics also count towards
+   * @param capacity The number of samples from each device that can wait for
+   *     the merge
+   * @param mergeDelay The longest the merge waits for a device with nothing
+   *     queued, in milliseconds
+   */
+  public DeviceGroup(ByteSource[] sources, int[] protocols, CollectionMetrics metrics, int capacity,
+      long mergeDelay)
+  {
+    super(sources.length + " devices");
+    this.mergeDelay = mergeDelay * 1000000;
+    channels = new DeviceChannel[sources.length];
+    for (int i = 0; i < sources.length; i++)
+    {
+      channels[i] = new DeviceChannel(i, sources[i], this, metrics, capacity);
+      channels[i].setProtocol(protocols[i]);
+    }
+  }
+  
+  /**
+   * Start decoding every device and publishing the merged stream to the
+   * pipeline.
+   */
+  public synchronized void start(SamplePipeline pipeline) throws IOException
+  {
+    if (running)
+    {
+      throw new IOException("The devices in " + getName() + " have already been started");
+    }
+    this.pipeline = pipeline;
+    running = true;
+    thread = new Thread(this, "Device merge");
+    thread.setDaemon(true);
+    thread.start();
+    
+    for (DeviceChannel channel : channels)
+    {
+      channel.getSource().setListener(channel);
+    }
+  }
+  
+  public DeviceChannel[] getChannels()
+  {
+    return channels;
+  }
+  
+  @Override
+  public void open() throws IOException
+  {
+    for (DeviceChannel channel : channels)
+    {
+      channel.getSource().open();
+    }
+  }
+  
+  /**
+   * @return true while any of the devices is open
+   */
+  @Override
+  public boolean isOpen()
+  {
+    for (DeviceChannel channel : channels)
+    {
+      if (channel.getSource().isOpen())
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Send a command to every device, even if some of them fail.
+   */
+  @Override
+  public void write(byte b) throws IOException
+  {
+    IOException failure = null;
+    for (DeviceChannel channel : channels)
+    {
+      try
+      {
+        channel.getSource().write(b);
+      }
+      catch (IOException ioex)
+      {
+        failure = ioex;
+      }
+    }
+    if (failure != null)
+    {
+      throw failure;
+    }
+  }
+  
+  /**
+   * The devices are only read through the merge.
+   */
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException
+  {
+    throw new IOException("The devices in " + getName() + " can only be read through the merge");
+  }
+  
+  @Override
+  public synchronized void setListener(ByteListener listener) throws IOException
+  {
+    throw new IOException("The devices in " + getName() + " are merged into a pipeline, not a listener");
+  }
+  
+  @Override
+  public void purge() throws IOException
+  {
+    for (DeviceChannel channel : channels)
+    {
+      channel.getSource().purge();
+    }
+  }
+  
+  @Override
+  public void close() throws IOException
+  {
+    running = false;
+    if (thread != null)
+    {
+      LockSupport.unpark(thread);
+    }
+    
+    IOException failure = null;
+    for (DeviceChannel channel : channels)
+    {
+      try
+      {
+        channel.getSource().close();
+      }
+      catch (IOException ioex)
+      {
+        failure = ioex;
+      }
+    }
+    if (failure != null)
+    {
+      throw failure;
+    }
+  }
+  
+  /**
+   * Wake the merge if it is waiting for samples.  Called by the devices after
+   * queueing each sample.
+   */
+  void wake()
+  {
+    if (waiting)
+    {
+      LockSupport.unpark(thread);
+    }
+  }
+  
+  /**
+   * Work out how far to move a device's timestamps to put them on the
+   * group's clock, from its first sample.
+   * @param time The device's timestamp, in ms
+   * @param received When the sample was received, from System.nanoTime
+   * @return The offset to add to the device's timestamps
+   */
+  long align(long time, long received)
+  {
+    long deviceBase = time - received / 1000000;
+    if (!based)
+    {
+      base = deviceBase;
+      based = true;
+    }
+    return base - deviceBase;
+  }
+  
+  @Override
+  public void run()
+  {
+    while (running)
+    {
+      DeviceChannel next = null;
+      long nextTime = Long.MAX_VALUE;
+      boolean complete = true;
+      for (DeviceChannel channel : channels)
+      {
+        if (channel.isEmpty())
+        {
+          complete = false;
+        }
+        else
+        {
+          long time = channel.peekTime();
+          if (time < nextTime)
+          {
+            next = channel;
+            nextTime = time;
+          }
+        }
+      }
+      
+      if (next == null)
+      {
+        idle(IDLE_WAIT);
+        continue;
+      }
+      
+      if (!complete)
+      {
+        // the devices with nothing queued get until the earliest sample has
+        // waited the merge delay to send something earlier
+        long wait = next.peekReceived() + mergeDelay - System.nanoTime();
+        if (wait > 0)
+        {
+          idle(Math.min(wait, IDLE_WAIT));
+          continue;
+        }
+      }
+      
+      boolean late = nextTime < lastTime;
+      if (!late)
+      {
+        lastTime = nextTime;
+      }
+      next.take(pipeline, late);
+    }
+  }
+  
+  private void idle(long nanos)
+  {
+    // a sample queued between checking and waiting is picked up when the
+    // wait runs out, which is never longer than the idle wait
+    waiting = true;
+    LockSupport.parkNanos(nanos);
+    waiting = false;
+  }
+  
+}
@@ -0,0 +1,221 @@
+package org.mach30.shepard_ts.server;
+
+import org.mach30.shepard_ts.FramedProtocol;
+
+/**
+ * Incremental decoder for the frames of version 2 of the protocol, see
+ * FramedProtocol.  Bytes are collected into a frame buffer until the frame
+ * the header describes is complete, and its samples are only handed on once
+ * its checksum matches.
+ *
+ * When a header is invalid or a checksum fails, the decoder carries on from
+ * the next sync byte after the one it had taken for the start of a frame,
+ * looking through the bytes it has already collected before any new ones, so
+ * a corrupt byte costs at most the frames it touches.  Outside of a frame,
+ * bytes are only compared against the first sync byte, and frames are copied
+ * into the buffer in bulk, so finding the frames takes time in proportion to
+ * the bytes received.
+ */
+public class FramedProtocolDecoder extends ProtocolDecoder
+{
+
+  private static final int MAX_FRAME_SIZE =
+      FramedProtocol.frameSize(FramedProtocol.MAX_SAMPLES, FramedProtocol.MAX_CHANNELS);
+
+  // the frame being collected, and how many bytes it needs to be complete,
+  // which is the header's size until the header has been read
+  private byte[] frame = new byte[MAX_FRAME_SIZE];
+  private int length = 0;
+  private int needed = FramedProtocol.HEADER_SIZE;
+
+  private boolean sequenced = false;
+  private int nextSequence = 0;
+
+  private long frames = 0;
+  private long corruptFrames = 0;
+  private long droppedFrames = 0;
+  private long resyncs = 0;
+  private boolean skipping = false;
+
+
+  public FramedProtocolDecoder(ShepardFrameDecoder.SampleListener listener)
+  {
+    super(listener);
+  }
+
+  @Override
+  public int getVersion()
+  {
+    return FramedProtocol.VERSION;
+  }
+
+  @Override
+  public int decode(byte[] buffer, int offset, int count)
+  {
+    int samples = 0;
+    int i = offset;
+    int end = offset + count;
+
+    while (true)
+    {
+      if (length >= needed)
+      {
+        samples += advance();
+        continue;
+      }
+      if (i >= end)
+      {
+        break;
+      }
+
+      if (length == 0)
+      {
+        // look for the start of the next frame
+        if ((buffer[i++] & 0xff) == FramedProtocol.SYNC_1)
+        {
+          frame[length++] = (byte)FramedProtocol.SYNC_1;
+        }
+        else
+        {
+          skipped();
+        }
+        continue;
+      }
+
+      int copied = Math.min(needed - length, end - i);
+      System.arraycopy(buffer, i, frame, length, copied);
+      length += copied;
+      i += copied;
+    }
+
+    return samples;
+  }
+
+  /**
+   * Check the header, once it has been collected, or the whole frame.
+   * @return The number of samples handed on
+   */
+  private int advance()
+  {
+    if (needed == FramedProtocol.HEADER_SIZE)
+    {
+      int samples = frame[4] & 0xff;
+      int channels = frame[5] & 0xff;
+      if ((frame[1] & 0xff) != FramedProtocol.SYNC_2 || samples == 0 ||
+          channels == 0 || channels > FramedProtocol.MAX_CHANNELS)
+      {
+        resync();
+        return 0;
+      }
+      needed = FramedProtocol.frameSize(samples, channels);
+      return 0;
+    }
+
+    int crc = ((frame[needed - 2] & 0xff) << 8) | (frame[needed - 1] & 0xff);
+    if (crc != FramedProtocol.crc(frame, 2, needed - 2 - FramedProtocol.CRC_SIZE))
+    {
+      ++corruptFrames;
+      resync();
+      return 0;
+    }
+
+    int samples = deliver();
+    length = 0;
+    needed = FramedProtocol.HEADER_SIZE;
+    skipping = false;
+    return samples;
+  }
+
+  /**
+   * Hand the samples in a checked frame to the listener.
+   */
+  private int deliver()
+  {
+    int sequence = ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+    if (sequenced && sequence != nextSequence)
+    {
+      droppedFrames += (sequence - nextSequence) & 0xffff;
+    }
+    sequenced = true;
+    nextSequence = (sequence + 1) & 0xffff;
+    ++frames;
+
+    int samples = frame[4] & 0xff;
+    int channels = frame[5] & 0xff;
+    int pos = FramedProtocol.HEADER_SIZE;
+    for (int i = 0; i < samples; i++)
+    {
+      long time = ((frame[pos] & 0xffL) << 24) | ((frame[pos + 1] & 0xff) << 16) |
+          ((frame[pos + 2] & 0xff) << 8) | (frame[pos + 3] & 0xff);
+      pos += FramedProtocol.TIME_SIZE;
+
+      // any channels past the thrust and temperature are skipped
+      int rawThrust = ((frame[pos] & 0xff) << 8) | (frame[pos + 1] & 0xff);
+      int rawTemp = channels > 1 ? (short)(((frame[pos + 2] & 0xff) << 8) | (frame[pos + 3] & 0xff)) : 0;
+      pos += 2 * channels;
+
+      listener.sampleDecoded(time, rawThrust, rawTemp);
+    }
+    return samples;
+  }
+
+  /**
+   * Give up on the frame being collected and carry on from the next sync byte
+   * already collected, if there is one.
+   */
+  private void resync()
+  {
+    skipped();
+
+    int next = 1;
+    while (next < length && (frame[next] & 0xff) != FramedProtocol.SYNC_1)
+    {
+      ++next;
+    }
+    System.arraycopy(frame, next, frame, 0, length - next);
+    length -= next;
+    needed = FramedProtocol.HEADER_SIZE;
+  }
+
+  private void skipped()
+  {
+    if (!skipping)
+    {
+      ++resyncs;
+      skipping = true;
+    }
+  }
+
+  @Override
+  public void reset()
+  {
+    length = 0;
+    needed = FramedProtocol.HEADER_SIZE;
+    sequenced = false;
+  }
+
+  @Override
+  public long getResyncCount()
+  {
+    return resyncs;
+  }
+
+  @Override
+  public long getFrameCount()
+  {
+    return frames;
+  }
+
+  @Override
+  public long getCorruptFrameCount()
+  {
+    return corruptFrames;
+  }
+
+  @Override
+  public long getDroppedFrameCount()
+  {
+    return droppedFrames;
+  }
+
+}
@@ -0,0 +1,110 @@
+package org.mach30.shepard_ts.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with power-of-two buckets.  Bucket n
+ * counts durations in [2^(n-1), 2^n), so recording is a couple of bit 
+ * operations and an atomic increment, and percentiles are accurate to within 
+ * a factor of two.
+ */
+public class LatencyHistogram
+{
+  
+  private static final int BUCKETS = 64;
+  
+  private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private AtomicLong max = new AtomicLong();
+  
+  
+  public void record(long nanos)
+  {
+    int bucket = nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+    counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    
+    // a new maximum is rare once the histogram has warmed up
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos))
+    {
+      current = max.get();
+    }
+  }
+  
+  public long getCount()
+  {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      total += counts.get(i);
+    }
+    return total;
+  }
+  
+  /**
+   * @param percentile The percentile to find, from 0 to 100
+   * @return The upper bound, in nanoseconds, of the bucket holding the given
+   *     percentile, or the maximum if that is lower, or 0 if nothing has been
+   *     recorded
+   */
+  public long getPercentile(double percentile)
+  {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    
+    if (total == 0)
+    {
+      return 0;
+    }
+    
+    long target = (long)Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= target && snapshot[i] > 0)
+      {
+        // no bucket needs to go past the longest duration seen
+        return i == 0 ? 0 : Math.min(1L << Math.min(i, 62), Math.max(max.get(), 1));
+      }
+    }
+    
+    return Long.MAX_VALUE;
+  }
+  
+  /**
+   * @return The longest duration recorded, exactly, in nanoseconds
+   */
+  public long getMax()
+  {
+    return max.get();
+  }
+  
+  public void reset()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      counts.set(i, 0);
+    }
+    max.set(0);
+  }
+  
+  /**
+   * @return The 50th, 99th and 99.9th percentiles and the maximum in 
+   *     microseconds
+   */
+  @Override
+  public String toString()
+  {
+    return "p50=" + getPercentile(50) / 1000 + "us" +
+        " p99=" + getPercentile(99) / 1000 + "us" +
+        " p99.9=" + getPercentile(99.9) / 1000 + "us" +
+        " max=" + max.get() / 1000 + "us";
+  }
+  
+}
@@ -0,0 +1,85 @@
+package org.mach30.shepard_ts.server;
+
+/**
+ * Periodically prints a summary of the collection metrics, keeping console 
+ * output off the serial event thread.
+ */
+public class MetricsReporter implements Runnable
+{
+  
+  private CollectionMetrics metrics = null;
+  private SamplePipeline pipeline = null;
+  private volatile DeviceGroup devices = null;
+  private long interval = 0;
+  
+  /**
+   * @param metrics The metrics to report
+   * @param pipeline The pipeline whose sinks to report on, or null
+   * @param interval The time between reports, in milliseconds
+   */
+  public MetricsReporter(CollectionMetrics metrics, SamplePipeline pipeline, long interval)
+  {
+    this.metrics = metrics;
+    this.pipeline = pipeline;
+    this.interval = interval;
+  }
+  
+  /**
+   * Also report on each of the devices being collected from, once several
+   * have been found.
+   */
+  public void setDevices(DeviceGroup devices)
+  {
+    this.devices = devices;
+  }
+  
+  /**
+   * Start reporting on a daemon thread.
+   * @return The reporting thread
+   */
+  public Thread start()
+  {
+    Thread t = new Thread(this, "Metrics reporter");
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+  
+  @Override
+  public void run()
+  {
+    long lastSamples = 0;
+    
+    try
+    {
+      while (!Thread.currentThread().isInterrupted())
+      {
+        Thread.sleep(interval);
+        
+        // only report while data is arriving, to keep idle servers quiet
+        long samples = metrics.getSampleCount();
+        if (samples != lastSamples)
+        {
+          lastSamples = samples;
+          System.out.println(metrics);
+          DeviceGroup current = devices;
+          if (current != null)
+          {
+            for (DeviceChannel channel : current.getChannels())
+            {
+              System.out.println("Device " + channel);
+            }
+          }
+          if (pipeline != null && pipeline.getSubscriptions().length > 0)
+          {
+            System.out.println("Sinks: " + pipeline);
+          }
+        }
+      }
+    }
+    catch (InterruptedException iex)
+    {
+    }
+  }
+  
+}
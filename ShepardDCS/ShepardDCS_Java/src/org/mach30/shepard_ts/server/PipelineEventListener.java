@@ -0,0 +1,27 @@
+package org.mach30.shepard_ts.server;
+
+/**
+ * Publishes every decoded sample to a SamplePipeline, so that the sinks 
+ * consuming the data run on their own threads instead of the thread reading
+ * the hardware.  Only the raw readings are published, and the pipeline
+ * calibrates them a block at a time.
+ */
+public class PipelineEventListener extends ShepardSerialEventListener
+{
+  
+  private SamplePipeline pipeline = null;
+  
+  public PipelineEventListener(CollectionMetrics metrics, SamplePipeline pipeline)
+  {
+    super(metrics);
+    this.pipeline = pipeline;
+    setCalibration(null);
+  }
+
+  @Override
+  protected void handleData()
+  {
+    pipeline.publish(datapoint.time, rawThrust, rawTemp, received);
+  }
+  
+}
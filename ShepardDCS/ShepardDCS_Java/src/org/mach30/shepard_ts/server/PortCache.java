@@ -0,0 +1,186 @@
+package org.mach30.shepard_ts.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Remembers the port and serial settings the collection hardware was last
+ * found on, so that the next start can try that port before scanning all of
+ * them.  The cache is a small properties file, by default in the user's home
+ * directory.
+ */
+public class PortCache
+{
+
+  public static final String DEFAULT_FILE_NAME = ".shepard_dcs_port.properties";
+
+  private static final String PORT_NAME_PROP = "port";
+  private static final String BAUD_RATE_PROP = "rate";
+  private static final String DATA_BITS_PROP = "dbits";
+  private static final String STOP_BITS_PROP = "sbits";
+  private static final String PARITY_PROP    = "parity";
+  private static final String CONNECTED_PROP = "connected";
+
+  private File file = null;
+
+  /**
+   * @param file The file the cache is kept in
+   */
+  public PortCache(File file)
+  {
+    this.file = file;
+  }
+
+  /**
+   * @return A cache kept in the default file in the user's home directory
+   */
+  public static PortCache getDefault()
+  {
+    return new PortCache(new File(System.getProperty("user.home"), DEFAULT_FILE_NAME));
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  /**
+   * @return The port the hardware was last found on, or null if there isn't
+   *     one or the cache can't be read
+   */
+  public Entry load()
+  {
+    if (!file.isFile())
+    {
+      return null;
+    }
+
+    Properties props = new Properties();
+    InputStream in = null;
+    try
+    {
+      in = new FileInputStream(file);
+      props.load(in);
+
+      Entry entry = new Entry();
+      entry.portName = props.getProperty(PORT_NAME_PROP);
+      entry.baudRate = Integer.parseInt(props.getProperty(BAUD_RATE_PROP));
+      entry.dataBits = Integer.parseInt(props.getProperty(DATA_BITS_PROP));
+      entry.stopBits = Integer.parseInt(props.getProperty(STOP_BITS_PROP));
+      entry.parity = Integer.parseInt(props.getProperty(PARITY_PROP));
+      entry.connected = Long.parseLong(props.getProperty(CONNECTED_PROP, "0"));
+
+      return entry.portName == null ? null : entry;
+    }
+    catch (IOException ioex)
+    {
+      System.err.println("Unable to read the port cache " + file + ": " + ioex);
+    }
+    catch (NumberFormatException nfex)
+    {
+      System.err.println("Ignoring the invalid port cache " + file);
+    }
+    finally
+    {
+      close(in);
+    }
+    return null;
+  }
+
+  /**
+   * Remember the port the hardware has been found on.  The cache is written
+   * to a temporary file first so that a failed write doesn't leave a partial
+   * cache behind.
+   */
+  public void save(Entry entry)
+  {
+    Properties props = new Properties();
+    props.setProperty(PORT_NAME_PROP, entry.portName);
+    props.setProperty(BAUD_RATE_PROP, Integer.toString(entry.baudRate));
+    props.setProperty(DATA_BITS_PROP, Integer.toString(entry.dataBits));
+    props.setProperty(STOP_BITS_PROP, Integer.toString(entry.stopBits));
+    props.setProperty(PARITY_PROP, Integer.toString(entry.parity));
+    props.setProperty(CONNECTED_PROP, Long.toString(entry.connected));
+
+    File temp = new File(file.getPath() + ".tmp");
+    OutputStream out = null;
+    try
+    {
+      out = new FileOutputStream(temp);
+      props.store(out, "Last port the Shepard DCS hardware was found on");
+      out.close();
+      out = null;
+
+      if (!temp.renameTo(file))
+      {
+        // some platforms won't rename over an existing file
+        file.delete();
+        if (!temp.renameTo(file))
+        {
+          throw new IOException("Unable to replace " + file);
+        }
+      }
+    }
+    catch (IOException ioex)
+    {
+      System.err.println("Unable to update the port cache " + file + ": " + ioex);
+    }
+    finally
+    {
+      close(out);
+    }
+  }
+
+  private static void close(Closeable stream)
+  {
+    if (stream != null)
+    {
+      try
+      {
+        stream.close();
+      }
+      catch (IOException ioex)
+      {
+      }
+    }
+  }
+
+
+  /**
+   * A port the hardware was found on and the settings used to talk to it.
+   */
+  public static class Entry
+  {
+
+    public String portName = null;
+    public int baudRate = 0;
+    public int dataBits = 0;
+    public int stopBits = 0;
+    public int parity = 0;
+    // when the hardware was found, in milliseconds since the epoch
+    public long connected = 0;
+
+    /**
+     * @return true if the entry was recorded with the serial settings given
+     */
+    public boolean matches(int baudRate, int dataBits, int stopBits, int parity)
+    {
+      return this.baudRate == baudRate && this.dataBits == dataBits &&
+          this.stopBits == stopBits && this.parity == parity;
+    }
+
+    @Override
+    public String toString()
+    {
+      return portName + " at " + baudRate + " baud";
+    }
+
+  }
+
+}
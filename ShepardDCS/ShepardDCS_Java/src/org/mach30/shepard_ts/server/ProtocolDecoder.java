@@ -0,0 +1,82 @@
+package org.mach30.shepard_ts.server;
+
+import org.mach30.shepard_ts.FramedProtocol;
+
+/**
+ * Decodes the samples sent by the Shepard DCS hardware in one version of its
+ * protocol, handing each to a listener as it is completed.  Decoders keep
+ * whatever is partially read between calls and allocate nothing while
+ * decoding.
+ */
+public abstract class ProtocolDecoder
+{
+
+  protected ShepardFrameDecoder.SampleListener listener = null;
+
+
+  protected ProtocolDecoder(ShepardFrameDecoder.SampleListener listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * Create the decoder for a version of the protocol, 1 for the control codes
+   * or 2 for frames.
+   */
+  public static ProtocolDecoder create(int version, ShepardFrameDecoder.SampleListener listener)
+  {
+    if (version >= FramedProtocol.VERSION)
+    {
+      return new FramedProtocolDecoder(listener);
+    }
+    return new ShepardFrameDecoder(listener);
+  }
+
+  public abstract int getVersion();
+
+  /**
+   * Decode the bytes given, notifying the listener of each complete sample.
+   * @param buffer The buffer holding the received bytes
+   * @param offset The index of the first byte to decode
+   * @param length The number of bytes to decode
+   * @return The number of complete samples decoded
+   */
+  public abstract int decode(byte[] buffer, int offset, int length);
+
+  /**
+   * Discard anything partially read, e.g. after the device has been reset.
+   */
+  public abstract void reset();
+
+  /**
+   * @return The number of times the decoder lost track of the data and had
+   *     to skip ahead to find where it carries on
+   */
+  public abstract long getResyncCount();
+
+  /**
+   * @return The number of frames decoded, or 0 for a protocol without frames
+   */
+  public long getFrameCount()
+  {
+    return 0;
+  }
+
+  /**
+   * @return The number of frames whose checksum failed
+   */
+  public long getCorruptFrameCount()
+  {
+    return 0;
+  }
+
+  /**
+   * @return The number of frames that never arrived intact, from the gaps in
+   *     the sequence numbers
+   */
+  public long getDroppedFrameCount()
+  {
+    return 0;
+  }
+
+}
@@ -0,0 +1,231 @@
+package org.mach30.shepard_ts.server;
+
+import org.mach30.shepard_ts.calibration.Calibration;
+import org.mach30.shepard_ts.calibration.LinearCalibration;
+
+/**
+ * Hands decoded samples from the serial event thread to any number of sinks
+ * without letting the sinks slow down acquisition.  Every sink receives every
+ * sample through its own bounded queue and thread, and the backpressure
+ * policy decides what happens when a sink falls a full queue behind.  Sinks
+ * receive samples in blocks of up to the batch size, waiting at most the 
+ * batch delay for a block to fill.
+ * 
+ * Samples are published as the raw readings from the device.  Each block is
+ * calibrated as a whole just before it is handed to a sink, so changing the
+ * calibration takes effect from the next block without touching the serial
+ * event thread.
+ */
+public class SamplePipeline
+{
+  
+  public static final int DEFAULT_CAPACITY = 8192;
+  public static final int DEFAULT_BATCH_SIZE = 256;
+  public static final int DEFAULT_BATCH_DELAY = 50;
+  
+  private int capacity = DEFAULT_CAPACITY;
+  private BackpressurePolicy policy = BackpressurePolicy.DROP_OLDEST;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private long batchDelay = DEFAULT_BATCH_DELAY;
+  
+  // replaced rather than modified, so that publishing never has to lock
+  private volatile SampleSubscription[] subscriptions = new SampleSubscription[0];
+  private volatile Calibration calibration = LinearCalibration.DEFAULT;
+  
+  
+  public SamplePipeline()
+  {
+  }
+  
+  /**
+   * @param capacity The number of samples each sink can have queued
+   * @param policy What to do when a sink's queue is full
+   * @param batchSize The most samples handed to a sink at once
+   * @param batchDelay The longest a sample waits for its batch to fill, in
+   *     milliseconds
+   */
+  public SamplePipeline(int capacity, BackpressurePolicy policy, int batchSize, long batchDelay)
+  {
+    this.capacity = capacity;
+    this.policy = policy;
+    this.batchSize = batchSize;
+    this.batchDelay = batchDelay;
+  }
+  
+  /**
+   * Add a sink and start delivering samples to it.  Only samples published
+   * after this call are delivered.
+   * @return The subscription, for monitoring or removing the sink
+   */
+  public synchronized SampleSubscription addSink(String name, SampleSink sink)
+  {
+    SampleSubscription subscription = new SampleSubscription(name, sink, capacity, 
+        policy, batchSize, batchDelay);
+    subscription.setCalibration(calibration);
+    subscription.start();
+    
+    SampleSubscription[] current = subscriptions;
+    SampleSubscription[] updated = new SampleSubscription[current.length + 1];
+    System.arraycopy(current, 0, updated, 0, current.length);
+    updated[current.length] = subscription;
+    subscriptions = updated;
+    
+    return subscription;
+  }
+  
+  /**
+   * Stop delivering samples to a sink.  Samples still queued are discarded,
+   * see drainSink to deliver them first.
+   */
+  public synchronized void removeSink(SampleSubscription subscription)
+  {
+    if (unsubscribe(subscription))
+    {
+      subscription.stop();
+    }
+  }
+  
+  /**
+   * Stop delivering new samples to a sink, and wait for the samples already
+   * queued for it, including any partly filled block, to be handed to it.
+   * Once this returns the sink is no longer called, so it can be closed.
+   * @param timeout The longest to wait for the sink, in milliseconds, or 0
+   *     to wait as long as it takes
+   * @return true if the sink was handed everything, false if the wait timed
+   *     out and the remaining samples were discarded
+   */
+  public boolean drainSink(SampleSubscription subscription, long timeout) throws InterruptedException
+  {
+    // not synchronized, so that sinks can be added and removed while waiting
+    return !unsubscribe(subscription) || subscription.drain(timeout);
+  }
+  
+  /**
+   * @return false if the subscription had already been removed
+   */
+  private synchronized boolean unsubscribe(SampleSubscription subscription)
+  {
+    SampleSubscription[] current = subscriptions;
+    int idx = -1;
+    for (int i = 0; i < current.length; i++)
+    {
+      if (current[i] == subscription)
+      {
+        idx = i;
+      }
+    }
+    
+    if (idx >= 0)
+    {
+      SampleSubscription[] updated = new SampleSubscription[current.length - 1];
+      System.arraycopy(current, 0, updated, 0, idx);
+      System.arraycopy(current, idx + 1, updated, idx, current.length - idx - 1);
+      subscriptions = updated;
+      return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Queue a sample for every sink.  This must only be called from a single
+   * thread.
+   */
+  public void publish(long time, int rawThrust, int rawTemp)
+  {
+    publish(time, rawThrust, rawTemp, System.nanoTime());
+  }
+  
+  /**
+   * Queue a sample for every sink.  This must only be called from a single
+   * thread.
+   * @param received When the sample was received, from System.nanoTime, 
+   *     which the sinks' latencies are measured from
+   */
+  public void publish(long time, int rawThrust, int rawTemp, long received)
+  {
+    publish(time, rawThrust, rawTemp, received, 0);
+  }
+  
+  /**
+   * Queue a sample from one of several devices for every sink.  This must 
+   * only be called from a single thread.
+   * @param received When the sample was received, from System.nanoTime
+   * @param channel The device the sample came from
+   */
+  public void publish(long time, int rawThrust, int rawTemp, long received, int channel)
+  {
+    SampleSubscription[] current = subscriptions;
+    for (int i = 0; i < current.length; i++)
+    {
+      current[i].offer(time, rawThrust, rawTemp, received, channel);
+    }
+  }
+  
+  public Calibration getCalibration()
+  {
+    return calibration;
+  }
+  
+  /**
+   * Calibrate the blocks delivered to every sink from now on with the given
+   * calibration.
+   */
+  public synchronized void setCalibration(Calibration calibration)
+  {
+    this.calibration = calibration;
+    for (SampleSubscription subscription : subscriptions)
+    {
+      subscription.setCalibration(calibration);
+    }
+  }
+  
+  public SampleSubscription[] getSubscriptions()
+  {
+    return subscriptions;
+  }
+  
+  /**
+   * Start measuring every sink's latencies afresh, such as at the start of a
+   * run.
+   */
+  public void resetLatency()
+  {
+    for (SampleSubscription subscription : subscriptions)
+    {
+      subscription.resetLatency();
+    }
+  }
+  
+  public BackpressurePolicy getPolicy()
+  {
+    return policy;
+  }
+  
+  /**
+   * Stop delivering samples to all of the sinks.
+   */
+  public synchronized void close()
+  {
+    for (SampleSubscription subscription : subscriptions)
+    {
+      subscription.stop();
+    }
+    subscriptions = new SampleSubscription[0];
+  }
+  
+  @Override
+  public String toString()
+  {
+    StringBuilder ret = new StringBuilder();
+    for (SampleSubscription subscription : subscriptions)
+    {
+      if (ret.length() > 0)
+      {
+        ret.append("; ");
+      }
+      ret.append(subscription);
+    }
+    return ret.toString();
+  }
+  
+}
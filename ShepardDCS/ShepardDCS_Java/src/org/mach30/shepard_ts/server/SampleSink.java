@@ -0,0 +1,18 @@
+package org.mach30.shepard_ts.server;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * A consumer of the samples published to a SamplePipeline.  Each sink is 
+ * called from its own thread, so a slow sink only delays itself.
+ */
+public interface SampleSink
+{
+  
+  /**
+   * Handle a batch of samples, in the order they were received.  The block is
+   * returned to its pool when this returns, so call retain on it to keep it.
+   */
+  void handleBlock(SampleBlock block);
+  
+}
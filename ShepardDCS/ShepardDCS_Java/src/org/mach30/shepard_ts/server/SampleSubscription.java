@@ -0,0 +1,407 @@
+package org.mach30.shepard_ts.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.SampleBlockPool;
+import org.mach30.shepard_ts.calibration.Calibration;
+import org.mach30.shepard_ts.calibration.LinearCalibration;
+
+/**
+ * A single sink's queue within a SamplePipeline, along with the thread that
+ * delivers queued samples to the sink.
+ * 
+ * The queue is a preallocated ring of primitive slots with one producer (the 
+ * serial event thread) and one consumer.  head is the next sequence to be 
+ * consumed and tail is the next sequence to be written, so tail - head is how
+ * far the sink is behind.  Under the DROP_OLDEST policy the producer also
+ * advances head, so the consumer claims each slot with a compare-and-set and
+ * discards what it read if the slot was taken away from it.
+ * 
+ * The consumer collects the raw samples into SampleBlocks and hands a block
+ * to the sink once it is full, or once its oldest sample has waited the
+ * maximum batch delay, calibrating the whole block just before it goes.
+ * When the subscription is drained, whatever is queued and the partly filled
+ * block are delivered before the thread finishes.
+ * 
+ * Each sample is queued with the time it was received, and every block's 
+ * latencies are measured from its oldest sample, so the latencies are those
+ * of the stalest sample the sink sees.  Measuring once a block keeps the cost
+ * to a few clock reads for hundreds of samples.
+ */
+public class SampleSubscription implements Runnable
+{
+  
+  // how long the consumer sleeps when it runs out of samples, if the producer
+  // doesn't wake it first
+  private static final long IDLE_WAIT = 1000000;
+  // how long the producer sleeps between checks for room under BLOCK
+  private static final long FULL_WAIT = 50000;
+  
+  private String name = null;
+  private SampleSink sink = null;
+  private BackpressurePolicy policy = null;
+  
+  private int capacity = 0;
+  private int mask = 0;
+  private long[] times = null;
+  private int[] thrusts = null;
+  private int[] temps = null;
+  private long[] stamps = null;
+  private int[] channels = null;
+  
+  private AtomicLong head = new AtomicLong();
+  private AtomicLong tail = new AtomicLong();
+  
+  private AtomicLong dropped = new AtomicLong();
+  private volatile long maxLag = 0;
+  
+  // from receipt of a block's oldest sample until the block is handed to the
+  // sink, how long the sink took, and from receipt until the sink was done
+  private LatencyHistogram queueLatency = new LatencyHistogram();
+  private LatencyHistogram sinkLatency = new LatencyHistogram();
+  private LatencyHistogram totalLatency = new LatencyHistogram();
+  
+  private SampleBlockPool pool = null;
+  private long maxDelay = 0;
+  private volatile Calibration calibration = LinearCalibration.DEFAULT;
+  
+  private volatile boolean running = true;
+  // set to finish once the queue is empty instead of straight away
+  private volatile boolean draining = false;
+  private volatile boolean waiting = false;
+  private Thread thread = null;
+  
+  
+  /**
+   * @param name A name for the sink, used for its thread and in reports
+   * @param sink The sink to deliver samples to
+   * @param capacity The number of samples that can be queued, rounded up to
+   *     a power of two
+   * @param policy What to do when the queue is full
+   * @param batchSize The most samples to hand to the sink at once
+   * @param maxDelay The longest a sample waits for its batch to fill, in 
+   *     milliseconds
+   */
+  public SampleSubscription(String name, SampleSink sink, int capacity, 
+      BackpressurePolicy policy, int batchSize, long maxDelay)
+  {
+    this.name = name;
+    this.sink = sink;
+    this.policy = policy;
+    this.maxDelay = maxDelay * 1000000;
+    // a couple of spare blocks covers sinks that hold on to one for a while
+    pool = new SampleBlockPool(batchSize, 4);
+    
+    this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = this.capacity - 1;
+    times = new long[this.capacity];
+    thrusts = new int[this.capacity];
+    temps = new int[this.capacity];
+    stamps = new long[this.capacity];
+    channels = new int[this.capacity];
+  }
+  
+  void start()
+  {
+    thread = new Thread(this, "Sample sink: " + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+  
+  void stop()
+  {
+    running = false;
+    if (thread != null)
+    {
+      LockSupport.unpark(thread);
+    }
+  }
+  
+  /**
+   * Deliver everything queued so far, including a partly filled block, and
+   * then stop.  Only samples offered before this call are sure to be
+   * delivered.
+   * @param timeout The longest to wait for the sink, in milliseconds, or 0
+   *     to wait as long as it takes
+   * @return true if the sink has been handed everything, false if the wait
+   *     timed out and the subscription was stopped instead
+   */
+  boolean drain(long timeout) throws InterruptedException
+  {
+    draining = true;
+    if (thread == null)
+    {
+      running = false;
+      return true;
+    }
+    
+    LockSupport.unpark(thread);
+    thread.join(timeout);
+    if (thread.isAlive())
+    {
+      stop();
+      return false;
+    }
+    return true;
+  }
+  
+  /**
+   * Queue a sample for the sink.  Must only be called from the producer thread.
+   * @param received When the sample was received, from System.nanoTime
+   * @param channel The device the sample came from
+   * @return false if the sample was dropped
+   */
+  boolean offer(long time, int rawThrust, int rawTemp, long received, int channel)
+  {
+    long t = tail.get();
+    
+    if (t - head.get() >= capacity)
+    {
+      switch (policy)
+      {
+        case DROP_NEWEST :
+          dropped.incrementAndGet();
+          return false;
+        case DROP_OLDEST :
+          // the consumer may take the oldest sample itself in the meantime, in
+          // which case there's room and nothing needs to be dropped
+          long h = head.get();
+          while (t - h >= capacity)
+          {
+            if (head.compareAndSet(h, h + 1))
+            {
+              dropped.incrementAndGet();
+              break;
+            }
+            h = head.get();
+          }
+          break;
+        default :
+          while (running && t - head.get() >= capacity)
+          {
+            LockSupport.parkNanos(FULL_WAIT);
+          }
+          break;
+      }
+    }
+    
+    int idx = (int)t & mask;
+    times[idx] = time;
+    thrusts[idx] = rawThrust;
+    temps[idx] = rawTemp;
+    stamps[idx] = received;
+    channels[idx] = channel;
+    tail.set(t + 1);
+    
+    long lag = t + 1 - head.get();
+    if (lag > maxLag)
+    {
+      maxLag = lag;
+    }
+    
+    if (waiting)
+    {
+      LockSupport.unpark(thread);
+    }
+    
+    return true;
+  }
+  
+  @Override
+  public void run()
+  {
+    SampleBlock block = pool.acquire();
+    // when the first sample of the current block was taken from the queue, and
+    // when it was received
+    long blockStart = 0;
+    long blockReceived = 0;
+    
+    while (running)
+    {
+      long h = head.get();
+      
+      if (h == tail.get())
+      {
+        if (draining)
+        {
+          break;
+        }
+        
+        long wait = IDLE_WAIT;
+        if (!block.isEmpty())
+        {
+          wait = blockStart + maxDelay - System.nanoTime();
+          if (wait <= 0)
+          {
+            block = deliver(block, blockReceived);
+            continue;
+          }
+        }
+        
+        // let the producer know to wake us, then check again in case a sample
+        // arrived before it could see the flag
+        waiting = true;
+        if (h == tail.get() && running && !draining)
+        {
+          LockSupport.parkNanos(Math.min(wait, IDLE_WAIT));
+        }
+        waiting = false;
+        continue;
+      }
+      
+      int idx = (int)h & mask;
+      long time = times[idx];
+      int rawThrust = thrusts[idx];
+      int rawTemp = temps[idx];
+      long received = stamps[idx];
+      int channel = channels[idx];
+      
+      if (policy == BackpressurePolicy.DROP_OLDEST)
+      {
+        if (!head.compareAndSet(h, h + 1))
+        {
+          // the producer dropped this sample while it was being read
+          continue;
+        }
+      }
+      else
+      {
+        head.lazySet(h + 1);
+      }
+      
+      if (block.isEmpty())
+      {
+        blockStart = System.nanoTime();
+        blockReceived = received;
+      }
+      block.add(time, rawThrust, rawTemp, channel);
+      
+      if (block.isFull())
+      {
+        block = deliver(block, blockReceived);
+      }
+    }
+    
+    if (draining && !block.isEmpty())
+    {
+      block = deliver(block, blockReceived);
+    }
+    block.release();
+    // a producer still waiting for room under BLOCK gives up
+    running = false;
+  }
+  
+  /**
+   * Calibrate a block, hand it to the sink and release it.
+   * @param received When the block's oldest sample was received
+   * @return An empty block to fill next
+   */
+  private SampleBlock deliver(SampleBlock block, long received)
+  {
+    calibration.apply(block);
+    long start = System.nanoTime();
+    try
+    {
+      sink.handleBlock(block);
+      
+      long end = System.nanoTime();
+      queueLatency.record(start - received);
+      sinkLatency.record(end - start);
+      totalLatency.record(end - received);
+    }
+    catch (RuntimeException rex)
+    {
+      System.err.println("Sample sink " + name + " failed to handle a block of samples");
+      rex.printStackTrace(System.err);
+    }
+    
+    block.release();
+    return pool.acquire();
+  }
+  
+  public String getName()
+  {
+    return name;
+  }
+  
+  public SampleSink getSink()
+  {
+    return sink;
+  }
+  
+  /**
+   * Calibrate the blocks delivered from now on with the given calibration.
+   */
+  void setCalibration(Calibration calibration)
+  {
+    this.calibration = calibration;
+  }
+  
+  /**
+   * @return The number of samples queued but not yet handled by the sink
+   */
+  public long getLag()
+  {
+    return tail.get() - head.get();
+  }
+  
+  /**
+   * @return The largest number of samples that have been queued at once
+   */
+  public long getMaxLag()
+  {
+    return maxLag;
+  }
+  
+  /**
+   * @return The time from receiving a block's oldest sample until the block
+   *     was handed to the sink, which covers queueing and batching
+   */
+  public LatencyHistogram getQueueLatency()
+  {
+    return queueLatency;
+  }
+  
+  /**
+   * @return The time the sink took to handle each block, such as writing it
+   *     out or flushing it
+   */
+  public LatencyHistogram getSinkLatency()
+  {
+    return sinkLatency;
+  }
+  
+  /**
+   * @return The time from receiving a block's oldest sample until the sink 
+   *     was done with it, which is how stale the sink's data gets
+   */
+  public LatencyHistogram getTotalLatency()
+  {
+    return totalLatency;
+  }
+  
+  public void resetLatency()
+  {
+    queueLatency.reset();
+    sinkLatency.reset();
+    totalLatency.reset();
+  }
+  
+  /**
+   * @return The number of samples the sink missed because its queue was full
+   */
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+  
+  @Override
+  public String toString()
+  {
+    return name + ": lag " + getLag() + " (max " + maxLag + "), " + 
+        dropped.get() + " dropped, latency " + totalLatency;
+  }
+  
+}
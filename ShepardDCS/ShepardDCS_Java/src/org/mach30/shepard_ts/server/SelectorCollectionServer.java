@@ -0,0 +1,545 @@
+package org.mach30.shepard_ts.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * A TCP collection server that serves any number of clients from a single
+ * selector thread.  It speaks the same protocol as TcpCollectionServer: text
+ * lines by default, or BinarySampleEncoder frames after a "B" command, or
+ * with compressed samples after a "C" command, either of which can be
+ * followed by how long to let the frames collect before writing them.
+ *
+ * Each block of samples is encoded once per protocol in use by a ClientFanout
+ * and the same buffer is queued for every client using it.  Each client has a
+ * bounded queue of outgoing buffers.  When a client's queue is full, new
+ * buffers are skipped for that client, so a slow client receives fewer blocks
+ * instead of holding up the others, and a client that stays full for longer
+ * than the slow client timeout is disconnected.
+ */
+public class SelectorCollectionServer extends CollectionServer
+{
+
+  private static final String CLIENT_QUEUE_ARG = "-clientqueue";
+  private static final String SLOW_CLIENT_ARG  = "-slowclienttimeout";
+
+  // the longest command line a client can send, which is far longer than
+  // any command, so that a client can't fill the heap with one endless line
+  private static final int MAX_COMMAND_LENGTH = 256;
+  // the longest the selector waits before checking the sessions again, in ms
+  private static final long SELECT_TIMEOUT = 250;
+
+  private int serverPort = 9999;
+  private int clientQueueSize = 256;
+  private int slowClientTimeout = 10000;
+
+  private Selector selector = null;
+  private ServerSocketChannel serverChannel = null;
+
+  private List<ClientSession> sessions = new CopyOnWriteArrayList<ClientSession>();
+
+  private ClientFanout fanout = new ClientFanout();
+
+  // device commands received before the device was connected
+  private List<String> pendingCommands = new ArrayList<String>();
+
+
+  public SelectorCollectionServer() throws Exception
+  {
+    super();
+  }
+
+  @Override
+  protected void parseArgs(List<String> args) throws Exception
+  {
+    super.parseArgs(args);
+
+    Iterator<String> iter = args.iterator();
+    while (iter.hasNext())
+    {
+      // other arguments' flags and parameters are passed over, since none of
+      // them can be mistaken for these
+      String arg = iter.next();
+      if (TcpCollectionServer.SERVER_PORT_ARG.equals(arg) && iter.hasNext())
+      {
+        serverPort = Integer.parseInt(iter.next());
+      }
+      else if (CLIENT_QUEUE_ARG.equals(arg) && iter.hasNext())
+      {
+        clientQueueSize = Math.max(1, Integer.parseInt(iter.next()));
+      }
+      else if (SLOW_CLIENT_ARG.equals(arg) && iter.hasNext())
+      {
+        slowClientTimeout = Integer.parseInt(iter.next());
+      }
+    }
+  }
+
+  @Override
+  public void handleClient() throws Exception
+  {
+    try
+    {
+      selector = Selector.open();
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.configureBlocking(false);
+      serverChannel.socket().bind(new InetSocketAddress(serverPort));
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    catch (IOException ioex)
+    {
+      throw new Exception("Failed to listen on port " + serverPort);
+    }
+
+    Thread selectorThread = new Thread(new SelectorLoop(), "TCP selector");
+    selectorThread.start();
+    System.out.println("Waiting for client connections on port " + serverPort + "...");
+
+    // pass the status on to the clients while looking for the device
+    String lastStatus = status;
+    boolean ready = false;
+    while (!ready)
+    {
+      ready = awaitDevice(10);
+      if (!lastStatus.equals(status))
+      {
+        lastStatus = status;
+        broadcastStatus(lastStatus);
+      }
+    }
+
+    System.out.println("Initializing listener...");
+    pipeline.addSink("tcp clients", new BroadcastSink());
+    startListening();
+  }
+
+  /**
+   * @return The number of clients currently connected
+   */
+  public int getClientCount()
+  {
+    return sessions.size();
+  }
+
+  private void broadcastStatus(String message)
+  {
+    fanout.publishStatus(message, sessions);
+    selector.wakeup();
+  }
+
+  private void handleCommand(String command)
+  {
+    if (!isDeviceConnected())
+    {
+      System.out.println("Device not connected yet, holding command " + command);
+      pendingCommands.add(command);
+      return;
+    }
+
+    System.out.println("Received from client: " + command);
+    try
+    {
+      if ("R".equals(command))
+      {
+        resetLatency();
+        source.write(READY_COMMAND);
+        System.out.println("Ready command sent to DCS.");
+      }
+      else if ("Q".equals(command))
+      {
+        source.write(QUIT_COMMAND);
+        System.out.println("Quit command sent to DCS.");
+        printLatency();
+      }
+    }
+    catch (IOException ioex)
+    {
+      System.err.println(ioex);
+    }
+  }
+
+
+  /**
+   * Accepts clients, reads their commands and writes out whatever has been
+   * queued for them.
+   */
+  private class SelectorLoop implements Runnable
+  {
+
+    private long selectTimeout = SELECT_TIMEOUT;
+
+    @Override
+    public void run()
+    {
+      while (selector.isOpen())
+      {
+        try
+        {
+          selector.select(selectTimeout);
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext())
+          {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if (!key.isValid())
+            {
+              continue;
+            }
+
+            if (key.isAcceptable())
+            {
+              accept();
+            }
+            else
+            {
+              ClientSession session = (ClientSession)key.attachment();
+              if (key.isReadable())
+              {
+                session.read();
+              }
+              if (key.isValid() && key.isWritable())
+              {
+                session.write();
+              }
+            }
+          }
+
+          // wake up in time for the next session whose flush interval runs
+          // out, if that is sooner than the select timeout
+          long now = System.currentTimeMillis();
+          long next = now + SELECT_TIMEOUT;
+          for (ClientSession session : sessions)
+          {
+            next = Math.min(next, session.updateInterest(now));
+          }
+          selectTimeout = Math.max(1, next - now);
+
+          if (!pendingCommands.isEmpty() && isDeviceConnected())
+          {
+            List<String> commands = new ArrayList<String>(pendingCommands);
+            pendingCommands.clear();
+            for (String command : commands)
+            {
+              handleCommand(command);
+            }
+          }
+        }
+        catch (IOException ioex)
+        {
+          System.err.println("An error was encountered in the client selector");
+          System.err.println(ioex);
+        }
+      }
+    }
+
+    private void accept() throws IOException
+    {
+      SocketChannel channel = serverChannel.accept();
+      if (channel == null)
+      {
+        return;
+      }
+
+      channel.configureBlocking(false);
+      ClientSession session = new ClientSession(channel);
+      session.key = channel.register(selector, SelectionKey.OP_READ, session);
+
+      synchronized (fanout.getLock())
+      {
+        sessions.add(session);
+        session.offerLine("Connection established");
+        if (!status.isEmpty())
+        {
+          session.offerLine("Current server status: " + status);
+        }
+      }
+
+      System.out.println("Established connection with client " +
+          channel.socket().getRemoteSocketAddress() + " (" + sessions.size() + " connected)");
+    }
+
+  }
+
+
+  private class ClientSession implements ClientFanout.Client
+  {
+
+    SocketChannel channel = null;
+    SelectionKey key = null;
+
+    volatile boolean binary = false;
+    volatile boolean compressed = false;
+    // how long to let buffers collect before writing them out, in ms
+    private int flushInterval = 0;
+    // whether the queue is being written out, which carries on until it is
+    // empty, and when it was last emptied
+    private boolean flushing = false;
+    private long lastFlush = 0;
+
+    private ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(clientQueueSize);
+    // buffers taken from the queue that haven't been completely written yet,
+    // only touched by the selector thread
+    private ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer[] gather = new ByteBuffer[16];
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private StringBuilder command = new StringBuilder();
+
+    private volatile long skipped = 0;
+    // when the queue filled up, or 0 if it has room
+    private volatile long fullSince = 0;
+
+    ClientSession(SocketChannel channel)
+    {
+      this.channel = channel;
+    }
+
+    @Override
+    public boolean isBinary()
+    {
+      return binary;
+    }
+
+    @Override
+    public boolean isCompressed()
+    {
+      return compressed;
+    }
+
+    /**
+     * Queue a buffer for the client, skipping it if the client is too far
+     * behind.  Called with the fanout lock held.
+     */
+    @Override
+    public void offer(ByteBuffer buffer)
+    {
+      if (queue.offer(buffer))
+      {
+        fullSince = 0;
+      }
+      else
+      {
+        ++skipped;
+        if (fullSince == 0)
+        {
+          fullSince = System.currentTimeMillis();
+        }
+      }
+    }
+
+    void offerLine(String line)
+    {
+      offer(ClientFanout.line(line));
+    }
+
+    /**
+     * Write whatever is queued once the flush interval allows it, and
+     * disconnect the client if it has fallen too far behind.
+     * @return When the session next needs to be looked at, in ms
+     */
+    long updateInterest(long now)
+    {
+      if (!key.isValid())
+      {
+        return Long.MAX_VALUE;
+      }
+
+      // only a client that is still full has fallen behind
+      long full = fullSince;
+      if (full != 0 && queue.remainingCapacity() == 0 && now - full > slowClientTimeout)
+      {
+        System.err.println("Disconnecting client " + channel.socket().getRemoteSocketAddress() +
+            ", which fell too far behind (" + skipped + " blocks skipped)");
+        close();
+        return Long.MAX_VALUE;
+      }
+
+      long next = Long.MAX_VALUE;
+      int ops = SelectionKey.OP_READ;
+      if (!inFlight.isEmpty() || !queue.isEmpty())
+      {
+        if (flushing || now - lastFlush >= flushInterval)
+        {
+          flushing = true;
+          ops |= SelectionKey.OP_WRITE;
+        }
+        else
+        {
+          next = lastFlush + flushInterval;
+        }
+      }
+      key.interestOps(ops);
+      return next;
+    }
+
+    void write()
+    {
+      // gather as much as is queued into one write
+      while (inFlight.size() < gather.length)
+      {
+        ByteBuffer next = queue.poll();
+        if (next == null)
+        {
+          break;
+        }
+        inFlight.add(next);
+      }
+      if (queue.remainingCapacity() > 0)
+      {
+        // the client has caught up, even if nothing has been offered since
+        fullSince = 0;
+      }
+
+      int count = inFlight.size();
+      inFlight.toArray(gather);
+      try
+      {
+        channel.write(gather, 0, count);
+      }
+      catch (IOException ioex)
+      {
+        close();
+        return;
+      }
+
+      while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining())
+      {
+        inFlight.poll();
+      }
+      for (int i = 0; i < count; i++)
+      {
+        gather[i] = null;
+      }
+
+      if (inFlight.isEmpty() && queue.isEmpty())
+      {
+        flushing = false;
+        lastFlush = System.currentTimeMillis();
+      }
+    }
+
+    void read()
+    {
+      int read = -1;
+      try
+      {
+        read = channel.read(readBuffer);
+      }
+      catch (IOException ioex)
+      {
+      }
+
+      if (read < 0)
+      {
+        close();
+        return;
+      }
+
+      readBuffer.flip();
+      while (readBuffer.hasRemaining())
+      {
+        char c = (char)readBuffer.get();
+        if (c == '\n')
+        {
+          String input = command.toString().trim();
+          command.setLength(0);
+          handleInput(input);
+        }
+        else if (command.length() < MAX_COMMAND_LENGTH)
+        {
+          command.append(c);
+        }
+        else
+        {
+          System.err.println("Disconnecting client " + channel.socket().getRemoteSocketAddress() +
+              ", which sent a command longer than " + MAX_COMMAND_LENGTH + " characters");
+          close();
+          return;
+        }
+      }
+      readBuffer.clear();
+    }
+
+    private void handleInput(String input)
+    {
+      if (TcpCollectionServer.isCommand(input, TcpCollectionServer.BINARY_COMMAND) ||
+          TcpCollectionServer.isCommand(input, TcpCollectionServer.COMPRESSED_COMMAND))
+      {
+        boolean compress = TcpCollectionServer.isCommand(input, TcpCollectionServer.COMPRESSED_COMMAND);
+        String interval = input.substring(1).trim();
+        try
+        {
+          flushInterval = interval.isEmpty() ? 0 : Math.max(0, Integer.parseInt(interval));
+        }
+        catch (NumberFormatException nfex)
+        {
+          System.err.println("Ignoring invalid flush interval " + interval);
+        }
+
+        synchronized (fanout.getLock())
+        {
+          offerLine((compress ? "Compressed" : "Binary") + " mode, flush interval " +
+              flushInterval + " ms");
+          compressed = compress;
+          binary = true;
+        }
+        System.out.println("Client " + channel.socket().getRemoteSocketAddress() +
+            " switched to " + (compress ? "compressed" : "binary") + " mode");
+      }
+      else if (!input.isEmpty())
+      {
+        handleCommand(input);
+      }
+    }
+
+    void close()
+    {
+      sessions.remove(this);
+      key.cancel();
+      try
+      {
+        channel.close();
+      }
+      catch (IOException ioex)
+      {
+      }
+      System.out.println("Client disconnected (" + sessions.size() + " connected)");
+    }
+
+  }
+
+
+  /**
+   * Encodes each block once per protocol in use and queues it for every client.
+   */
+  private class BroadcastSink implements SampleSink
+  {
+
+    @Override
+    public void handleBlock(SampleBlock block)
+    {
+      if (!sessions.isEmpty())
+      {
+        fanout.publish(block, getDevices() != null, sessions);
+        selector.wakeup();
+      }
+    }
+
+  }
+
+}
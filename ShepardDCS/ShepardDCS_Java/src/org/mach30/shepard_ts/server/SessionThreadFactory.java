@@ -0,0 +1,76 @@
+package org.mach30.shepard_ts.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that run client sessions, either as ordinary platform 
+ * threads or as virtual threads.  Virtual threads are cheap enough to give 
+ * every idle client its own reader and writer, but need Java 21, so they are
+ * looked up at run time and platform threads are used when they aren't 
+ * available.
+ */
+public class SessionThreadFactory implements ThreadFactory
+{
+  
+  private String prefix = null;
+  private int count = 0;
+  
+  // Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), if available
+  private Method ofVirtual = null;
+  private Method unstarted = null;
+  
+  /**
+   * @param prefix The start of each thread's name
+   * @param virtual Whether to try to create virtual threads
+   */
+  public SessionThreadFactory(String prefix, boolean virtual)
+  {
+    this.prefix = prefix;
+    
+    if (virtual)
+    {
+      try
+      {
+        ofVirtual = Thread.class.getMethod("ofVirtual");
+        unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+      }
+      catch (Exception ex)
+      {
+        System.err.println("Virtual threads need Java 21 or later, using platform threads instead");
+        ofVirtual = null;
+        unstarted = null;
+      }
+    }
+  }
+  
+  public boolean isVirtual()
+  {
+    return ofVirtual != null;
+  }
+  
+  @Override
+  public synchronized Thread newThread(Runnable r)
+  {
+    String name = prefix + " " + (++count);
+    
+    if (ofVirtual != null)
+    {
+      try
+      {
+        Thread t = (Thread)unstarted.invoke(ofVirtual.invoke(null), r);
+        t.setName(name);
+        return t;
+      }
+      catch (Exception ex)
+      {
+        // fall through to a platform thread
+      }
+    }
+    
+    Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    return t;
+  }
+  
+}
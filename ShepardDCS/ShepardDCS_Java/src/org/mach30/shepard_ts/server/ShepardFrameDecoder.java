@@ -0,0 +1,173 @@
+package org.mach30.shepard_ts.server;
+
+/**
+ * Incremental decoder for the control code protocol sent by the Shepard DCS
+ * hardware, version 1 of its protocol.  Every value is sent as a control code followed by its big-endian
+ * value:
+ *
+ *   0xff - thrust, unsigned 16-bit ADC reading
+ *   0xfe - temperature, signed 16-bit hundredths of a degree Celsius
+ *   0xfd - time stamp, unsigned 32-bit milliseconds
+ *
+ * A sample is complete once all three values have been read.  The decoder
+ * keeps the partially read value between calls, so a value that spans serial
+ * events is completed by the next call to decode.  Nothing is allocated while
+ * decoding.
+ */
+public class ShepardFrameDecoder extends ProtocolDecoder
+{
+
+  public static final int THRUST_CODE = 0xff;
+  public static final int TEMP_CODE   = 0xfe;
+  public static final int TIME_CODE   = 0xfd;
+
+  private static final int THRUST_SET = 0x1;
+  private static final int TEMP_SET   = 0x2;
+  private static final int TIME_SET   = 0x4;
+  private static final int ALL_SET    = THRUST_SET | TEMP_SET | TIME_SET;
+
+  /**
+   * Receives the samples completed by the decoder.
+   */
+  public interface SampleListener
+  {
+    /**
+     * Called once per complete sample, on the thread calling decode.
+     * @param time The time stamp, in milliseconds since the hardware started
+     * @param rawThrust The unconverted thrust ADC reading
+     * @param rawTemp The temperature reading in hundredths of a degree Celsius
+     */
+    void sampleDecoded(long time, int rawThrust, int rawTemp);
+  }
+
+
+  // the control code of the value currently being read, or 0 if the next byte
+  // is expected to be a control code
+  private int controlCode = 0;
+  private int remainingBytes = 0;
+  private long value = 0;
+
+  // the values read so far for the current sample
+  private int setFlags = 0;
+  private int rawThrust = 0;
+  private int rawTemp = 0;
+  private long time = 0;
+
+  private long unknownCodes = 0;
+  private long resyncs = 0;
+  private boolean skipping = false;
+
+
+  public ShepardFrameDecoder(SampleListener listener)
+  {
+    super(listener);
+  }
+
+  @Override
+  public int getVersion()
+  {
+    return 1;
+  }
+
+  @Override
+  public int decode(byte[] buffer, int offset, int length)
+  {
+    int samples = 0;
+    int end = offset + length;
+
+    for (int i = offset; i < end; i++)
+    {
+      int b = buffer[i] & 0xff;
+
+      // if no value is in progress, this byte should be a control code
+      if (controlCode == 0)
+      {
+        switch (b)
+        {
+          case THRUST_CODE :
+          case TEMP_CODE :
+            remainingBytes = 2;
+            break;
+          case TIME_CODE :
+            remainingBytes = 4;
+            break;
+          default :
+            // skip the byte and try the next one as a control code
+            ++unknownCodes;
+            if (!skipping)
+            {
+              ++resyncs;
+              skipping = true;
+            }
+            continue;
+        }
+
+        skipping = false;
+        controlCode = b;
+        value = 0;
+        continue;
+      }
+
+      value = (value << 8) | b;
+      if (--remainingBytes > 0)
+      {
+        continue;
+      }
+
+      switch (controlCode)
+      {
+        case THRUST_CODE :
+          rawThrust = (int)value;
+          setFlags |= THRUST_SET;
+          break;
+        case TEMP_CODE :
+          rawTemp = (short)value;
+          setFlags |= TEMP_SET;
+          break;
+        default :
+          time = value;
+          setFlags |= TIME_SET;
+          break;
+      }
+      controlCode = 0;
+
+      if (setFlags == ALL_SET)
+      {
+        setFlags = 0;
+        ++samples;
+        listener.sampleDecoded(time, rawThrust, rawTemp);
+      }
+    }
+
+    return samples;
+  }
+
+  @Override
+  public void reset()
+  {
+    controlCode = 0;
+    remainingBytes = 0;
+    value = 0;
+    setFlags = 0;
+  }
+
+  /**
+   * @return The number of bytes skipped because they were not a known control
+   *     code
+   */
+  public long getUnknownCodeCount()
+  {
+    return unknownCodes;
+  }
+
+  /**
+   * @return The number of times the decoder lost track of the control codes
+   *     and had to skip ahead to find the next one
+   */
+  @Override
+  public long getResyncCount()
+  {
+    return resyncs;
+  }
+
+}
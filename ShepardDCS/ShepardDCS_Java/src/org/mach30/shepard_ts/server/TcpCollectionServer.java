@@ -1,54 +1,95 @@
 package org.mach30.shepard_ts.server;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import jssc.SerialPortEventListener;
-import jssc.SerialPortException;
+import org.mach30.shepard_ts.SampleBlock;
 
+/**
+ * A TCP collection server that gives every client a session with its own
+ * command reader and data writer threads.  With the -vthreads argument these
+ * are virtual threads, so thousands of idle clients don't cost thousands of
+ * platform threads.
+ *
+ * Samples are encoded once per protocol by a ClientFanout and queued for each
+ * session.  A session whose queue is full skips blocks instead of holding up
+ * the others.
+ */
 public class TcpCollectionServer extends CollectionServer
 {
-  
-  private static final String SERVER_PORT_ARG = "-tcpport";
-  
+
+  static final String SERVER_PORT_ARG = "-tcpport";
+  private static final String VIRTUAL_THREADS_ARG = "-vthreads";
+  private static final String CLIENT_QUEUE_ARG = "-clientqueue";
+
+  // switches the client to binary frames, optionally followed by the flush
+  // interval in milliseconds, e.g. "B 20"
+  static final String BINARY_COMMAND = "B";
+  // the same, but with the samples sent as COMPRESSED_SAMPLES frames
+  static final String COMPRESSED_COMMAND = "C";
+
   private ServerSocket serverSocket = null;
-  private Socket clientSocket = null;
-  
+
   private int serverPort = 9999;
-  
-  private PrintWriter clientOut = null;
-  private BufferedReader clientIn = null;
-  
+  private boolean virtualThreads = false;
+  private int clientQueueSize = 256;
+
+  private SessionThreadFactory sessionThreads = null;
+  private List<TcpClientSession> sessions = new CopyOnWriteArrayList<TcpClientSession>();
+  private ClientFanout fanout = new ClientFanout();
+
   public TcpCollectionServer() throws Exception
   {
     super();
   }
-  
+
   @Override
   protected void parseArgs(List<String> args) throws Exception
   {
     super.parseArgs(args);
-    
+
     Iterator<String> iter = args.iterator();
     while (iter.hasNext())
     {
-      if (SERVER_PORT_ARG.equals(iter.next()) && iter.hasNext())
+      String arg = iter.next();
+      if (VIRTUAL_THREADS_ARG.equals(arg))
+      {
+        // the only argument that isn't followed by a parameter
+        virtualThreads = true;
+      }
+      else if (SERVER_PORT_ARG.equals(arg) && iter.hasNext())
       {
         serverPort = Integer.parseInt(iter.next());
       }
+      else if (CLIENT_QUEUE_ARG.equals(arg) && iter.hasNext())
+      {
+        clientQueueSize = Math.max(1, Integer.parseInt(iter.next()));
+      }
     }
   }
 
+  @Override
+  protected boolean isFlag(String arg)
+  {
+    return VIRTUAL_THREADS_ARG.equals(arg) || super.isFlag(arg);
+  }
+
   @Override
   public void handleClient() throws Exception
   {
-    try 
+    try
     {
       serverSocket = new ServerSocket(serverPort);
     }
@@ -57,225 +98,381 @@ public class TcpCollectionServer extends CollectionServer
       close();
       throw new Exception("Failed to listen on port " + serverPort);
     }
-    
-    Thread clientThread = new Thread(new TcpClientComms());
-    clientThread.start();
 
-    SerialPortEventListener listener = null;    
+    sessionThreads = new SessionThreadFactory("TCP client", virtualThreads);
+    if (sessionThreads.isVirtual())
+    {
+      System.out.println("Running client sessions on virtual threads");
+    }
+
+    Thread acceptThread = new Thread(new TcpClientAcceptor(), "TCP acceptor");
+    acceptThread.start();
+
+    // pass the status on to the clients while looking for the device
     String lastStatus = status;
-    while (listener == null)
+    boolean ready = false;
+    while (!ready)
     {
+      ready = awaitDevice(10);
       if (!lastStatus.equals(status))
       {
         lastStatus = status;
-        if (clientOut != null) {
-          clientOut.println(lastStatus);
-        }
-      }
-      
-      Thread.sleep(10);
-      
-      if (port != null)
-      {
-        System.out.println("Initializing listener...");
-        // TODO: make an abstract getter for the listener
-        listener = new TcpWriteOnEventListener();
-        port.addEventListener(listener);
+        fanout.publishStatus(lastStatus, sessions);
       }
     }
+
+    System.out.println("Initializing listener...");
+    pipeline.addSink("tcp clients", new TcpClientSink());
+    startListening();
+  }
+
+  /**
+   * @return The number of clients currently connected
+   */
+  public int getClientCount()
+  {
+    return sessions.size();
   }
-  
+
+  /**
+   * @return true if the client's input is the command, on its own or
+   *     followed by a parameter
+   */
+  static boolean isCommand(String input, String command)
+  {
+    return input.equals(command) || input.startsWith(command + " ");
+  }
+
   private void close()
   {
-    try
+    for (TcpClientSession session : sessions)
     {
-      clientSocket.close();
-    }
-    catch (IOException ioex)
-    {      
+      session.close();
     }
     try
     {
       serverSocket.close();
     }
     catch (IOException ioex)
-    {      
+    {
+    }
+    if (!isDeviceConnected())
+    {
+      return;
     }
-    if (port.isOpened())
+    if (source.isOpen())
     {
       try
       {
-        port.writeByte(QUIT_COMMAND);
+        source.write(QUIT_COMMAND);
       }
-      catch (SerialPortException spex)
+      catch (IOException ioex)
       {
       }
     }
     try
     {
-      port.closePort();
+      source.close();
     }
-    catch (SerialPortException spex)
-    {      
+    catch (IOException ioex)
+    {
     }
   }
-  
-  
-  private class TcpClientComms implements Runnable
+
+
+  private class TcpClientAcceptor implements Runnable
   {
 
     @Override
     public void run()
     {
-      while (clientSocket == null)
+      while (!serverSocket.isClosed())
       {
-        // wait to accept a connection with the client.  if an error is
-        // encountered, reset the socket and go back to attempting a 
-        // connection
-        try 
+        // wait to accept a connection with a client.  if an error is
+        // encountered, go back to waiting for the next one
+        try
         {
-          System.out.println("Waiting for client connection...");
-          clientSocket = serverSocket.accept();
-          System.out.println("Established connection with client");
+          Socket socket = serverSocket.accept();
+          TcpClientSession session = new TcpClientSession(socket);
+          session.start();
+          System.out.println("Established connection with client " +
+              socket.getRemoteSocketAddress() + " (" + sessions.size() + " connected)");
         }
         catch (IOException ioex)
         {
-          System.err.println("Failed to establish connection with client");
-          System.err.println(ioex);
-          clientSocket = null;
+          if (!serverSocket.isClosed())
+          {
+            System.err.println("Failed to establish connection with client");
+            System.err.println(ioex);
+          }
         }
-      
-        // attempt to open read/write streams with the client socket.  if an
-        // exception is encountered, reset the socket to null and continue
-        // the loop so that we can try to reestablish a connection
-        try
+      }
+    }
+
+  }
+
+
+  /**
+   * A connected client.  The reader thread handles the client's commands and
+   * the writer thread sends whatever has been queued for the client.
+   */
+  private class TcpClientSession implements ClientFanout.Client
+  {
+
+    private Socket socket = null;
+    private OutputStream out = null;
+    private BufferedReader in = null;
+
+    private volatile boolean binary = false;
+    private volatile boolean compressed = false;
+    private volatile int flushInterval = 0;
+    private volatile boolean open = true;
+
+    private ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(clientQueueSize);
+    private AtomicLong skipped = new AtomicLong();
+
+    private Thread reader = null;
+    // null until the session has been started
+    private volatile Thread writer = null;
+
+    TcpClientSession(Socket socket) throws IOException
+    {
+      this.socket = socket;
+      out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
+    void start()
+    {
+      synchronized (fanout.getLock())
+      {
+        sessions.add(this);
+        offer(ClientFanout.line("Connection established"));
+        if (!status.isEmpty())
         {
-          clientOut = new PrintWriter(clientSocket.getOutputStream(), true);
-          clientIn = new BufferedReader(new InputStreamReader(
-              clientSocket.getInputStream()));
+          offer(ClientFanout.line("Current server status: " + status));
         }
-        catch (IOException ioex)
+      }
+
+      reader = sessionThreads.newThread(new Runnable() {
+        @Override
+        public void run()
         {
-          System.err.println("Failed to complete connection with clinet.");
-          System.err.println(ioex);
-          closeClientConnection();
-          continue;
+          readCommands();
         }
-        
-        // at this point, a good connection is established.
-        
-        clientOut.println("Connection established");
-        if (!status.isEmpty())
+      });
+      writer = sessionThreads.newThread(new Runnable() {
+        @Override
+        public void run()
         {
-          clientOut.println("Current server status: " + status);
+          writeQueued();
         }
-        
-        
-        try
+      });
+      reader.start();
+      writer.start();
+    }
+
+    @Override
+    public boolean isBinary()
+    {
+      return binary;
+    }
+
+    @Override
+    public boolean isCompressed()
+    {
+      return compressed;
+    }
+
+    @Override
+    public void offer(ByteBuffer buffer)
+    {
+      if (!queue.offer(buffer))
+      {
+        skipped.incrementAndGet();
+      }
+    }
+
+    private void readCommands()
+    {
+      try
+      {
+        String input = null;
+        while ((input = in.readLine()) != null)
         {
-          String input = null;
-          while ((input = clientIn.readLine()) != null)
+          // switching modes doesn't involve the device, so don't wait for it
+          if (isCommand(input, BINARY_COMMAND) || isCommand(input, COMPRESSED_COMMAND))
           {
-            // if the device is not yet connected, wait to execute client commands
-            while (port == null || !CollectionServer.deviceConnected)
+            enableBinaryMode(input);
+            continue;
+          }
+
+          // if the device is not yet connected, wait to execute client commands
+          if (!isDeviceConnected())
+          {
+            System.out.println("Waiting for device connection...");
+            awaitDevice();
+          }
+
+          System.out.println("Received from client: " + input);
+          if ("R".equals(input))
+          {
+            System.out.println("Ready command received.  Initiating " +
+                "communication with DCS hardware...");
+            try
             {
-              System.out.println("Waiting for device connection... (" + (port == null) + "," + !CollectionServer.deviceConnected + ")");
-              try
-              {
-                Thread.sleep(250);
-              }
-              catch (InterruptedException e)
-              {
-              }
+              resetLatency();
+              source.write(READY_COMMAND);
+              System.out.println("Command sent to DCS.");
             }
-            
-            System.out.println("Received from client: " + input);
-            if ("R".equals(input))
+            catch (IOException ioex)
             {
-              System.out.println("Ready command received.  Initiating " +
-                  "communication with DCS hardware...");
-              try
-              {
-                port.writeByte(READY_COMMAND);
-                System.out.println("Command sent to DCS.");
-              }
-              catch (SerialPortException spex)
-              {
-                System.err.println(spex);
-                close();
-              }
+              System.err.println(ioex);
+              TcpCollectionServer.this.close();
             }
+          }
 
-            if ("Q".equals(input))
+          if ("Q".equals(input))
+          {
+            System.out.println("Quit command received.  Stopping data collection...");
+            try
+            {
+              source.write(QUIT_COMMAND);
+              System.out.println("Command sent to DCS.");
+              printLatency();
+            }
+            catch (IOException ioex)
             {
-              System.out.println("Quit command received.  Stopping data collection...");
-              try
-              {
-                port.writeByte((byte) 0x51);
-                System.out.println("Command sent to DCS.");
-              }
-              catch (SerialPortException spex)
-              {
-                System.err.println(spex);
-                close();
-              }
+              System.err.println(ioex);
+              TcpCollectionServer.this.close();
             }
           }
-          
-          // if we've reached here, it means that the client has been disconnected
-          closeClientConnection();
         }
-        catch (Exception ex)
+      }
+      catch (Exception ex)
+      {
+        if (open)
         {
           System.err.println("An error was encountered communicating with the client");
           System.err.println(ex);
-          closeClientConnection();
         }
       }
+
+      // if we've reached here, it means that the client has been disconnected
+      close();
     }
-    
+
     /**
-     * Call this method as a result of a handled exception in order to close
-     * the client socket and reset it to null.
+     * Switch the client to binary frames.  Once the acknowledgement line has
+     * been sent, everything the server sends is a BinarySampleEncoder frame.
+     * @param command The binary or compressed command, optionally followed by
+     *     the flush interval
      */
-    private void closeClientConnection()
+    private void enableBinaryMode(String command)
     {
+      boolean compress = isCommand(command, COMPRESSED_COMMAND);
+      String interval = command.substring(1).trim();
       try
       {
-        clientIn.close();
-        clientOut.close();
-        clientSocket.close();
+        flushInterval = interval.isEmpty() ? 0 : Math.max(0, Integer.parseInt(interval));
       }
-      catch (IOException ioex2)
+      catch (NumberFormatException nfex)
       {
+        System.err.println("Ignoring invalid flush interval " + interval);
       }
-      clientSocket = null;
-      clientIn = null;
-      clientOut = null;
+
+      synchronized (fanout.getLock())
+      {
+        offer(ClientFanout.line((compress ? "Compressed" : "Binary") + " mode, flush interval " +
+            flushInterval + " ms"));
+        compressed = compress;
+        binary = true;
+      }
+      System.out.println("Client switched to " + (compress ? "compressed" : "binary") + " mode");
     }
-    
+
+    private void writeQueued()
+    {
+      long lastFlush = System.currentTimeMillis();
+      boolean unflushed = false;
+
+      try
+      {
+        while (open)
+        {
+          // once something has been written, only wait for more until the
+          // flush interval is up
+          long wait = unflushed ? lastFlush + flushInterval - System.currentTimeMillis() : 1000;
+          ByteBuffer next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+
+          if (next != null)
+          {
+            out.write(next.array(), next.arrayOffset() + next.position(), next.remaining());
+            unflushed = true;
+          }
+
+          if (unflushed && (queue.isEmpty() || next == null) &&
+              System.currentTimeMillis() - lastFlush >= flushInterval)
+          {
+            out.flush();
+            unflushed = false;
+            lastFlush = System.currentTimeMillis();
+          }
+        }
+      }
+      catch (IOException ioex)
+      {
+        // the reader will notice the closed connection
+      }
+      catch (InterruptedException iex)
+      {
+      }
+
+      close();
+    }
+
+    synchronized void close()
+    {
+      if (!open)
+      {
+        return;
+      }
+      open = false;
+      sessions.remove(this);
+
+      try
+      {
+        socket.close();
+      }
+      catch (IOException ioex)
+      {
+      }
+      Thread sessionWriter = writer;
+      if (sessionWriter != null)
+      {
+        sessionWriter.interrupt();
+      }
+
+      System.out.println("Client disconnected (" + sessions.size() + " connected, " +
+          skipped.get() + " blocks skipped)");
+    }
+
   }
-  
+
 
   // TODO: move this to an implementation of the abstract TcpCollectionServer
-  private class TcpWriteOnEventListener extends ShepardSerialEventListener
+  private class TcpClientSink implements SampleSink
   {
-        
-    public TcpWriteOnEventListener()
-    {
-      super(port);
-    }
 
     @Override
-    protected void handleData()
+    public void handleBlock(SampleBlock block)
     {
-      // verify that there's still a connection to the client
-      if (clientOut != null)
+      if (!sessions.isEmpty())
       {
-        clientOut.println(this.datapoint);
+        fanout.publish(block, getDevices() != null, sessions);
       }
     }
-    
+
   }
-  
+
 }
@@ -0,0 +1,92 @@
+package org.mach30.shepard_ts.simulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.calibration.Calibration;
+
+/**
+ * Replays a capture of the "time,thrust,temp" lines the clientless server
+ * echoes, or a CSV recording, turning the calibrated values back into the raw
+ * readings they were converted from.  Any line that isn't a sample, such as
+ * the status lines and headers around them, is skipped.
+ */
+public class CaptureSource extends SampleSource
+{
+
+  private File file = null;
+  private BufferedReader reader = null;
+
+  // the calibration inverted, so raw = (value - offset) / scale
+  private double thrustOffset = 0;
+  private double thrustScale = 0;
+  private double tempOffset = 0;
+  private double tempScale = 0;
+
+
+  /**
+   * @param calibration The calibration the capture was converted with, which
+   *     has to be linear to be inverted
+   */
+  public CaptureSource(File file, Calibration calibration) throws IOException
+  {
+    double[] thrust = calibration.getThrustCoefficients();
+    double[] temp = calibration.getTempCoefficients();
+    if (thrust.length != 2 || temp.length != 2 || thrust[1] == 0 || temp[1] == 0)
+    {
+      throw new IOException("Only captures converted with a linear calibration can be replayed, not " +
+          calibration);
+    }
+    thrustOffset = thrust[0];
+    thrustScale = thrust[1];
+    tempOffset = temp[0];
+    tempScale = temp[1];
+
+    this.file = file;
+    reader = new BufferedReader(new FileReader(file));
+  }
+
+  @Override
+  public int read(SampleBlock block) throws IOException
+  {
+    block.clear();
+    String line = null;
+    while (!block.isFull() && (line = reader.readLine()) != null)
+    {
+      String[] fields = line.split(",");
+      if (fields.length < 3)
+      {
+        continue;
+      }
+      try
+      {
+        long time = Long.parseLong(fields[0].trim());
+        double thrust = Double.parseDouble(fields[1].trim());
+        double temp = Double.parseDouble(fields[2].trim());
+        block.add(time, (int)Math.round((thrust - thrustOffset) / thrustScale),
+            (int)Math.round((temp - tempOffset) / tempScale));
+      }
+      catch (NumberFormatException nfex)
+      {
+      }
+    }
+    return block.count;
+  }
+
+  @Override
+  public void rewind() throws IOException
+  {
+    reader.close();
+    reader = new BufferedReader(new FileReader(file));
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    reader.close();
+  }
+
+}
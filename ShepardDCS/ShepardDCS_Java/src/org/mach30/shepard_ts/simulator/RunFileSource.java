@@ -0,0 +1,44 @@
+package org.mach30.shepard_ts.simulator;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.storage.RunFileReader;
+
+/**
+ * Replays the raw readings recorded in a run file.
+ */
+public class RunFileSource extends SampleSource
+{
+
+  private File file = null;
+  private RunFileReader reader = null;
+
+
+  public RunFileSource(File file) throws IOException
+  {
+    this.file = file;
+    reader = new RunFileReader(file);
+  }
+
+  @Override
+  public int read(SampleBlock block) throws IOException
+  {
+    return reader.read(block);
+  }
+
+  @Override
+  public void rewind() throws IOException
+  {
+    reader.close();
+    reader = new RunFileReader(file);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    reader.close();
+  }
+
+}
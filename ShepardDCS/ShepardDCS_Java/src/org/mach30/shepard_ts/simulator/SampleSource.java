@@ -0,0 +1,57 @@
+package org.mach30.shepard_ts.simulator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.calibration.Calibration;
+import org.mach30.shepard_ts.storage.RunFile;
+
+/**
+ * The raw readings a simulated device sends, in the order it sends them.
+ */
+public abstract class SampleSource implements Closeable
+{
+
+  public static final String SYNTHETIC = "synthetic";
+
+  /**
+   * Open the source named on the command line: "synthetic" for the built in
+   * firing curve, a run file, or a capture of the readings the server echoed.
+   * @param calibration The calibration a capture's readings were converted
+   *     with, which is inverted to get back the raw readings
+   */
+  public static SampleSource open(String spec, Calibration calibration) throws IOException
+  {
+    if (SYNTHETIC.equals(spec))
+    {
+      return new SyntheticFiring();
+    }
+
+    File file = new File(spec);
+    if (file.getName().endsWith(RunFile.EXTENSION))
+    {
+      return new RunFileSource(file);
+    }
+    return new CaptureSource(file, calibration);
+  }
+
+  /**
+   * Fill a block with the next raw readings.
+   * @param block The block to fill, which is cleared first
+   * @return The number of samples read, 0 once every sample has been read
+   */
+  public abstract int read(SampleBlock block) throws IOException;
+
+  /**
+   * Go back to the first sample.
+   */
+  public abstract void rewind() throws IOException;
+
+  @Override
+  public void close() throws IOException
+  {
+  }
+
+}
@@ -0,0 +1,331 @@
+package org.mach30.shepard_ts.simulator;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mach30.shepard_ts.FramedProtocol;
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * Behaves like the data collection firmware on the other end of a simulated
+ * port.  It echoes the discovery command, and once the ready command arrives
+ * it sends the readings from a sample source in the firmware's control code
+ * protocol until the quit command, paced by the readings' timestamps.
+ *
+ * The speed is how many times faster than real time the readings are sent,
+ * or 0 to send them as fast as the server reads them.  Unlike the hardware,
+ * the simulator never drops readings when the server falls behind, it waits
+ * for room in the port's buffer instead.
+ *
+ * Firmware of version 2 or later answers the version command, and from then
+ * on sends frames of the readings due at once instead of control codes.
+ */
+public class SimulatedDevice implements Runnable
+{
+
+  private static final byte DISCOVERY_COMMAND = (byte)0x44; // D
+  private static final byte READY_COMMAND = (byte)0x52; // R
+  private static final byte QUIT_COMMAND = (byte)0x51; // Q
+
+  // the firmware waits this long after the ready command before sending, ms
+  private static final int START_DELAY = 500;
+  // the bytes in one sample, three control codes and their values
+  private static final int SAMPLE_SIZE = 11;
+  private static final int BLOCK_SIZE = 256;
+  // readings due within this long of each other are sent together, in ns
+  private static final long MIN_SLEEP = 1000000L;
+  // the most readings in a frame
+  private static final int FRAME_SAMPLES = 32;
+  private static final int FRAME_SIZE = FramedProtocol.frameSize(FRAME_SAMPLES, FramedProtocol.CHANNELS);
+
+  private SampleSource source = null;
+  private double speed = 1;
+  private boolean loop = false;
+  private int version = 1;
+  private volatile boolean framed = false;
+
+  private SimulatedSerialPort port = null;
+  private Thread thread = null;
+  private volatile boolean streaming = false;
+
+  private SampleBlock block = new SampleBlock(BLOCK_SIZE);
+  private int next = 0;
+  // added to the source's timestamps, so that each pass of a looped source
+  // carries on from where the last one finished
+  private long timeOffset = 0;
+  private long lastTime = -1;
+
+  private byte[] output = new byte[BLOCK_SIZE * SAMPLE_SIZE];
+  private int outputLength = 0;
+  // the readings waiting to be sent in the next frame
+  private SampleBlock frame = new SampleBlock(FRAME_SAMPLES);
+  private int sequence = 0;
+
+  private volatile long samplesSent = 0;
+  private volatile int passes = 0;
+
+
+  /**
+   * @param source The readings to send
+   * @param speed How many times faster than real time to send them, or 0 for
+   *     as fast as the server reads them
+   * @param loop Whether to start the source again once it runs out, instead
+   *     of going quiet
+   */
+  public SimulatedDevice(SampleSource source, double speed, boolean loop)
+  {
+    this(source, speed, loop, 1);
+  }
+
+  /**
+   * @param version The version of the protocol the firmware can send, 1 for
+   *     control codes only or 2 for frames when the host asks for them
+   */
+  public SimulatedDevice(SampleSource source, double speed, boolean loop, int version)
+  {
+    this.source = source;
+    this.speed = speed;
+    this.loop = loop;
+    this.version = version;
+  }
+
+  /**
+   * Power the device up on a port, which is what opening the port does to
+   * the hardware.
+   */
+  synchronized void connect(SimulatedSerialPort port)
+  {
+    this.port = port;
+    streaming = false;
+    // opening the port resets the hardware, which forgets the version asked for
+    framed = false;
+    thread = new Thread(this, "Simulated device");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  synchronized void disconnect()
+  {
+    streaming = false;
+    if (thread != null)
+    {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  /**
+   * Handle a byte the server wrote to the port.
+   */
+  synchronized void command(byte command) throws InterruptedException
+  {
+    if (streaming)
+    {
+      // while sending, the firmware only listens for the quit command
+      if (command == QUIT_COMMAND)
+      {
+        streaming = false;
+        LockSupport.unpark(thread);
+      }
+      return;
+    }
+
+    if (command == DISCOVERY_COMMAND)
+    {
+      // the firmware forgets the version asked for when it is discovered
+      // again, so a host that gave up waiting for the answer gets control codes
+      framed = false;
+      port.receive(new byte[] {DISCOVERY_COMMAND}, 0, 1);
+    }
+    else if (command == FramedProtocol.VERSION_COMMAND && version >= FramedProtocol.VERSION)
+    {
+      port.receive(new byte[] {FramedProtocol.VERSION_COMMAND, (byte)version}, 0, 2);
+      framed = true;
+    }
+    else if (command == READY_COMMAND)
+    {
+      streaming = true;
+      notifyAll();
+    }
+  }
+
+  public long getSamplesSent()
+  {
+    return samplesSent;
+  }
+
+  @Override
+  public void run()
+  {
+    try
+    {
+      while (!Thread.currentThread().isInterrupted())
+      {
+        synchronized (this)
+        {
+          while (!streaming)
+          {
+            wait();
+          }
+        }
+
+        if (speed > 0)
+        {
+          Thread.sleep((long)(START_DELAY / speed));
+        }
+        stream();
+      }
+    }
+    catch (InterruptedException iex)
+    {
+    }
+    catch (IOException ioex)
+    {
+      System.err.println("The simulated device failed to read its samples: " + ioex.getMessage());
+    }
+  }
+
+  /**
+   * Send readings until the quit command, or the source runs out.
+   */
+  private void stream() throws IOException, InterruptedException
+  {
+    long start = System.nanoTime();
+    long firstTime = -1;
+
+    while (streaming)
+    {
+      if (next == block.count && !nextBlock())
+      {
+        flush();
+        streaming = false;
+        System.out.println("The simulated device has sent all " + samplesSent + " samples");
+        return;
+      }
+
+      long time = block.time[next] + timeOffset;
+      if (firstTime < 0)
+      {
+        firstTime = time;
+      }
+      if (speed > 0)
+      {
+        long due = start + (long)((time - firstTime) * 1e6 / speed);
+        long wait = due - System.nanoTime();
+        if (wait >= MIN_SLEEP)
+        {
+          flush();
+          LockSupport.parkNanos(this, wait);
+          if (Thread.interrupted())
+          {
+            throw new InterruptedException();
+          }
+          // check for the quit command before sending anything else
+          continue;
+        }
+      }
+
+      if (framed)
+      {
+        frame.add(time, block.rawThrust[next], block.rawTemp[next]);
+        if (frame.isFull())
+        {
+          encodeFrame();
+        }
+      }
+      else
+      {
+        encode(time, block.rawThrust[next], block.rawTemp[next]);
+      }
+      lastTime = time;
+      next++;
+      samplesSent++;
+      // keep room for whatever the next reading may add
+      if (outputLength + (framed ? FRAME_SIZE : SAMPLE_SIZE) > output.length)
+      {
+        flush();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Read the next block from the source, starting it again if it has run out
+   * and the device is looping.
+   * @return false if there are no more readings
+   */
+  private boolean nextBlock() throws IOException
+  {
+    next = 0;
+    if (source.read(block) > 0)
+    {
+      return true;
+    }
+    if (!loop)
+    {
+      return false;
+    }
+
+    source.rewind();
+    passes++;
+    if (source.read(block) == 0)
+    {
+      return false;
+    }
+    timeOffset = lastTime + 1 - block.time[0];
+    return true;
+  }
+
+  private void encode(long time, int rawThrust, int rawTemp)
+  {
+    byte[] out = output;
+    int pos = outputLength;
+
+    out[pos++] = (byte)0xff;
+    out[pos++] = (byte)(rawThrust >> 8);
+    out[pos++] = (byte)rawThrust;
+
+    out[pos++] = (byte)0xfe;
+    out[pos++] = (byte)(rawTemp >> 8);
+    out[pos++] = (byte)rawTemp;
+
+    out[pos++] = (byte)0xfd;
+    out[pos++] = (byte)(time >> 24);
+    out[pos++] = (byte)(time >> 16);
+    out[pos++] = (byte)(time >> 8);
+    out[pos++] = (byte)time;
+
+    outputLength = pos;
+  }
+
+  /**
+   * Move the readings waiting for a frame into the output as one frame.
+   */
+  private void encodeFrame()
+  {
+    outputLength += FramedProtocol.encode(output, outputLength, sequence, frame, 0, frame.count);
+    sequence = (sequence + 1) & 0xffff;
+    frame.clear();
+  }
+
+  private void flush() throws InterruptedException
+  {
+    if (!frame.isEmpty())
+    {
+      encodeFrame();
+    }
+    if (outputLength > 0)
+    {
+      port.receive(output, 0, outputLength);
+      outputLength = 0;
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("%d samples sent, %d passes, %s", samplesSent, passes + 1,
+        speed > 0 ? speed + "x real time" : "unpaced");
+  }
+
+}
@@ -0,0 +1,335 @@
+package org.mach30.shepard_ts.simulator;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+
+/**
+ * A serial port with a simulated device on the other end instead of the
+ * hardware, so that the collection servers can be run and load tested
+ * without it.  Nothing is opened, the bytes the device sends are held in a
+ * buffer and handed to the event listener from an event thread, the way
+ * jssc does.
+ */
+public class SimulatedSerialPort extends SerialPort
+{
+
+  public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+  private SimulatedDevice device = null;
+  private boolean opened = false;
+
+  // the bytes the device has sent that haven't been read yet
+  private byte[] buffer = null;
+  private int head = 0;
+  private int count = 0;
+  // whether bytes have arrived since the listener was last told about them
+  private boolean arrived = false;
+
+  private SerialPortEventListener listener = null;
+  private Thread eventThread = null;
+
+
+  public SimulatedSerialPort(String portName, SimulatedDevice device)
+  {
+    this(portName, device, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize The most bytes the port holds before the device has to
+   *     wait for the server to read them
+   */
+  public SimulatedSerialPort(String portName, SimulatedDevice device, int bufferSize)
+  {
+    super(portName);
+    this.device = device;
+    buffer = new byte[bufferSize];
+  }
+
+  @Override
+  public synchronized boolean isOpened()
+  {
+    return opened;
+  }
+
+  @Override
+  public boolean openPort() throws SerialPortException
+  {
+    synchronized (this)
+    {
+      if (opened)
+      {
+        throw new SerialPortException(getPortName(), "openPort()", SerialPortException.TYPE_PORT_ALREADY_OPENED);
+      }
+      opened = true;
+      head = 0;
+      count = 0;
+    }
+    device.connect(this);
+    return true;
+  }
+
+  @Override
+  public boolean setParams(int baudRate, int dataBits, int stopBits, int parity)
+  {
+    return true;
+  }
+
+  @Override
+  public boolean setParams(int baudRate, int dataBits, int stopBits, int parity, boolean setRTS, boolean setDTR)
+  {
+    return true;
+  }
+
+  @Override
+  public boolean closePort() throws SerialPortException
+  {
+    checkOpened("closePort()");
+    device.disconnect();
+    removeEventListener();
+    synchronized (this)
+    {
+      opened = false;
+      notifyAll();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean writeByte(byte singleByte) throws SerialPortException
+  {
+    checkOpened("writeByte()");
+    try
+    {
+      device.command(singleByte);
+    }
+    catch (InterruptedException iex)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean writeBytes(byte[] bytes) throws SerialPortException
+  {
+    for (byte b : bytes)
+    {
+      if (!writeByte(b))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Read the given number of bytes, waiting for them to arrive like jssc
+   * does.  The listener is only ever told about bytes that have arrived.
+   */
+  @Override
+  public synchronized byte[] readBytes(int byteCount) throws SerialPortException
+  {
+    checkOpened("readBytes()");
+    while (count < byteCount && opened)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException iex)
+      {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    checkOpened("readBytes()");
+    return take(byteCount);
+  }
+
+  @Override
+  public synchronized byte[] readBytes() throws SerialPortException
+  {
+    checkOpened("readBytes()");
+    return take(count);
+  }
+
+  private byte[] take(int length)
+  {
+    if (length == 0)
+    {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    int first = Math.min(length, buffer.length - head);
+    System.arraycopy(buffer, head, bytes, 0, first);
+    System.arraycopy(buffer, 0, bytes, first, length - first);
+    head = (head + length) % buffer.length;
+    count -= length;
+    // let the device carry on if it was waiting for room
+    notifyAll();
+    return bytes;
+  }
+
+  @Override
+  public synchronized int getInputBufferBytesCount() throws SerialPortException
+  {
+    checkOpened("getInputBufferBytesCount()");
+    return count;
+  }
+
+  @Override
+  public synchronized boolean purgePort(int flags) throws SerialPortException
+  {
+    checkOpened("purgePort()");
+    if ((flags & PURGE_RXCLEAR) != 0)
+    {
+      head = 0;
+      count = 0;
+      notifyAll();
+    }
+    return true;
+  }
+
+  @Override
+  public void addEventListener(SerialPortEventListener listener) throws SerialPortException
+  {
+    addEventListener(listener, MASK_RXCHAR);
+  }
+
+  @Override
+  public synchronized void addEventListener(SerialPortEventListener listener, int mask)
+      throws SerialPortException
+  {
+    checkOpened("addEventListener()");
+    if (this.listener != null)
+    {
+      throw new SerialPortException(getPortName(), "addEventListener()",
+          SerialPortException.TYPE_LISTENER_ALREADY_ADDED);
+    }
+    this.listener = listener;
+    // tell the listener about anything already waiting
+    arrived = count > 0;
+    // like jssc's, the event thread keeps the server running
+    eventThread = new Thread(new EventNotifier(listener), "Simulated port events");
+    eventThread.start();
+  }
+
+  @Override
+  public boolean removeEventListener() throws SerialPortException
+  {
+    Thread thread = null;
+    synchronized (this)
+    {
+      checkOpened("removeEventListener()");
+      if (listener == null)
+      {
+        return false;
+      }
+      listener = null;
+      thread = eventThread;
+      eventThread = null;
+      notifyAll();
+    }
+    // jssc waits for the event thread too, so the listener isn't called once
+    // this returns, unless this is the event thread itself
+    if (thread != Thread.currentThread())
+    {
+      try
+      {
+        thread.join();
+      }
+      catch (InterruptedException iex)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add bytes sent by the device, waiting for room if the buffer is full.
+   */
+  synchronized void receive(byte[] bytes, int offset, int length) throws InterruptedException
+  {
+    while (length > 0 && opened)
+    {
+      while (count == buffer.length && opened)
+      {
+        wait();
+      }
+
+      int tail = (head + count) % buffer.length;
+      int chunk = Math.min(length, Math.min(buffer.length - count, buffer.length - tail));
+      System.arraycopy(bytes, offset, buffer, tail, chunk);
+      count += chunk;
+      offset += chunk;
+      length -= chunk;
+      arrived = true;
+      notifyAll();
+    }
+  }
+
+  private void checkOpened(String method) throws SerialPortException
+  {
+    if (!isOpened())
+    {
+      throw new SerialPortException(getPortName(), method, SerialPortException.TYPE_PORT_NOT_OPENED);
+    }
+  }
+
+
+  /**
+   * Tells a listener each time bytes arrive, with the number waiting to be
+   * read.
+   */
+  private class EventNotifier implements Runnable
+  {
+
+    private SerialPortEventListener listener = null;
+
+    EventNotifier(SerialPortEventListener listener)
+    {
+      this.listener = listener;
+    }
+
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        int available = 0;
+        synchronized (SimulatedSerialPort.this)
+        {
+          while (SimulatedSerialPort.this.listener == listener && !arrived)
+          {
+            try
+            {
+              SimulatedSerialPort.this.wait();
+            }
+            catch (InterruptedException iex)
+            {
+              return;
+            }
+          }
+          if (SimulatedSerialPort.this.listener != listener)
+          {
+            return;
+          }
+          arrived = false;
+          available = count;
+        }
+
+        if (available > 0)
+        {
+          listener.serialEvent(new SerialPortEvent(getPortName(), SerialPortEvent.RXCHAR, available));
+        }
+      }
+    }
+
+  }
+
+}
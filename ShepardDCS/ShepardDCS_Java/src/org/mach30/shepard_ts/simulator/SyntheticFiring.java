@@ -0,0 +1,90 @@
+package org.mach30.shepard_ts.simulator;
+
+import java.util.Random;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * A test firing every few seconds, one sample per millisecond, for as long
+ * as it is read.
+ */
+public class SyntheticFiring extends SampleSource
+{
+
+  public static final int PERIOD = 3000;
+
+  private static final long SEED = 30;
+
+  private Random noise = new Random(SEED);
+  private long millis = 0;
+
+
+  /**
+   * Raw thrust ADC reading at the given time into a firing.  The curve idles
+   * at the load cell offset, ramps up quickly to the peak, sags through the
+   * sustain phase and then tails off, with a little ADC noise on top.
+   */
+  public static int thrustCounts(long millis, Random noise)
+  {
+    double t = millis / 1000.0;
+    double counts;
+    if (t < 0.5)
+    {
+      counts = 7;
+    }
+    else if (t < 0.6)
+    {
+      counts = 7 + (t - 0.5) / 0.1 * 900;
+    }
+    else if (t < 2.0)
+    {
+      counts = 907 - (t - 0.6) / 1.4 * 300;
+    }
+    else if (t < 2.4)
+    {
+      counts = 607 - (t - 2.0) / 0.4 * 600;
+    }
+    else
+    {
+      counts = 7;
+    }
+
+    counts += noise.nextInt(5) - 2;
+    return (int)Math.max(0, Math.min(1023, counts));
+  }
+
+  /**
+   * Casing temperature, in hundredths of a degree Celsius, at the given time
+   * into a firing.
+   */
+  public static int tempCounts(long millis)
+  {
+    double t = millis / 1000.0;
+    double temp = 21.5;
+    if (t > 0.5)
+    {
+      temp += Math.min(t - 0.5, 3.0) * 40;
+    }
+    return (int)Math.round(temp * 100);
+  }
+
+  @Override
+  public int read(SampleBlock block)
+  {
+    block.clear();
+    while (!block.isFull())
+    {
+      block.add(millis, thrustCounts(millis % PERIOD, noise), tempCounts(millis % PERIOD));
+      millis++;
+    }
+    return block.count;
+  }
+
+  @Override
+  public void rewind()
+  {
+    noise = new Random(SEED);
+    millis = 0;
+  }
+
+}
@@ -0,0 +1,91 @@
+package org.mach30.shepard_ts.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * Records samples to a CSV file, one row per sample formatted by a
+ * SampleFormatter.  Samples from several devices get a CHANNEL column.
+ */
+public class CsvRecorder extends SampleRecorder
+{
+
+  public static final String CSV_HEADER = "TIME(ms),THRUST(N),TEMPERATURE(c)";
+  public static final String CHANNEL_CSV_HEADER = CSV_HEADER + ",CHANNEL";
+
+  private SampleFormatter formatter = null;
+  private boolean channels = false;
+
+
+  /**
+   * Create the file and write the header, formatting values to the default
+   * precision.  Call start to begin recording.
+   * @param file The file to record to, which is replaced if it exists
+   * @param policy When to flush the recorded samples to the file
+   */
+  public CsvRecorder(File file, FlushPolicy policy) throws IOException
+  {
+    this(file, policy, new SampleFormatter());
+  }
+
+  /**
+   * Create the file and write the header.  Call start to begin recording.
+   * @param file The file to record to, which is replaced if it exists
+   * @param policy When to flush the recorded samples to the file
+   * @param formatter Formats the rows
+   */
+  public CsvRecorder(File file, FlushPolicy policy, SampleFormatter formatter) throws IOException
+  {
+    this(file, policy, formatter, false);
+  }
+
+  /**
+   * Create the file and write the header.  Call start to begin recording.
+   * @param file The file to record to, which is replaced if it exists
+   * @param policy When to flush the recorded samples to the file
+   * @param formatter Formats the rows
+   * @param channels Whether the samples come from several devices, and each
+   *     row ends with the sample's channel
+   */
+  public CsvRecorder(File file, FlushPolicy policy, SampleFormatter formatter, boolean channels)
+      throws IOException
+  {
+    super(file, policy);
+    this.formatter = formatter;
+    this.channels = channels;
+
+    String header = channels ? CHANNEL_CSV_HEADER : CSV_HEADER;
+    for (int i = 0; i < header.length(); i++)
+    {
+      buffer.put((byte)header.charAt(i));
+    }
+    buffer.put((byte)'\n');
+  }
+
+  public SampleFormatter getFormatter()
+  {
+    return formatter;
+  }
+
+  @Override
+  protected int getMaxSampleSize()
+  {
+    return SampleFormatter.MAX_ROW;
+  }
+
+  @Override
+  protected void putSample(SampleBlock block, int idx)
+  {
+    if (channels)
+    {
+      formatter.putChannelRow(buffer, block, idx);
+    }
+    else
+    {
+      formatter.putRow(buffer, block, idx);
+    }
+  }
+
+}
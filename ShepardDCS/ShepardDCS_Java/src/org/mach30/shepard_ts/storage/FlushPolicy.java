@@ -0,0 +1,86 @@
+package org.mach30.shepard_ts.storage;
+
+/**
+ * Decides when a recorder pushes what it has buffered out to its file.
+ * Everything is always flushed when recording stops.
+ */
+public class FlushPolicy
+{
+
+  /**
+   * Flush at least once a second, without forcing the data to the disk.
+   */
+  public static final FlushPolicy DEFAULT = new FlushPolicy(0, 1000, false);
+
+  private int samples = 0;
+  private long interval = 0;
+  private boolean sync = false;
+
+  /**
+   * @param samples Flush once this many samples are waiting, or 0 to ignore
+   *     the number waiting
+   * @param interval Flush once the oldest waiting sample has waited this
+   *     long, in milliseconds, or 0 to ignore how long they've waited
+   * @param sync Whether to force flushed data to the disk, so that it
+   *     survives a power failure or crash
+   */
+  public FlushPolicy(int samples, long interval, boolean sync)
+  {
+    this.samples = Math.max(0, samples);
+    this.interval = Math.max(0, interval);
+    this.sync = sync;
+  }
+
+  public int getSamples()
+  {
+    return samples;
+  }
+
+  public long getInterval()
+  {
+    return interval;
+  }
+
+  public boolean isSync()
+  {
+    return sync;
+  }
+
+  /**
+   * @param waiting The number of samples waiting to be flushed
+   * @param waited How long the oldest of them has waited, in milliseconds
+   * @return true if the samples should be flushed now
+   */
+  public boolean shouldFlush(int waiting, long waited)
+  {
+    if (waiting == 0)
+    {
+      return false;
+    }
+    return (samples > 0 && waiting >= samples) || (interval > 0 && waited >= interval);
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder ret = new StringBuilder("flush");
+    if (samples > 0)
+    {
+      ret.append(" every ").append(samples).append(" samples");
+    }
+    if (interval > 0)
+    {
+      ret.append(samples > 0 ? " or" : "").append(" every ").append(interval).append(" ms");
+    }
+    if (samples == 0 && interval == 0)
+    {
+      ret.append(" when full");
+    }
+    if (sync)
+    {
+      ret.append(", synced to disk");
+    }
+    return ret.toString();
+  }
+
+}
@@ -0,0 +1,585 @@
+package org.mach30.shepard_ts.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.ShepardData;
+import org.mach30.shepard_ts.calibration.Calibration;
+
+/**
+ * Random access to the samples of a run file, for reviewing a run after the
+ * test.  The samples are memory mapped rather than read, so opening a run
+ * only reads its header and index, and a query only touches the pages of
+ * the samples it covers.
+ *
+ * The sparse time index is loaded from the run's footer, or rebuilt from
+ * every index interval'th sample if the run was never closed.  Finding a
+ * time is a binary search of the index, then of the one interval it falls
+ * in.  The minimum, maximum and sum of each interval are worked out the
+ * first time a bucket covers the whole interval and kept, so summarizing a
+ * long span mostly reads the cached intervals instead of the samples.
+ *
+ * The raw readings are calibrated with the calibration the run was recorded
+ * with, unless another is set.  The samples are assumed to be in time order,
+ * as the device sends them.  For a run recorded from several devices the
+ * statistics cover every channel together.
+ * Sample reads only use absolute gets, so they may be shared between
+ * threads.
+ *
+ * Usage: MappedRunFile run-file [from ms] [to ms] [buckets]
+ */
+public class MappedRunFile implements Closeable
+{
+
+  private static final int DEFAULT_BUCKETS = 20;
+
+  private File file = null;
+  private FileChannel channel = null;
+  private RunHeader header = null;
+  private volatile Calibration calibration = null;
+  private long sampleCount = 0;
+  private int recordSize = RunFile.RECORD_SIZE;
+  // whole records per mapping, keeping each mapping under 2 GB
+  private int segmentRecords = Integer.MAX_VALUE / RunFile.RECORD_SIZE;
+  private MappedByteBuffer[] segments = null;
+
+  private int indexInterval = RunFile.DEFAULT_INDEX_INTERVAL;
+  private long[] indexTimes = null;
+  private boolean indexLoaded = false;
+
+  // cached statistics for each index interval
+  private boolean[] summarized = null;
+  private float[] minThrust = null;
+  private float[] maxThrust = null;
+  private double[] sumThrust = null;
+  private float[] minTemp = null;
+  private float[] maxTemp = null;
+  private double[] sumTemp = null;
+
+  // reused by summarize
+  private Stats bucket = new Stats();
+  private Stats interval = new Stats();
+
+
+  /**
+   * Open a run file, map its samples and load or build its index.
+   * @throws IOException If the file can't be read or isn't a run file
+   */
+  public MappedRunFile(File file) throws IOException
+  {
+    this.file = file;
+    channel = new FileInputStream(file).getChannel();
+    try
+    {
+      header = RunFileReader.readHeader(channel);
+      if (RunFile.isBlocks(header.encoding))
+      {
+        throw new IOException("Compressed runs can't be mapped, rewrite them with RunFileConverter first");
+      }
+      else if (header.encoding != RunFile.ENCODING_FIXED &&
+          header.encoding != RunFile.ENCODING_FIXED_CHANNELS)
+      {
+        throw new IOException("Unknown sample encoding " + header.encoding);
+      }
+      recordSize = RunFile.getRecordSize(header.encoding);
+      segmentRecords = Integer.MAX_VALUE / recordSize;
+
+      calibration = header.calibration;
+      ByteBuffer footer = RunFileReader.readFooter(channel, header);
+      if (footer != null)
+      {
+        sampleCount = footer.getLong(8);
+      }
+      else
+      {
+        sampleCount = (channel.size() - header.getSize()) / recordSize;
+      }
+
+      map();
+      if (footer == null || !loadIndex(footer))
+      {
+        buildIndex();
+      }
+    }
+    catch (IOException ioex)
+    {
+      channel.close();
+      throw ioex;
+    }
+
+    int intervals = indexTimes.length;
+    summarized = new boolean[intervals];
+    minThrust = new float[intervals];
+    maxThrust = new float[intervals];
+    sumThrust = new double[intervals];
+    minTemp = new float[intervals];
+    maxTemp = new float[intervals];
+    sumTemp = new double[intervals];
+  }
+
+  public static void main(String[] args)
+  {
+    if (args.length < 1)
+    {
+      System.err.println("Usage: MappedRunFile run-file [from ms] [to ms] [buckets]");
+      System.exit(1);
+    }
+
+    MappedRunFile run = null;
+    try
+    {
+      long start = System.currentTimeMillis();
+      run = new MappedRunFile(new File(args[0]));
+      System.out.println(run.getHeader());
+      System.out.println(run + ", opened in " + (System.currentTimeMillis() - start) + " ms");
+
+      long from = args.length > 1 ? Long.parseLong(args[1]) : run.getStartTime();
+      long to = args.length > 2 ? Long.parseLong(args[2]) : run.getEndTime() + 1;
+      SampleBuckets buckets = new SampleBuckets(args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BUCKETS);
+
+      start = System.currentTimeMillis();
+      run.summarize(from, to, buckets);
+      System.out.println(buckets + ", summarized in " + (System.currentTimeMillis() - start) + " ms");
+      System.out.println("TIME(ms),SAMPLES,MIN THRUST(N),MAX THRUST(N),MEAN THRUST(N),MIN TEMP(c),MAX TEMP(c),MEAN TEMP(c)");
+      for (int i = 0; i < buckets.count; i++)
+      {
+        System.out.println(buckets.getStart(i) + "," + buckets.samples[i] + "," +
+            buckets.minThrust[i] + "," + buckets.maxThrust[i] + "," + buckets.meanThrust[i] + "," +
+            buckets.minTemp[i] + "," + buckets.maxTemp[i] + "," + buckets.meanTemp[i]);
+      }
+    }
+    catch (NumberFormatException nfex)
+    {
+      System.err.println("Invalid number: " + nfex.getMessage());
+      System.exit(1);
+    }
+    catch (IOException ioex)
+    {
+      System.err.println("Unable to read " + args[0] + ": " + ioex.getMessage());
+      System.exit(1);
+    }
+    finally
+    {
+      if (run != null)
+      {
+        try
+        {
+          run.close();
+        }
+        catch (IOException ioex)
+        {
+        }
+      }
+    }
+  }
+
+  private void map() throws IOException
+  {
+    int count = (int)((sampleCount + segmentRecords - 1) / segmentRecords);
+    segments = new MappedByteBuffer[count];
+    for (int i = 0; i < count; i++)
+    {
+      long first = (long)i * segmentRecords;
+      long records = Math.min(segmentRecords, sampleCount - first);
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+          header.getSize() + first * recordSize, records * recordSize);
+      segments[i].order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  /**
+   * Load the index written when the run was closed.
+   * @return false if it doesn't cover the samples, and has to be rebuilt
+   */
+  private boolean loadIndex(ByteBuffer footer) throws IOException
+  {
+    long indexOffset = footer.getLong(0);
+    int interval = footer.getInt(16);
+    int count = footer.getInt(20);
+    if (interval <= 0 || count != (sampleCount + interval - 1) / interval ||
+        indexOffset + (long)count * RunFile.INDEX_ENTRY_SIZE > channel.size())
+    {
+      return false;
+    }
+
+    ByteBuffer entries = ByteBuffer.allocate(count * RunFile.INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    while (entries.hasRemaining() && channel.read(entries, indexOffset + entries.position()) >= 0)
+    {
+    }
+    entries.flip();
+
+    long[] times = new long[count];
+    for (int i = 0; i < count; i++)
+    {
+      times[i] = entries.getLong();
+      if (entries.getLong() != (long)i * interval)
+      {
+        return false;
+      }
+      entries.getLong();
+    }
+
+    indexInterval = interval;
+    indexTimes = times;
+    indexLoaded = true;
+    return true;
+  }
+
+  private void buildIndex()
+  {
+    int count = (int)((sampleCount + indexInterval - 1) / indexInterval);
+    indexTimes = new long[count];
+    for (int i = 0; i < count; i++)
+    {
+      indexTimes[i] = getTime((long)i * indexInterval);
+    }
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public RunHeader getHeader()
+  {
+    return header;
+  }
+
+  public long getSampleCount()
+  {
+    return sampleCount;
+  }
+
+  public Calibration getCalibration()
+  {
+    return calibration;
+  }
+
+  /**
+   * Calibrate the samples with a different calibration than the run was
+   * recorded with, forgetting the statistics worked out with the old one.
+   */
+  public synchronized void setCalibration(Calibration calibration)
+  {
+    this.calibration = calibration;
+    Arrays.fill(summarized, false);
+  }
+
+  /**
+   * @return false if the index had to be rebuilt because the run was never
+   *     closed
+   */
+  public boolean isIndexLoaded()
+  {
+    return indexLoaded;
+  }
+
+  /**
+   * @return The time of the first sample, or 0 if there are none
+   */
+  public long getStartTime()
+  {
+    return sampleCount > 0 ? getTime(0) : 0;
+  }
+
+  /**
+   * @return The time of the last sample, or 0 if there are none
+   */
+  public long getEndTime()
+  {
+    return sampleCount > 0 ? getTime(sampleCount - 1) : 0;
+  }
+
+  private ByteBuffer segment(long sample)
+  {
+    return segments[(int)(sample / segmentRecords)];
+  }
+
+  private int offset(long sample)
+  {
+    return (int)(sample % segmentRecords) * recordSize;
+  }
+
+  public long getTime(long sample)
+  {
+    return segment(sample).getInt(offset(sample)) & 0xffffffffL;
+  }
+
+  public int getRawThrust(long sample)
+  {
+    return segment(sample).getShort(offset(sample) + 4) & 0xffff;
+  }
+
+  public int getRawTemp(long sample)
+  {
+    return segment(sample).getShort(offset(sample) + 6);
+  }
+
+  /**
+   * @return The channel of the device the sample came from, which is 0
+   *     unless the run was recorded from several devices
+   */
+  public int getChannel(long sample)
+  {
+    return getChannel(segment(sample), offset(sample));
+  }
+
+  private int getChannel(ByteBuffer segment, int offset)
+  {
+    return recordSize == RunFile.CHANNEL_RECORD_SIZE ? segment.getShort(offset + 8) & 0xffff : 0;
+  }
+
+  public float getThrust(long sample)
+  {
+    return calibration.toNewtons(getRawThrust(sample));
+  }
+
+  public float getTemp(long sample)
+  {
+    return calibration.toDegrees(getRawTemp(sample));
+  }
+
+  /**
+   * Copy a calibrated sample into a ShepardData.
+   */
+  public void get(long sample, ShepardData datapoint)
+  {
+    ByteBuffer segment = segment(sample);
+    int offset = offset(sample);
+    Calibration calibration = this.calibration;
+    datapoint.time = segment.getInt(offset) & 0xffffffffL;
+    datapoint.thrust = calibration.toNewtons(segment.getShort(offset + 4) & 0xffff);
+    datapoint.temp = calibration.toDegrees(segment.getShort(offset + 6));
+  }
+
+  /**
+   * @return The number of the first sample at or after the given time, which
+   *     is the sample count if every sample is earlier
+   */
+  public long indexOf(long time)
+  {
+    // the last interval starting before the time
+    int low = 0;
+    int high = indexTimes.length - 1;
+    while (low <= high)
+    {
+      int mid = (low + high) >>> 1;
+      if (indexTimes[mid] < time)
+      {
+        low = mid + 1;
+      }
+      else
+      {
+        high = mid - 1;
+      }
+    }
+    if (high < 0)
+    {
+      return 0;
+    }
+
+    long first = (long)high * indexInterval;
+    long last = Math.min(first + indexInterval, sampleCount) - 1;
+    while (first <= last)
+    {
+      long mid = (first + last) >>> 1;
+      if (getTime(mid) < time)
+      {
+        first = mid + 1;
+      }
+      else
+      {
+        last = mid - 1;
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Fill a block with samples, starting from the given one.
+   * @param sample The number of the first sample to read
+   * @param end The number of the sample to stop before
+   * @param block The block to fill, which is cleared first
+   * @return The number of samples read, 0 once sample reaches end
+   */
+  public int read(long sample, long end, SampleBlock block)
+  {
+    block.clear();
+    end = Math.min(end, sampleCount);
+    while (!block.isFull() && sample < end)
+    {
+      ByteBuffer segment = segment(sample);
+      int offset = offset(sample);
+      long count = Math.min(Math.min(block.capacity() - block.count, end - sample),
+          segmentRecords - sample % segmentRecords);
+      for (int i = 0; i < count; i++, offset += recordSize)
+      {
+        block.add(segment.getInt(offset) & 0xffffffffL, segment.getShort(offset + 4) & 0xffff,
+            segment.getShort(offset + 6), getChannel(segment, offset));
+      }
+      sample += count;
+    }
+    calibration.apply(block);
+    return block.count;
+  }
+
+  /**
+   * Summarize the samples between two times into equal width buckets.
+   * @param from The start of the first bucket
+   * @param to The time the last bucket ends before
+   * @param buckets Filled with up to its capacity buckets, at least 1 ms wide
+   */
+  public synchronized void summarize(long from, long to, SampleBuckets buckets)
+  {
+    long span = Math.max(to - from, 0);
+    long width = Math.max((span + buckets.capacity() - 1) / buckets.capacity(), 1);
+    buckets.start = from;
+    buckets.width = width;
+    buckets.count = span == 0 ? 0 : (int)((span + width - 1) / width);
+
+    long sample = indexOf(from);
+    for (int i = 0; i < buckets.count; i++)
+    {
+      long end = indexOf(Math.min(from + (i + 1) * width, to));
+      summarize(sample, end);
+      if (bucket.samples == 0)
+      {
+        bucket.minThrust = bucket.maxThrust = Float.NaN;
+        bucket.minTemp = bucket.maxTemp = Float.NaN;
+      }
+
+      buckets.samples[i] = bucket.samples;
+      buckets.minThrust[i] = bucket.minThrust;
+      buckets.maxThrust[i] = bucket.maxThrust;
+      buckets.meanThrust[i] = (float)(bucket.sumThrust / bucket.samples);
+      buckets.minTemp[i] = bucket.minTemp;
+      buckets.maxTemp[i] = bucket.maxTemp;
+      buckets.meanTemp[i] = (float)(bucket.sumTemp / bucket.samples);
+      sample = end;
+    }
+  }
+
+  /**
+   * Accumulate samples first up to end into the bucket, using the cached
+   * statistics for any whole intervals in between.
+   */
+  private void summarize(long first, long end)
+  {
+    bucket.clear();
+
+    int firstWhole = (int)((first + indexInterval - 1) / indexInterval);
+    int endWhole = (int)(end / indexInterval);
+    if (end == sampleCount)
+    {
+      // the last interval is whole even if it is short
+      endWhole = indexTimes.length;
+    }
+    if (firstWhole >= endWhole)
+    {
+      scan(first, end, bucket);
+      return;
+    }
+
+    scan(first, (long)firstWhole * indexInterval, bucket);
+    for (int k = firstWhole; k < endWhole; k++)
+    {
+      if (!summarized[k])
+      {
+        long start = (long)k * indexInterval;
+        interval.clear();
+        scan(start, Math.min(start + indexInterval, sampleCount), interval);
+        minThrust[k] = interval.minThrust;
+        maxThrust[k] = interval.maxThrust;
+        sumThrust[k] = interval.sumThrust;
+        minTemp[k] = interval.minTemp;
+        maxTemp[k] = interval.maxTemp;
+        sumTemp[k] = interval.sumTemp;
+        summarized[k] = true;
+      }
+      bucket.samples += Math.min(indexInterval, sampleCount - (long)k * indexInterval);
+      bucket.minThrust = Math.min(bucket.minThrust, minThrust[k]);
+      bucket.maxThrust = Math.max(bucket.maxThrust, maxThrust[k]);
+      bucket.sumThrust += sumThrust[k];
+      bucket.minTemp = Math.min(bucket.minTemp, minTemp[k]);
+      bucket.maxTemp = Math.max(bucket.maxTemp, maxTemp[k]);
+      bucket.sumTemp += sumTemp[k];
+    }
+    scan(Math.min((long)endWhole * indexInterval, end), end, bucket);
+  }
+
+  /**
+   * Accumulate samples first up to end from the mapping.
+   */
+  private void scan(long first, long end, Stats stats)
+  {
+    Calibration calibration = this.calibration;
+    while (first < end)
+    {
+      ByteBuffer segment = segment(first);
+      int offset = offset(first);
+      long count = Math.min(end - first, segmentRecords - first % segmentRecords);
+      for (int i = 0; i < count; i++, offset += recordSize)
+      {
+        float thrust = calibration.toNewtons(segment.getShort(offset + 4) & 0xffff);
+        float temp = calibration.toDegrees(segment.getShort(offset + 6));
+        stats.minThrust = Math.min(stats.minThrust, thrust);
+        stats.maxThrust = Math.max(stats.maxThrust, thrust);
+        stats.sumThrust += thrust;
+        stats.minTemp = Math.min(stats.minTemp, temp);
+        stats.maxTemp = Math.max(stats.maxTemp, temp);
+        stats.sumTemp += temp;
+      }
+      stats.samples += count;
+      first += count;
+    }
+  }
+
+  /**
+   * Unmapping is left to the garbage collector, so the samples must not be
+   * used once the run is closed.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    segments = new MappedByteBuffer[0];
+    channel.close();
+  }
+
+  @Override
+  public String toString()
+  {
+    return file.getName() + ": " + sampleCount + " samples from " + getStartTime() +
+        " to " + getEndTime() + " ms" + (indexLoaded ? "" : " (index rebuilt)");
+  }
+
+  private static class Stats
+  {
+    long samples = 0;
+    float minThrust = 0;
+    float maxThrust = 0;
+    double sumThrust = 0;
+    float minTemp = 0;
+    float maxTemp = 0;
+    double sumTemp = 0;
+
+    void clear()
+    {
+      samples = 0;
+      minThrust = Float.POSITIVE_INFINITY;
+      maxThrust = Float.NEGATIVE_INFINITY;
+      sumThrust = 0;
+      minTemp = Float.POSITIVE_INFINITY;
+      maxTemp = Float.NEGATIVE_INFINITY;
+      sumTemp = 0;
+    }
+  }
+
+}
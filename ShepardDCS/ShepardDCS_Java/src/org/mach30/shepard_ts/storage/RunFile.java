@@ -0,0 +1,87 @@
+package org.mach30.shepard_ts.storage;
+
+/**
+ * The layout of a run file, the native format for recorded test firings.
+ * Everything is little-endian.
+ *
+ * A run file starts with a RunHeader, followed by the samples and then a
+ * sparse index and a fixed size footer:
+ *
+ *   header  - see RunHeader
+ *   samples - for ENCODING_FIXED, RECORD_SIZE byte records of u32 time (ms),
+ *             u16 raw thrust reading and i16 raw temperature reading
+ *           - for ENCODING_FIXED_CHANNELS, CHANNEL_RECORD_SIZE byte records
+ *             of the same followed by the u16 channel of the device
+ *           - for ENCODING_BLOCKS, blocks of up to BLOCK_SAMPLES samples,
+ *             each a u32 length followed by a SampleBlockCodec block
+ *           - for ENCODING_CHANNEL_BLOCKS, the same, with the blocks holding
+ *             the channels
+ *   index   - one INDEX_ENTRY_SIZE entry per index interval samples: i64 time
+ *             of the first sample, i64 sample number, i64 file offset.  For
+ *             ENCODING_BLOCKS the entry is for the first block starting at
+ *             or after the interval, and holds that block's first sample
+ *   footer  - i64 index offset, i64 sample count, i32 index interval, i32
+ *             index entry count, 4 byte FOOTER_MAGIC
+ *
+ * The samples are the raw readings from the device, and are calibrated with
+ * the calibration in the header, or another one, as they are read.  A run
+ * recorded from several devices uses one of the channel encodings, so each
+ * sample keeps the channel of the device it came from.
+ *
+ * A run that was never closed, e.g. after a crash, has no index or footer,
+ * and its samples run to the end of the file.
+ */
+public final class RunFile
+{
+
+  public static final String EXTENSION = ".run";
+
+  public static final byte[] MAGIC = {'S', 'H', 'R', 'N'};
+  public static final byte[] FOOTER_MAGIC = {'S', 'H', 'R', 'X'};
+  // version 1 stored calibrated samples, and version 2 had no channels
+  public static final int VERSION = 3;
+  // the oldest version that can still be read
+  public static final int MIN_VERSION = 2;
+
+  // how the samples are stored
+  public static final int ENCODING_FIXED = 0;
+  public static final int ENCODING_BLOCKS = 1;
+  public static final int ENCODING_FIXED_CHANNELS = 2;
+  public static final int ENCODING_CHANNEL_BLOCKS = 3;
+
+  public static final int RECORD_SIZE = 8;
+  public static final int CHANNEL_RECORD_SIZE = RECORD_SIZE + 2;
+  public static final int INDEX_ENTRY_SIZE = 24;
+  public static final int FOOTER_SIZE = 28;
+  public static final int DEFAULT_INDEX_INTERVAL = 4096;
+  public static final int BLOCK_SAMPLES = 1024;
+
+  private RunFile()
+  {
+  }
+
+  /**
+   * @return Whether the encoding stores compressed blocks
+   */
+  public static boolean isBlocks(int encoding)
+  {
+    return encoding == ENCODING_BLOCKS || encoding == ENCODING_CHANNEL_BLOCKS;
+  }
+
+  /**
+   * @return Whether the encoding keeps the channel of each sample
+   */
+  public static boolean hasChannels(int encoding)
+  {
+    return encoding == ENCODING_FIXED_CHANNELS || encoding == ENCODING_CHANNEL_BLOCKS;
+  }
+
+  /**
+   * @return The size of a record of a fixed size encoding
+   */
+  public static int getRecordSize(int encoding)
+  {
+    return encoding == ENCODING_FIXED_CHANNELS ? CHANNEL_RECORD_SIZE : RECORD_SIZE;
+  }
+
+}
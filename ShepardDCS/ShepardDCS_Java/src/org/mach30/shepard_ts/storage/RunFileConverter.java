@@ -0,0 +1,219 @@
+package org.mach30.shepard_ts.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.calibration.Calibration;
+
+/**
+ * Exports run files to the CSV layout the collection panel records, with a
+ * CHANNEL column for runs recorded from several devices.  Given a .run file
+ * to write to instead, it rewrites the run with the other sample encoding,
+ * e.g. to map a compressed run with MappedRunFile.
+ *
+ * Usage: RunFileConverter run-file [csv-file|run-file] [thrust decimals] [temp decimals]
+ */
+public class RunFileConverter
+{
+
+  private static final int BLOCK_SIZE = 4096;
+
+  public static void main(String[] args)
+  {
+    if (args.length < 1)
+    {
+      System.err.println("Usage: RunFileConverter run-file [csv-file|run-file] [thrust decimals] [temp decimals]");
+      System.exit(1);
+    }
+
+    File run = new File(args[0]);
+    File csv = args.length > 1 ? new File(args[1]) : getCsvFile(run);
+
+    try
+    {
+      if (csv.getName().endsWith(RunFile.EXTENSION))
+      {
+        long start = System.currentTimeMillis();
+        long samples = toRun(run, csv);
+        System.out.println("Rewrote " + samples + " samples to " + csv + " in " +
+            (System.currentTimeMillis() - start) + " ms");
+        return;
+      }
+
+      SampleFormatter formatter = new SampleFormatter(
+          args.length > 2 ? Integer.parseInt(args[2]) : SampleFormatter.DEFAULT_THRUST_DECIMALS,
+          args.length > 3 ? Integer.parseInt(args[3]) : SampleFormatter.DEFAULT_TEMP_DECIMALS);
+
+      long start = System.currentTimeMillis();
+      long samples = toCsv(run, csv, formatter);
+      System.out.println("Exported " + samples + " samples to " + csv + " in " +
+          (System.currentTimeMillis() - start) + " ms");
+    }
+    catch (IllegalArgumentException iaex)
+    {
+      System.err.println(iaex.getMessage());
+      System.exit(1);
+    }
+    catch (IOException ioex)
+    {
+      System.err.println("Unable to export " + run + ": " + ioex.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return The run file's name with a CSV extension
+   */
+  public static File getCsvFile(File run)
+  {
+    String name = run.getPath();
+    if (name.endsWith(RunFile.EXTENSION))
+    {
+      name = name.substring(0, name.length() - RunFile.EXTENSION.length());
+    }
+    return new File(name + ".csv");
+  }
+
+  /**
+   * Export a run file as CSV, with the calibration it was recorded with.
+   * @return The number of samples exported
+   */
+  public static long toCsv(File run, File csv, SampleFormatter formatter) throws IOException
+  {
+    return toCsv(run, csv, formatter, null);
+  }
+
+  /**
+   * Export a run file as CSV.
+   * @param calibration The calibration to export the raw readings with, or
+   *     null for the one the run was recorded with
+   * @return The number of samples exported
+   */
+  public static long toCsv(File run, File csv, SampleFormatter formatter, Calibration calibration)
+      throws IOException
+  {
+    RunFileReader reader = new RunFileReader(run);
+    FileChannel out = null;
+    try
+    {
+      if (calibration != null)
+      {
+        reader.setCalibration(calibration);
+      }
+      out = new FileOutputStream(csv).getChannel();
+      ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+      boolean channels = RunFile.hasChannels(reader.getHeader().encoding);
+
+      String header = channels ? CsvRecorder.CHANNEL_CSV_HEADER : CsvRecorder.CSV_HEADER;
+      for (int i = 0; i < header.length(); i++)
+      {
+        buffer.put((byte)header.charAt(i));
+      }
+      buffer.put((byte)'\n');
+
+      SampleBlock block = new SampleBlock(BLOCK_SIZE);
+      long samples = 0;
+      while (reader.read(block) > 0)
+      {
+        for (int i = 0; i < block.count; i++)
+        {
+          if (buffer.remaining() < SampleFormatter.MAX_ROW)
+          {
+            write(out, buffer);
+          }
+          if (channels)
+          {
+            formatter.putChannelRow(buffer, block, i);
+          }
+          else
+          {
+            formatter.putRow(buffer, block, i);
+          }
+        }
+        samples += block.count;
+      }
+      write(out, buffer);
+
+      return samples;
+    }
+    finally
+    {
+      reader.close();
+      if (out != null)
+      {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Rewrite a run file with the other sample encoding, compressing a run
+   * with fixed size records or expanding a compressed one.  The raw readings,
+   * channels and calibration are copied unchanged.
+   * @return The number of samples rewritten
+   */
+  public static long toRun(File run, File out) throws IOException
+  {
+    RunFileReader reader = new RunFileReader(run);
+    RunFileRecorder recorder = null;
+    try
+    {
+      RunHeader header = reader.getHeader();
+      switch (header.encoding)
+      {
+        case RunFile.ENCODING_FIXED :
+          header.encoding = RunFile.ENCODING_BLOCKS;
+          break;
+        case RunFile.ENCODING_FIXED_CHANNELS :
+          header.encoding = RunFile.ENCODING_CHANNEL_BLOCKS;
+          break;
+        case RunFile.ENCODING_CHANNEL_BLOCKS :
+          header.encoding = RunFile.ENCODING_FIXED_CHANNELS;
+          break;
+        default :
+          header.encoding = RunFile.ENCODING_FIXED;
+          break;
+      }
+      recorder = new RunFileRecorder(out, new FlushPolicy(0, 0, false), header);
+      recorder.start();
+
+      long samples = 0;
+      while (true)
+      {
+        // the recorder keeps the blocks it is handed until it has written
+        // them, so each one needs a new block
+        SampleBlock block = new SampleBlock(BLOCK_SIZE);
+        if (reader.read(block) == 0)
+        {
+          break;
+        }
+        recorder.handleBlock(block);
+        samples += block.count;
+      }
+      return samples;
+    }
+    finally
+    {
+      reader.close();
+      if (recorder != null)
+      {
+        recorder.close();
+      }
+    }
+  }
+
+  private static void write(FileChannel out, ByteBuffer buffer) throws IOException
+  {
+    buffer.flip();
+    while (buffer.hasRemaining())
+    {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+
+}
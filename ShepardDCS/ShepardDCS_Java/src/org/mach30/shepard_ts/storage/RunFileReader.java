@@ -0,0 +1,307 @@
+package org.mach30.shepard_ts.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.SampleBlockCodec;
+import org.mach30.shepard_ts.calibration.Calibration;
+
+/**
+ * Reads the samples of a run file from start to end, a block at a time.
+ * Compressed runs are decoded a SampleBlockCodec block at a time, and a
+ * block that fails its checksum stops the read with an IOException.
+ *
+ * The raw readings are calibrated with the calibration the run was recorded
+ * with, unless another is set.
+ */
+public class RunFileReader implements Closeable
+{
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_BLOCK_SIZE = SampleBlockCodec.maxEncodedSize(RunFile.BLOCK_SAMPLES);
+
+  private FileChannel channel = null;
+  private RunHeader header = null;
+  private Calibration calibration = null;
+  private long sampleCount = 0;
+  // where the samples end, and the index or end of the file starts
+  private long samplesEnd = 0;
+
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE - BUFFER_SIZE % RunFile.RECORD_SIZE);
+  private long remaining = 0;
+  private int recordSize = RunFile.RECORD_SIZE;
+  private boolean channels = false;
+
+  // the decoded block being handed out, for the block encodings
+  private SampleBlockCodec codec = null;
+  private SampleBlock decoded = null;
+  private int decodedPosition = 0;
+
+
+  /**
+   * Open a run file and read its header.
+   * @throws IOException If the file can't be read or isn't a run file
+   */
+  public RunFileReader(File file) throws IOException
+  {
+    channel = new FileInputStream(file).getChannel();
+    try
+    {
+      header = readHeader(channel);
+      ByteBuffer footer = readFooter(channel, header);
+      if (header.encoding == RunFile.ENCODING_FIXED ||
+          header.encoding == RunFile.ENCODING_FIXED_CHANNELS)
+      {
+        recordSize = RunFile.getRecordSize(header.encoding);
+        channels = RunFile.hasChannels(header.encoding);
+        sampleCount = footer != null ? footer.getLong(8) :
+            (channel.size() - header.getSize()) / recordSize;
+        samplesEnd = header.getSize() + sampleCount * recordSize;
+      }
+      else if (RunFile.isBlocks(header.encoding))
+      {
+        if (footer != null)
+        {
+          sampleCount = footer.getLong(8);
+          samplesEnd = footer.getLong(0);
+        }
+        else
+        {
+          scanBlocks();
+        }
+        codec = new SampleBlockCodec();
+        decoded = new SampleBlock(RunFile.BLOCK_SAMPLES);
+      }
+      else
+      {
+        throw new IOException("Unknown sample encoding " + header.encoding);
+      }
+
+      calibration = header.calibration;
+      remaining = sampleCount;
+      channel.position(header.getSize());
+    }
+    catch (IOException ioex)
+    {
+      channel.close();
+      throw ioex;
+    }
+
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.limit(0);
+  }
+
+  /**
+   * Count the samples of a compressed run that was never closed, from the
+   * lengths and sample counts at the start of each block, stopping at the
+   * first block that wasn't completely written.
+   */
+  private void scanBlocks() throws IOException
+  {
+    long size = channel.size();
+    long position = header.getSize();
+    ByteBuffer start = ByteBuffer.allocate(4 + 10).order(ByteOrder.LITTLE_ENDIAN);
+    while (position + 4 < size)
+    {
+      start.clear();
+      start.limit((int)Math.min(start.capacity(), size - position));
+      while (start.hasRemaining() && channel.read(start, position + start.position()) >= 0)
+      {
+      }
+      start.flip();
+
+      int length = start.getInt();
+      long end = position + 4 + length;
+      if (length <= 0 || length > MAX_BLOCK_SIZE || end > size)
+      {
+        break;
+      }
+      sampleCount += SampleBlockCodec.getCount(start);
+      position = end;
+    }
+    samplesEnd = position;
+  }
+
+  /**
+   * Read the header at the start of a run file.
+   */
+  static RunHeader readHeader(FileChannel channel) throws IOException
+  {
+    ByteBuffer start = ByteBuffer.allocate((int)Math.min(channel.size(), RunHeader.getMaxSize()));
+    while (start.hasRemaining() && channel.read(start, start.position()) >= 0)
+    {
+    }
+    start.flip();
+    return RunHeader.get(start);
+  }
+
+  /**
+   * Read the footer at the end of a run file.
+   * @return The footer, positioned at its start, or null if the run was never
+   *     closed
+   */
+  static ByteBuffer readFooter(FileChannel channel, RunHeader header) throws IOException
+  {
+    long size = channel.size();
+    if (size < header.getSize() + RunFile.FOOTER_SIZE)
+    {
+      return null;
+    }
+
+    ByteBuffer footer = ByteBuffer.allocate(RunFile.FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    long position = size - RunFile.FOOTER_SIZE;
+    while (footer.hasRemaining() && channel.read(footer, position + footer.position()) >= 0)
+    {
+    }
+    footer.flip();
+
+    byte[] magic = new byte[RunFile.FOOTER_MAGIC.length];
+    footer.position(RunFile.FOOTER_SIZE - magic.length);
+    footer.get(magic);
+    footer.position(0);
+    return Arrays.equals(magic, RunFile.FOOTER_MAGIC) ? footer : null;
+  }
+
+  public RunHeader getHeader()
+  {
+    return header;
+  }
+
+  public Calibration getCalibration()
+  {
+    return calibration;
+  }
+
+  /**
+   * Calibrate the samples read from now on with a different calibration than
+   * the run was recorded with.
+   */
+  public void setCalibration(Calibration calibration)
+  {
+    this.calibration = calibration;
+  }
+
+  /**
+   * @return The number of samples in the run
+   */
+  public long getSampleCount()
+  {
+    return sampleCount;
+  }
+
+  /**
+   * Fill a block with the next samples.
+   * @param block The block to fill, which is cleared first
+   * @return The number of samples read, 0 once every sample has been read
+   */
+  public int read(SampleBlock block) throws IOException
+  {
+    block.clear();
+    while (!block.isFull() && remaining > 0)
+    {
+      if (codec != null)
+      {
+        readDecoded(block);
+        continue;
+      }
+
+      if (buffer.remaining() < recordSize)
+      {
+        fill(recordSize);
+      }
+
+      int count = (int)Math.min(Math.min(block.capacity() - block.count, remaining),
+          buffer.remaining() / recordSize);
+      for (int i = 0; i < count; i++)
+      {
+        long time = buffer.getInt() & 0xffffffffL;
+        int rawThrust = buffer.getShort() & 0xffff;
+        int rawTemp = buffer.getShort();
+        block.add(time, rawThrust, rawTemp, channels ? buffer.getShort() & 0xffff : 0);
+      }
+      remaining -= count;
+    }
+    calibration.apply(block);
+    return block.count;
+  }
+
+  /**
+   * Copy samples from the decoded block, decoding the next block once it has
+   * all been handed out.
+   */
+  private void readDecoded(SampleBlock block) throws IOException
+  {
+    if (decodedPosition == decoded.count)
+    {
+      if (buffer.remaining() < 4)
+      {
+        fill(4);
+      }
+      int length = buffer.getInt();
+      if (length <= 0 || length > MAX_BLOCK_SIZE)
+      {
+        throw new IOException("Corrupt block in run file");
+      }
+      if (buffer.remaining() < length)
+      {
+        fill(length);
+      }
+
+      decoded.clear();
+      decodedPosition = 0;
+      int end = buffer.position() + length;
+      codec.decode(buffer, decoded);
+      if (buffer.position() != end || decoded.isEmpty())
+      {
+        throw new IOException("Corrupt block in run file");
+      }
+    }
+
+    int count = (int)Math.min(Math.min(block.capacity() - block.count, remaining),
+        decoded.count - decodedPosition);
+    System.arraycopy(decoded.time, decodedPosition, block.time, block.count, count);
+    System.arraycopy(decoded.rawThrust, decodedPosition, block.rawThrust, block.count, count);
+    System.arraycopy(decoded.rawTemp, decodedPosition, block.rawTemp, block.count, count);
+    System.arraycopy(decoded.channel, decodedPosition, block.channel, block.count, count);
+    block.count += count;
+    decodedPosition += count;
+    remaining -= count;
+  }
+
+  /**
+   * Read more of the samples into the buffer, keeping what hasn't been used.
+   * @param needed The bytes the buffer has to hold afterwards
+   */
+  private void fill(int needed) throws IOException
+  {
+    buffer.compact();
+    long left = samplesEnd - channel.position();
+    if (buffer.position() + left < needed)
+    {
+      throw new IOException("Run file ended before its last sample");
+    }
+    buffer.limit((int)Math.min(buffer.capacity(), buffer.position() + left));
+    while (buffer.position() < needed)
+    {
+      if (channel.read(buffer) < 0)
+      {
+        throw new IOException("Run file ended before its last sample");
+      }
+    }
+    buffer.flip();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    channel.close();
+  }
+
+}
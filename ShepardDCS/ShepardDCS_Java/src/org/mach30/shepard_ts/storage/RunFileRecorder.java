@@ -0,0 +1,204 @@
+package org.mach30.shepard_ts.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.SampleBlockCodec;
+
+/**
+ * Records samples to a run file.  Samples are written as fixed size records,
+ * or for the block encodings collected into blocks that are compressed when
+ * they fill up or are flushed.  The index, footer and average sample rate are
+ * filled in when recording stops.
+ */
+public class RunFileRecorder extends SampleRecorder
+{
+
+  private RunHeader header = null;
+  private int indexInterval = RunFile.DEFAULT_INDEX_INTERVAL;
+  private int recordSize = RunFile.RECORD_SIZE;
+  private boolean channels = false;
+
+  // only touched by the recorder thread
+  private long samples = 0;
+  private long firstTime = 0;
+  private long lastTime = 0;
+  private long[] indexTimes = new long[64];
+  private long[] indexSamples = new long[64];
+  private long[] indexOffsets = new long[64];
+  private int indexCount = 0;
+
+  // the samples waiting to be compressed, for the block encodings
+  private SampleBlock pending = null;
+  private SampleBlockCodec codec = null;
+
+
+  /**
+   * Create the file and write the header.  Call start to begin recording.
+   * @param file The file to record to, which is replaced if it exists
+   * @param policy When to flush the recorded samples to the file
+   * @param header What is known about the run, including how the samples are
+   *     encoded
+   */
+  public RunFileRecorder(File file, FlushPolicy policy, RunHeader header) throws IOException
+  {
+    super(file, policy);
+    this.header = header;
+
+    recordSize = RunFile.getRecordSize(header.encoding);
+    channels = RunFile.hasChannels(header.encoding);
+    if (RunFile.isBlocks(header.encoding))
+    {
+      pending = new SampleBlock(RunFile.BLOCK_SAMPLES);
+      codec = new SampleBlockCodec();
+    }
+    else if (header.encoding != RunFile.ENCODING_FIXED &&
+        header.encoding != RunFile.ENCODING_FIXED_CHANNELS)
+    {
+      channel.close();
+      throw new IllegalArgumentException("Unknown sample encoding " + header.encoding);
+    }
+
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    header.put(buffer);
+  }
+
+  public RunHeader getHeader()
+  {
+    return header;
+  }
+
+  @Override
+  protected int getMaxSampleSize()
+  {
+    // a sample can fill the pending block, which is then compressed
+    return pending != null ? getMaxBlockSize(RunFile.BLOCK_SAMPLES) : recordSize;
+  }
+
+  private static int getMaxBlockSize(int samples)
+  {
+    return 4 + SampleBlockCodec.maxEncodedSize(samples);
+  }
+
+  @Override
+  protected void putSample(SampleBlock block, int idx)
+  {
+    long time = block.time[idx];
+    if (samples == 0)
+    {
+      firstTime = time;
+    }
+    lastTime = time;
+
+    if (pending != null)
+    {
+      pending.add(time, block.rawThrust[idx], block.rawTemp[idx], block.channel[idx]);
+      ++samples;
+      if (pending.isFull())
+      {
+        putPending();
+      }
+      return;
+    }
+
+    if (samples % indexInterval == 0)
+    {
+      addIndexEntry(time, samples, getPosition());
+    }
+    buffer.putInt((int)time);
+    buffer.putShort((short)block.rawThrust[idx]);
+    buffer.putShort((short)block.rawTemp[idx]);
+    if (channels)
+    {
+      buffer.putShort((short)block.channel[idx]);
+    }
+    ++samples;
+  }
+
+  /**
+   * Compress the pending samples into the buffer, which must have room for
+   * them.
+   */
+  private void putPending()
+  {
+    if (pending.isEmpty())
+    {
+      return;
+    }
+
+    long first = samples - pending.count;
+    if (first >= (long)indexCount * indexInterval)
+    {
+      addIndexEntry(pending.time[0], first, getPosition());
+    }
+
+    int start = buffer.position();
+    buffer.putInt(0);
+    int size = codec.encode(pending, buffer);
+    buffer.putInt(start, size);
+    pending.clear();
+  }
+
+  @Override
+  protected void beforeFlush() throws IOException
+  {
+    if (pending != null && !pending.isEmpty())
+    {
+      ensureRemaining(getMaxBlockSize(pending.count));
+      putPending();
+    }
+  }
+
+  private void addIndexEntry(long time, long sample, long offset)
+  {
+    if (indexCount == indexTimes.length)
+    {
+      indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+      indexSamples = Arrays.copyOf(indexSamples, indexCount * 2);
+      indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+    }
+    indexTimes[indexCount] = time;
+    indexSamples[indexCount] = sample;
+    indexOffsets[indexCount] = offset;
+    ++indexCount;
+  }
+
+  @Override
+  protected void finish() throws IOException
+  {
+    beforeFlush();
+
+    // the header has to be in the file before the sample rate can be
+    // written over it
+    write();
+    if (samples > 1 && lastTime > firstTime)
+    {
+      header.sampleRate = (samples - 1) * 1000f / (lastTime - firstTime);
+      ByteBuffer rate = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      rate.putFloat(header.sampleRate);
+      rate.flip();
+      channel.write(rate, RunHeader.SAMPLE_RATE_OFFSET);
+    }
+
+    long indexOffset = getPosition();
+    for (int i = 0; i < indexCount; i++)
+    {
+      ensureRemaining(RunFile.INDEX_ENTRY_SIZE);
+      buffer.putLong(indexTimes[i]);
+      buffer.putLong(indexSamples[i]);
+      buffer.putLong(indexOffsets[i]);
+    }
+
+    ensureRemaining(RunFile.FOOTER_SIZE);
+    buffer.putLong(indexOffset);
+    buffer.putLong(samples);
+    buffer.putInt(indexInterval);
+    buffer.putInt(indexCount);
+    buffer.put(RunFile.FOOTER_MAGIC);
+  }
+
+}
@@ -0,0 +1,199 @@
+package org.mach30.shepard_ts.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.mach30.shepard_ts.calibration.Calibration;
+import org.mach30.shepard_ts.calibration.LinearCalibration;
+
+/**
+ * What is known about a recorded run, stored at the start of its run file:
+ *
+ *   0  4 bytes  RunFile.MAGIC
+ *   4  u16      format version
+ *   6  u16      sample encoding
+ *   8  i32      header size, where the samples start
+ *   12 i64      wall clock time recording started, in ms since the epoch
+ *   20 f32      average sample rate in Hz, 0 if it isn't known
+ *   24 u8       number of thrust calibration coefficients
+ *      f64      each thrust coefficient, constant term first
+ *      u8       number of temperature calibration coefficients
+ *      f64      each temperature coefficient, constant term first
+ *      u16      length of the notation in bytes
+ *               notation, UTF-8
+ *
+ * The samples hold raw readings, and the calibration is the one in use when
+ * the run was recorded.
+ */
+public class RunHeader
+{
+
+  public static final int SAMPLE_RATE_OFFSET = 20;
+  // everything but the coefficients and the notation
+  private static final int MIN_SIZE = 24 + 1 + 1 + 2;
+  private static final int MAX_COEFFICIENTS = 16;
+  // plenty for notes, and keeps the header well inside a recorder's buffer
+  private static final int MAX_NOTATION = 4096;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  public int version = RunFile.VERSION;
+  public int encoding = RunFile.ENCODING_FIXED;
+  public long startTime = 0;
+  public float sampleRate = 0;
+  public Calibration calibration = LinearCalibration.DEFAULT;
+  public String notation = "";
+
+
+  public RunHeader()
+  {
+  }
+
+  /**
+   * Create the header for a run starting now.
+   * @param calibration The calibration the run is recorded with
+   * @param notation The user's notes about the run
+   */
+  public static RunHeader forCalibration(Calibration calibration, String notation)
+  {
+    RunHeader header = new RunHeader();
+    header.startTime = System.currentTimeMillis();
+    header.calibration = calibration;
+    header.notation = notation == null ? "" : notation;
+    return header;
+  }
+
+  private byte[] getNotationBytes()
+  {
+    byte[] bytes = notation.getBytes(UTF8);
+    return bytes.length > MAX_NOTATION ? Arrays.copyOf(bytes, MAX_NOTATION) : bytes;
+  }
+
+  /**
+   * @return The size of the header in bytes, where the samples start
+   */
+  public int getSize()
+  {
+    return MIN_SIZE + 8 * (calibration.getThrustCoefficients().length +
+        calibration.getTempCoefficients().length) + getNotationBytes().length;
+  }
+
+  /**
+   * Put the header into a little-endian buffer.
+   */
+  public void put(ByteBuffer out)
+  {
+    byte[] notationBytes = getNotationBytes();
+
+    out.put(RunFile.MAGIC);
+    out.putShort((short)version);
+    out.putShort((short)encoding);
+    out.putInt(getSize());
+    out.putLong(startTime);
+    out.putFloat(sampleRate);
+    putCoefficients(out, calibration.getThrustCoefficients());
+    putCoefficients(out, calibration.getTempCoefficients());
+    out.putShort((short)notationBytes.length);
+    out.put(notationBytes);
+  }
+
+  private static void putCoefficients(ByteBuffer out, double[] coefficients)
+  {
+    out.put((byte)coefficients.length);
+    for (double coefficient : coefficients)
+    {
+      out.putDouble(coefficient);
+    }
+  }
+
+  /**
+   * Read a header from the start of a run file.
+   * @param in The start of the file, which must hold the whole header
+   * @throws IOException If this isn't a run file this version can read
+   */
+  public static RunHeader get(ByteBuffer in) throws IOException
+  {
+    in = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (in.remaining() < MIN_SIZE)
+    {
+      throw new IOException("Not a run file, too short for a header");
+    }
+
+    byte[] magic = new byte[RunFile.MAGIC.length];
+    in.get(magic);
+    if (!Arrays.equals(magic, RunFile.MAGIC))
+    {
+      throw new IOException("Not a run file");
+    }
+
+    RunHeader header = new RunHeader();
+    header.version = in.getShort() & 0xffff;
+    if (header.version > RunFile.VERSION)
+    {
+      throw new IOException("Run file version " + header.version + " is newer than this software");
+    }
+    if (header.version < RunFile.MIN_VERSION)
+    {
+      throw new IOException("Run file version " + header.version +
+          " predates recording raw readings and can't be read");
+    }
+    header.encoding = in.getShort() & 0xffff;
+    int size = in.getInt();
+    header.startTime = in.getLong();
+    header.sampleRate = in.getFloat();
+
+    double[] thrust = getCoefficients(in);
+    double[] temp = getCoefficients(in);
+    header.calibration = Calibration.fromCoefficients(thrust, temp);
+
+    if (in.remaining() < 2)
+    {
+      throw new IOException("Corrupt run file header");
+    }
+    int notationLength = in.getShort() & 0xffff;
+    if (size != in.position() + notationLength || in.remaining() < notationLength)
+    {
+      throw new IOException("Corrupt run file header");
+    }
+    byte[] notationBytes = new byte[notationLength];
+    in.get(notationBytes);
+    header.notation = new String(notationBytes, UTF8);
+
+    return header;
+  }
+
+  private static double[] getCoefficients(ByteBuffer in) throws IOException
+  {
+    int count = in.remaining() > 0 ? in.get() & 0xff : -1;
+    if (count < 0 || count > MAX_COEFFICIENTS || in.remaining() < count * 8)
+    {
+      throw new IOException("Corrupt run file header");
+    }
+    double[] coefficients = new double[count];
+    for (int i = 0; i < count; i++)
+    {
+      coefficients[i] = in.getDouble();
+    }
+    return coefficients;
+  }
+
+  /**
+   * @return The longest a header can be, for reading one without knowing its
+   *     size
+   */
+  public static int getMaxSize()
+  {
+    return MIN_SIZE + 2 * 8 * MAX_COEFFICIENTS + MAX_NOTATION;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "run started " + new Date(startTime) + ", " + sampleRate + " Hz, " + calibration +
+        (notation.isEmpty() ? "" : ", " + notation);
+  }
+
+}
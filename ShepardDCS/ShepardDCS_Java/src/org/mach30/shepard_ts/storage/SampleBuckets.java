@@ -0,0 +1,55 @@
+package org.mach30.shepard_ts.storage;
+
+/**
+ * Per-bucket statistics for a span of a run, as parallel arrays in the same
+ * way as SampleBlock.  Bucket i covers the times from start + i * width up to
+ * but not including start + (i + 1) * width, and only the first count
+ * buckets are valid.  A bucket with no samples has NaN statistics.
+ */
+public class SampleBuckets
+{
+
+  public long start = 0;
+  public long width = 0;
+  public int count = 0;
+
+  public long[] samples = null;
+  public float[] minThrust = null;
+  public float[] maxThrust = null;
+  public float[] meanThrust = null;
+  public float[] minTemp = null;
+  public float[] maxTemp = null;
+  public float[] meanTemp = null;
+
+
+  public SampleBuckets(int capacity)
+  {
+    samples = new long[capacity];
+    minThrust = new float[capacity];
+    maxThrust = new float[capacity];
+    meanThrust = new float[capacity];
+    minTemp = new float[capacity];
+    maxTemp = new float[capacity];
+    meanTemp = new float[capacity];
+  }
+
+  public int capacity()
+  {
+    return samples.length;
+  }
+
+  /**
+   * @return The time the given bucket starts at
+   */
+  public long getStart(int idx)
+  {
+    return start + idx * width;
+  }
+
+  @Override
+  public String toString()
+  {
+    return count + " buckets of " + width + " ms from " + start;
+  }
+
+}
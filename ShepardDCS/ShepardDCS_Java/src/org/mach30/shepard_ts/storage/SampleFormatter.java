@@ -0,0 +1,233 @@
+package org.mach30.shepard_ts.storage;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+
+import org.mach30.shepard_ts.SampleBlock;
+
+/**
+ * Formats samples as CSV rows straight into a byte buffer, with a fixed
+ * number of decimals for thrust and temperature.  Values are rounded half up
+ * from the decimal that Float.toString gives, so a row is the original
+ * ShepardData.toString output rounded to the chosen precision.
+ *
+ * Nothing is allocated, except for the rare value too close to a rounding tie
+ * to be decided from its binary value, or too large to scale into a long,
+ * which is rounded from its Float.toString instead.
+ */
+public class SampleFormatter
+{
+
+  public static final int DEFAULT_THRUST_DECIMALS = 3;
+  public static final int DEFAULT_TEMP_DECIMALS = 2;
+  public static final int MAX_DECIMALS = 9;
+
+  // the longest a row can be: a 20 character time, two of the longest float
+  // values (Float.MAX_VALUE to MAX_DECIMALS), an 11 character channel and the
+  // separators
+  public static final int MAX_ROW = 20 + 2 * (1 + 39 + 1 + MAX_DECIMALS) + 11 + 4;
+
+  private static final long[] POWERS = new long[MAX_DECIMALS + 1];
+  static
+  {
+    POWERS[0] = 1;
+    for (int i = 1; i < POWERS.length; i++)
+    {
+      POWERS[i] = POWERS[i - 1] * 10;
+    }
+  }
+
+  // scaled values below this fit in a long and are exact in a double
+  private static final double MAX_SCALED = (double)(1L << 53);
+
+  private static final byte[] NAN = {'N', 'a', 'N'};
+  private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+  private int thrustDecimals = DEFAULT_THRUST_DECIMALS;
+  private int tempDecimals = DEFAULT_TEMP_DECIMALS;
+
+
+  public SampleFormatter()
+  {
+  }
+
+  /**
+   * @param thrustDecimals The number of decimals to give thrust values
+   * @param tempDecimals The number of decimals to give temperature values
+   */
+  public SampleFormatter(int thrustDecimals, int tempDecimals)
+  {
+    this.thrustDecimals = checkDecimals(thrustDecimals);
+    this.tempDecimals = checkDecimals(tempDecimals);
+  }
+
+  private static int checkDecimals(int decimals)
+  {
+    if (decimals < 0 || decimals > MAX_DECIMALS)
+    {
+      throw new IllegalArgumentException("The number of decimals must be from 0 to " + MAX_DECIMALS);
+    }
+    return decimals;
+  }
+
+  public int getThrustDecimals()
+  {
+    return thrustDecimals;
+  }
+
+  public int getTempDecimals()
+  {
+    return tempDecimals;
+  }
+
+  /**
+   * Write a sample from a block as a row, including the newline.  The buffer
+   * needs at least MAX_ROW bytes remaining.
+   */
+  public void putRow(ByteBuffer out, SampleBlock block, int idx)
+  {
+    putRow(out, block.time[idx], block.thrust[idx], block.temp[idx]);
+  }
+
+  /**
+   * Write a sample from a block as a row ending with its channel, for
+   * samples from several devices, including the newline.  The buffer needs
+   * at least MAX_ROW bytes remaining.
+   */
+  public void putChannelRow(ByteBuffer out, SampleBlock block, int idx)
+  {
+    putValues(out, block.time[idx], block.thrust[idx], block.temp[idx]);
+    out.put((byte)',');
+    putLong(out, block.channel[idx]);
+    out.put((byte)'\n');
+  }
+
+  /**
+   * Write a sample as a row, including the newline.  The buffer needs at
+   * least MAX_ROW bytes remaining.
+   */
+  public void putRow(ByteBuffer out, long time, float thrust, float temp)
+  {
+    putValues(out, time, thrust, temp);
+    out.put((byte)'\n');
+  }
+
+  private void putValues(ByteBuffer out, long time, float thrust, float temp)
+  {
+    putLong(out, time);
+    out.put((byte)',');
+    putFixed(out, thrust, thrustDecimals);
+    out.put((byte)',');
+    putFixed(out, temp, tempDecimals);
+  }
+
+  /**
+   * Write a whole number in decimal.
+   */
+  public static void putLong(ByteBuffer out, long value)
+  {
+    if (value == Long.MIN_VALUE)
+    {
+      out.put(MIN_LONG);
+      return;
+    }
+    if (value < 0)
+    {
+      out.put((byte)'-');
+      value = -value;
+    }
+
+    int digits = 1;
+    for (long rest = value / 10; rest != 0; rest /= 10)
+    {
+      ++digits;
+    }
+    putDigits(out, value, digits);
+  }
+
+  /**
+   * Write a value with a fixed number of decimals, rounding half up from its
+   * Float.toString decimal.
+   */
+  public static void putFixed(ByteBuffer out, float value, int decimals)
+  {
+    if (Float.isNaN(value))
+    {
+      out.put(NAN);
+      return;
+    }
+    if (Float.isInfinite(value))
+    {
+      if (value < 0)
+      {
+        out.put((byte)'-');
+      }
+      out.put(INFINITY);
+      return;
+    }
+
+    long power = POWERS[decimals];
+    // a float is exact as a double, so this only rounds in the last few bits
+    double scaled = Math.abs((double)value) * power;
+    if (scaled >= MAX_SCALED)
+    {
+      putRounded(out, value, decimals);
+      return;
+    }
+
+    long units = (long)scaled;
+    double fraction = scaled - units;
+
+    // the Float.toString decimal is within half an ulp of the value, so unless
+    // the value is about that close to a tie it rounds the same way
+    if (Math.abs(fraction - 0.5) <= Math.ulp(value) * power)
+    {
+      putRounded(out, value, decimals);
+      return;
+    }
+    if (fraction > 0.5)
+    {
+      ++units;
+    }
+
+    if (units != 0 && value < 0)
+    {
+      out.put((byte)'-');
+    }
+    putLong(out, units / power);
+    if (decimals > 0)
+    {
+      out.put((byte)'.');
+      putDigits(out, units % power, decimals);
+    }
+  }
+
+  /**
+   * Write the given number of digits of a value, padded with leading zeros.
+   */
+  private static void putDigits(ByteBuffer out, long value, int digits)
+  {
+    int start = out.position();
+    for (int i = digits - 1; i >= 0; i--)
+    {
+      out.put(start + i, (byte)('0' + value % 10));
+      value /= 10;
+    }
+    out.position(start + digits);
+  }
+
+  /**
+   * Round the value the slow way, from its Float.toString decimal.
+   */
+  private static void putRounded(ByteBuffer out, float value, int decimals)
+  {
+    String str = new BigDecimal(Float.toString(value)).setScale(decimals, RoundingMode.HALF_UP).toPlainString();
+    for (int i = 0; i < str.length(); i++)
+    {
+      out.put((byte)str.charAt(i));
+    }
+  }
+
+}
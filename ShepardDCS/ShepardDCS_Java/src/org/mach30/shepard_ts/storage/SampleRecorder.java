@@ -0,0 +1,367 @@
+package org.mach30.shepard_ts.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mach30.shepard_ts.SampleBlock;
+import org.mach30.shepard_ts.server.SampleSink;
+
+/**
+ * Records samples to a file from its own thread.  Blocks handed to the
+ * recorder are queued, then put into a reusable direct buffer by the
+ * subclass, and the buffer is written through a FileChannel, so the thread
+ * handing over the samples never waits on the disk.  The flush policy decides
+ * how often the buffer is pushed out to the file between the writes needed
+ * when it fills up.
+ *
+ * Subclasses put their header into the buffer from their constructor, and
+ * anything that follows the samples from finish.
+ */
+public abstract class SampleRecorder implements SampleSink, Runnable
+{
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int QUEUE_SIZE = 64;
+  // how long to wait for samples when there's nothing to flush, which also
+  // bounds how long close waits for the thread to notice
+  private static final long IDLE_WAIT = 100;
+
+  private File file = null;
+  private FlushPolicy policy = null;
+
+  protected FileChannel channel = null;
+  protected ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  private ArrayBlockingQueue<SampleBlock> queue = new ArrayBlockingQueue<SampleBlock>(QUEUE_SIZE);
+  private Thread thread = null;
+  private volatile boolean running = false;
+  private volatile IOException error = null;
+
+  // only touched by the recorder thread
+  private long position = 0;
+  private int buffered = 0;
+  private int unflushed = 0;
+  private long unflushedSince = 0;
+
+  private AtomicLong received = new AtomicLong();
+  private volatile long written = 0;
+  private volatile long maxLag = 0;
+  private volatile long flushes = 0;
+
+
+  /**
+   * Create the file.  Call start to begin recording.
+   * @param file The file to record to, which is replaced if it exists
+   * @param policy When to flush the recorded samples to the file
+   */
+  protected SampleRecorder(File file, FlushPolicy policy) throws IOException
+  {
+    this.file = file;
+    this.policy = policy;
+
+    channel = new FileOutputStream(file).getChannel();
+  }
+
+  /**
+   * @return The most bytes putSample can put for one sample
+   */
+  protected abstract int getMaxSampleSize();
+
+  /**
+   * Put a sample into the buffer, which has at least getMaxSampleSize bytes
+   * remaining.
+   */
+  protected abstract void putSample(SampleBlock block, int idx);
+
+  /**
+   * Called on the recorder thread before the buffer is flushed, to put any
+   * samples the subclass is holding back into it.
+   */
+  protected void beforeFlush() throws IOException
+  {
+  }
+
+  /**
+   * Called on the recorder thread once the last sample has been put, before
+   * the final flush.
+   */
+  protected void finish() throws IOException
+  {
+  }
+
+  /**
+   * Start the recorder thread.
+   */
+  public void start()
+  {
+    running = true;
+    thread = new Thread(this, getClass().getSimpleName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queue a block to be recorded.  This only waits if the recorder is a full
+   * queue behind.
+   */
+  @Override
+  public void handleBlock(SampleBlock block)
+  {
+    if (!running)
+    {
+      return;
+    }
+
+    block.retain();
+    long lag = received.addAndGet(block.count) - written;
+    if (lag > maxLag)
+    {
+      maxLag = lag;
+    }
+
+    try
+    {
+      queue.put(block);
+    }
+    catch (InterruptedException iex)
+    {
+      block.release();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    try
+    {
+      while (running || !queue.isEmpty())
+      {
+        long wait = IDLE_WAIT;
+        if (unflushed > 0 && policy.getInterval() > 0)
+        {
+          wait = Math.min(wait, unflushedSince + policy.getInterval() - System.currentTimeMillis());
+        }
+
+        SampleBlock block = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+        try
+        {
+          if (error != null)
+          {
+            // keep draining the queue so the sink never blocks on a recorder
+            // that can't write
+            continue;
+          }
+          if (block != null)
+          {
+            put(block);
+          }
+          if (policy.shouldFlush(unflushed, System.currentTimeMillis() - unflushedSince))
+          {
+            flush(policy.isSync());
+          }
+        }
+        catch (IOException ioex)
+        {
+          error = ioex;
+        }
+        finally
+        {
+          if (block != null)
+          {
+            block.release();
+          }
+        }
+      }
+
+      if (error == null)
+      {
+        // recording has stopped, so make sure everything reaches the disk
+        finish();
+        flush(true);
+      }
+    }
+    catch (InterruptedException iex)
+    {
+    }
+    catch (IOException ioex)
+    {
+      error = ioex;
+    }
+    finally
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException ioex)
+      {
+      }
+    }
+  }
+
+  private void put(SampleBlock block) throws IOException
+  {
+    int maxSize = getMaxSampleSize();
+    for (int i = 0; i < block.count; i++)
+    {
+      ensureRemaining(maxSize);
+      putSample(block, i);
+      ++buffered;
+    }
+
+    if (unflushed == 0)
+    {
+      unflushedSince = System.currentTimeMillis();
+    }
+    unflushed += block.count;
+  }
+
+  /**
+   * Make sure the buffer has room for the given number of bytes, writing out
+   * what it holds if it doesn't.
+   */
+  protected void ensureRemaining(int bytes) throws IOException
+  {
+    if (buffer.remaining() < bytes)
+    {
+      write();
+    }
+  }
+
+  /**
+   * @return The offset in the file of the next byte put into the buffer
+   */
+  protected long getPosition()
+  {
+    return position + buffer.position();
+  }
+
+  /**
+   * Write out whatever is buffered.
+   */
+  protected void write() throws IOException
+  {
+    buffer.flip();
+    position += buffer.remaining();
+    while (buffer.hasRemaining())
+    {
+      channel.write(buffer);
+    }
+    buffer.clear();
+
+    written += buffered;
+    buffered = 0;
+  }
+
+  private void flush(boolean sync) throws IOException
+  {
+    beforeFlush();
+    write();
+    if (sync)
+    {
+      channel.force(false);
+    }
+    unflushed = 0;
+    ++flushes;
+  }
+
+  /**
+   * Stop recording, waiting for everything already handed to the recorder to
+   * be written and flushed to the file.
+   * @throws IOException If recording failed at any point
+   */
+  public void close() throws IOException
+  {
+    running = false;
+    if (thread != null)
+    {
+      try
+      {
+        thread.join();
+      }
+      catch (InterruptedException iex)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    else
+    {
+      channel.close();
+    }
+
+    // anything that arrived after the thread finished won't be recorded
+    SampleBlock block = null;
+    while ((block = queue.poll()) != null)
+    {
+      block.release();
+    }
+
+    if (error != null)
+    {
+      throw error;
+    }
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public FlushPolicy getPolicy()
+  {
+    return policy;
+  }
+
+  /**
+   * @return The error that stopped recording, or null if there hasn't been one
+   */
+  public IOException getError()
+  {
+    return error;
+  }
+
+  /**
+   * @return The number of samples handed to the recorder but not yet written
+   *     to the file
+   */
+  public long getLag()
+  {
+    return received.get() - written;
+  }
+
+  /**
+   * @return The largest the lag has been
+   */
+  public long getMaxLag()
+  {
+    return maxLag;
+  }
+
+  /**
+   * @return The number of samples written to the file
+   */
+  public long getWrittenCount()
+  {
+    return written;
+  }
+
+  public long getFlushCount()
+  {
+    return flushes;
+  }
+
+  @Override
+  public String toString()
+  {
+    return file.getName() + ": " + written + " samples written, lag " + getLag() +
+        " (max " + maxLag + "), " + flushes + " flushes";
+  }
+
+}
@@ -0,0 +1,16 @@
+package org.mach30.shepard_ts.transport;
+
+/**
+ * Receives the bytes a ByteSource pushes, always on one thread at a time.
+ */
+public interface ByteListener
+{
+
+  /**
+   * Handle bytes that have arrived.  The buffer may be reused once this
+   * returns, and nothing in here should block, since any delay holds up the
+   * reading of the source.
+   */
+  void bytesReceived(byte[] buffer, int offset, int length);
+
+}
@@ -0,0 +1,207 @@
+package org.mach30.shepard_ts.transport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where the bytes from the data collection hardware come from, and where the
+ * commands to it go.  The bytes can be pulled, by reading them into a buffer,
+ * or pushed to a listener as they arrive.  Sources without events of their
+ * own push from a reader thread that pulls them.
+ *
+ * Besides the serial port, a source can be named on the command line as
+ * "file:path" for a capture of the bytes, "tcp:host:port" for a relay of the
+ * serial port, or "stdin" for a pipe.
+ */
+public abstract class ByteSource implements Closeable
+{
+
+  public static final int DEFAULT_READ_SIZE = 4096;
+
+  private static final String FILE_PREFIX = "file:";
+  private static final String TCP_PREFIX = "tcp:";
+  private static final String STDIN = "stdin";
+
+  private String name = null;
+
+  private ByteListener listener = null;
+
+
+  protected ByteSource(String name)
+  {
+    this.name = name;
+  }
+
+  /**
+   * Create the source named on the command line, which still has to be
+   * opened.
+   */
+  public static ByteSource create(String spec) throws IOException
+  {
+    if (spec.startsWith(FILE_PREFIX))
+    {
+      return new FileByteSource(new File(spec.substring(FILE_PREFIX.length())));
+    }
+    if (spec.startsWith(TCP_PREFIX))
+    {
+      String address = spec.substring(TCP_PREFIX.length());
+      int colon = address.lastIndexOf(':');
+      try
+      {
+        return new SocketByteSource(address.substring(0, colon),
+            Integer.parseInt(address.substring(colon + 1)));
+      }
+      catch (RuntimeException rex)
+      {
+        throw new IOException("Expected tcp:host:port, not " + spec);
+      }
+    }
+    if (STDIN.equals(spec))
+    {
+      return new StreamByteSource(STDIN, System.in, null);
+    }
+    throw new IOException("Unknown byte source " + spec + ", expected file:path, tcp:host:port or stdin");
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public abstract void open() throws IOException;
+
+  public abstract boolean isOpen();
+
+  /**
+   * Send a command byte to the hardware.  Sources that only replay bytes
+   * ignore it.
+   */
+  public abstract void write(byte b) throws IOException;
+
+  /**
+   * Read the bytes that have arrived, waiting for at least one.
+   * @return The number of bytes read, or -1 once there will be no more
+   */
+  public abstract int read(byte[] buffer, int offset, int length) throws IOException;
+
+  /**
+   * Drop any bytes that have arrived but not been read.
+   */
+  public void purge() throws IOException
+  {
+  }
+
+  /**
+   * Push the bytes to a listener as they arrive, until the listener is
+   * removed.  Once a source runs out it stays quiet, like a port the hardware
+   * has stopped sending on, so a server replaying it keeps running until its
+   * sinks have caught up and it is stopped.
+   */
+  public synchronized void setListener(ByteListener listener) throws IOException
+  {
+    if (this.listener != null)
+    {
+      throw new IOException("A listener has already been added to " + name);
+    }
+    this.listener = listener;
+    Thread reader = new Thread(new Reader(listener), name + " reader");
+    reader.start();
+  }
+
+  /**
+   * Stop pushing bytes to the listener.  A reader thread finishes the read it
+   * is waiting on first, and the bytes from that read are dropped.
+   */
+  public synchronized void removeListener() throws IOException
+  {
+    listener = null;
+    notifyAll();
+  }
+
+  private synchronized boolean isListening(ByteListener listener)
+  {
+    return this.listener == listener;
+  }
+
+  /**
+   * Read every byte into a listener on the calling thread, until there are
+   * no more.
+   * @return The number of bytes read
+   */
+  public long pump(ByteListener listener, byte[] buffer) throws IOException
+  {
+    long total = 0;
+    int count = 0;
+    while ((count = read(buffer, 0, buffer.length)) >= 0)
+    {
+      listener.bytesReceived(buffer, 0, count);
+      total += count;
+    }
+    return total;
+  }
+
+  @Override
+  public String toString()
+  {
+    return name;
+  }
+
+
+  /**
+   * Pushes the bytes to a listener for sources without events of their own.
+   */
+  private class Reader implements Runnable
+  {
+
+    private ByteListener listener = null;
+
+    Reader(ByteListener listener)
+    {
+      this.listener = listener;
+    }
+
+    @Override
+    public void run()
+    {
+      byte[] buffer = new byte[DEFAULT_READ_SIZE];
+      try
+      {
+        int count = 0;
+        while ((count = read(buffer, 0, buffer.length)) >= 0 && isListening(listener))
+        {
+          listener.bytesReceived(buffer, 0, count);
+        }
+        if (count < 0)
+        {
+          System.out.println("Reached the end of " + name);
+          awaitRemoval();
+        }
+      }
+      catch (IOException ioex)
+      {
+        if (isOpen())
+        {
+          System.err.println("Failed to read from " + name + ": " + ioex.getMessage());
+        }
+      }
+      catch (InterruptedException iex)
+      {
+      }
+    }
+    
+    private void awaitRemoval() throws InterruptedException
+    {
+      synchronized (ByteSource.this)
+      {
+        // closing the source doesn't wake the reader, so check every so often
+        while (isListening(listener) && isOpen())
+        {
+          ByteSource.this.wait(1000);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,31 @@
+package org.mach30.shepard_ts.transport;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Replays a capture of the bytes the hardware sent, as fast as they are read.
+ * Commands are ignored.
+ */
+public class FileByteSource extends StreamByteSource
+{
+
+  private File file = null;
+
+
+  public FileByteSource(File file)
+  {
+    super(file.getPath());
+    this.file = file;
+  }
+
+  @Override
+  public void open() throws IOException
+  {
+    setStreams(new BufferedInputStream(new FileInputStream(file), 65536), null);
+    super.open();
+  }
+
+}
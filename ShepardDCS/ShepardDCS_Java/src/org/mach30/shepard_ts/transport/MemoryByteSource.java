@@ -0,0 +1,77 @@
+package org.mach30.shepard_ts.transport;
+
+/**
+ * Hands out bytes already in memory, for benchmarks and reprocessing, in
+ * reads of at most a fixed size.  Commands are ignored.
+ */
+public class MemoryByteSource extends ByteSource
+{
+
+  private byte[] data = null;
+  private int chunkSize = 0;
+  private int position = 0;
+  private volatile boolean opened = false;
+
+
+  /**
+   * @param chunkSize The most bytes handed out by each read, such as the
+   *     size of the reads a serial port makes
+   */
+  public MemoryByteSource(byte[] data, int chunkSize)
+  {
+    super("memory");
+    this.data = data;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Go back to the first byte.
+   */
+  public synchronized void rewind()
+  {
+    position = 0;
+  }
+
+  @Override
+  public void open()
+  {
+    opened = true;
+  }
+
+  @Override
+  public boolean isOpen()
+  {
+    return opened;
+  }
+
+  @Override
+  public void write(byte b)
+  {
+  }
+
+  @Override
+  public synchronized int read(byte[] buffer, int offset, int length)
+  {
+    int count = Math.min(Math.min(length, chunkSize), data.length - position);
+    if (count <= 0)
+    {
+      return -1;
+    }
+    System.arraycopy(data, position, buffer, offset, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public synchronized void purge()
+  {
+    position = data.length;
+  }
+
+  @Override
+  public void close()
+  {
+    opened = false;
+  }
+
+}
@@ -0,0 +1,195 @@
+package org.mach30.shepard_ts.transport;
+
+import java.io.IOException;
+
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+
+/**
+ * The hardware on a serial port.  The bytes are pushed from jssc's event
+ * thread as each RX event arrives, rather than from a reader thread.
+ */
+public class SerialByteSource extends ByteSource implements SerialPortEventListener
+{
+
+  private SerialPort port = null;
+  private int baudRate = 0;
+  private int dataBits = 0;
+  private int stopBits = 0;
+  private int parity = 0;
+
+  private volatile ByteListener listener = null;
+
+
+  public SerialByteSource(SerialPort port, int baudRate, int dataBits, int stopBits, int parity)
+  {
+    super(port.getPortName());
+    this.port = port;
+    this.baudRate = baudRate;
+    this.dataBits = dataBits;
+    this.stopBits = stopBits;
+    this.parity = parity;
+  }
+
+  public SerialPort getPort()
+  {
+    return port;
+  }
+
+  @Override
+  public void open() throws IOException
+  {
+    try
+    {
+      if (!port.openPort())
+      {
+        throw new IOException("failed to open");
+      }
+      if (!port.setParams(baudRate, dataBits, stopBits, parity))
+      {
+        close();
+        throw new IOException("unable to initialize serial connection");
+      }
+    }
+    catch (SerialPortException spex)
+    {
+      throw new IOException(spex.getMessage(), spex);
+    }
+  }
+
+  @Override
+  public boolean isOpen()
+  {
+    return port.isOpened();
+  }
+
+  @Override
+  public void write(byte b) throws IOException
+  {
+    try
+    {
+      port.writeByte(b);
+    }
+    catch (SerialPortException spex)
+    {
+      throw new IOException(spex.getMessage(), spex);
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException
+  {
+    try
+    {
+      // wait for one byte, but take as many as have arrived
+      byte[] bytes = port.readBytes(Math.max(1, Math.min(length, port.getInputBufferBytesCount())));
+      if (bytes == null)
+      {
+        return 0;
+      }
+      System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+      return bytes.length;
+    }
+    catch (SerialPortException spex)
+    {
+      if (!port.isOpened())
+      {
+        return -1;
+      }
+      throw new IOException(spex.getMessage(), spex);
+    }
+  }
+
+  @Override
+  public void purge() throws IOException
+  {
+    try
+    {
+      port.purgePort(SerialPort.PURGE_RXCLEAR);
+    }
+    catch (SerialPortException spex)
+    {
+      throw new IOException(spex.getMessage(), spex);
+    }
+  }
+
+  @Override
+  public synchronized void setListener(ByteListener listener) throws IOException
+  {
+    if (this.listener != null)
+    {
+      throw new IOException("A listener has already been added to " + getName());
+    }
+    this.listener = listener;
+    try
+    {
+      // currently, try to handle all the comm events, including flow control
+      port.addEventListener(this, SerialPort.MASK_RXCHAR
+          | SerialPort.MASK_RXFLAG | SerialPort.MASK_CTS
+          | SerialPort.MASK_DSR | SerialPort.MASK_RLSD);
+    }
+    catch (SerialPortException spex)
+    {
+      this.listener = null;
+      throw new IOException(spex.getMessage(), spex);
+    }
+  }
+
+  @Override
+  public synchronized void removeListener() throws IOException
+  {
+    if (listener == null)
+    {
+      return;
+    }
+    listener = null;
+    try
+    {
+      port.removeEventListener();
+    }
+    catch (SerialPortException spex)
+    {
+      throw new IOException(spex.getMessage(), spex);
+    }
+  }
+
+  @Override
+  public void serialEvent(SerialPortEvent event)
+  {
+    ByteListener current = listener;
+    // RX events are the only ones with data
+    if (current != null && (event.isRXCHAR() || event.isRXFLAG()))
+    {
+      try
+      {
+        byte[] buffer = port.readBytes(event.getEventValue());
+        if (buffer != null)
+        {
+          current.bytesReceived(buffer, 0, buffer.length);
+        }
+      }
+      catch (SerialPortException spex)
+      {
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      if (port.isOpened())
+      {
+        port.closePort();
+      }
+    }
+    catch (SerialPortException spex)
+    {
+      throw new IOException(spex.getMessage(), spex);
+    }
+  }
+
+}
@@ -0,0 +1,45 @@
+package org.mach30.shepard_ts.transport;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Reads the bytes from a TCP relay of the hardware's serial port, such as
+ * ser2net, and sends the commands back through it.
+ */
+public class SocketByteSource extends StreamByteSource
+{
+
+  private String host = null;
+  private int port = 0;
+  private Socket socket = null;
+
+
+  public SocketByteSource(String host, int port)
+  {
+    super(host + ":" + port);
+    this.host = host;
+    this.port = port;
+  }
+
+  @Override
+  public void open() throws IOException
+  {
+    socket = new Socket(host, port);
+    // the commands are single bytes, which shouldn't wait to be coalesced
+    socket.setTcpNoDelay(true);
+    setStreams(socket.getInputStream(), socket.getOutputStream());
+    super.open();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    super.close();
+    if (socket != null)
+    {
+      socket.close();
+    }
+  }
+
+}
@@ -0,0 +1,97 @@
+package org.mach30.shepard_ts.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads the bytes from a stream, such as a pipe, and writes the commands to
+ * another, if there is one.
+ */
+public class StreamByteSource extends ByteSource
+{
+
+  private InputStream in = null;
+  private OutputStream out = null;
+  private volatile boolean opened = false;
+
+
+  /**
+   * @param out Where the commands are written, or null to ignore them
+   */
+  public StreamByteSource(String name, InputStream in, OutputStream out)
+  {
+    super(name);
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * For sources that only have their streams once they are opened.
+   */
+  protected StreamByteSource(String name)
+  {
+    super(name);
+  }
+
+  protected void setStreams(InputStream in, OutputStream out)
+  {
+    this.in = in;
+    this.out = out;
+  }
+
+  @Override
+  public void open() throws IOException
+  {
+    opened = true;
+  }
+
+  @Override
+  public boolean isOpen()
+  {
+    return opened;
+  }
+
+  @Override
+  public void write(byte b) throws IOException
+  {
+    if (out != null)
+    {
+      out.write(b);
+      out.flush();
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException
+  {
+    return in.read(buffer, offset, length);
+  }
+
+  @Override
+  public void purge() throws IOException
+  {
+    in.skip(in.available());
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    opened = false;
+    try
+    {
+      if (in != null)
+      {
+        in.close();
+      }
+    }
+    finally
+    {
+      if (out != null)
+      {
+        out.close();
+      }
+    }
+  }
+
+}